@@ -0,0 +1,31 @@
+package dk.i1.diameter.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks.
+ * This is the JMH main with the GC profiler always added, so the results
+ * include the allocation rate and bytes allocated per operation
+ * (gc.alloc.rate.norm) next to the throughput. The usual JMH command line
+ * options can be given, eg. a regular expression selecting the benchmarks:
+ *
+ * <pre>
+ * mvn -pl benchmarks -am package
+ * java -jar benchmarks/target/benchmarks.jar CodecBenchmark
+ * </pre>
+ */
+public final class BenchmarkMain {
+  private BenchmarkMain() {
+  }
+
+  public static void main(final String args[]) throws Exception {
+    final CommandLineOptions cmd_options = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder()
+            .parent(cmd_options)
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+  }
+}
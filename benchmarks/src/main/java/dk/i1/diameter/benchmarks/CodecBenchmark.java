@@ -0,0 +1,80 @@
+package dk.i1.diameter.benchmarks;
+
+import dk.i1.diameter.Message;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of complete messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+  private Message ccr;
+  private Message cca;
+  private Message acr;
+  private byte raw_ccr[];
+  private byte raw_cca[];
+  private byte raw_acr[];
+
+  @Setup
+  public void setup() {
+    ccr = Messages.ccr("client.example.net;1500000000;42", 7);
+    cca = Messages.cca(ccr);
+    acr = Messages.acr("client.example.net;1500000000;43", 3);
+    raw_ccr = ccr.encode();
+    raw_cca = cca.encode();
+    raw_acr = acr.encode();
+  }
+
+  @Benchmark
+  public byte[] encodeCCR() {
+    return ccr.encode();
+  }
+
+  @Benchmark
+  public byte[] encodeCCA() {
+    return cca.encode();
+  }
+
+  @Benchmark
+  public byte[] encodeACR() {
+    return acr.encode();
+  }
+
+  @Benchmark
+  public Message decodeCCR() {
+    return decode(raw_ccr);
+  }
+
+  @Benchmark
+  public Message decodeCCA() {
+    return decode(raw_cca);
+  }
+
+  @Benchmark
+  public Message decodeACR() {
+    return decode(raw_acr);
+  }
+
+  private static Message decode(final byte raw[]) {
+    final Message msg = new Message();
+    if (msg.decode(raw) != Message.decode_status.decoded) {
+      throw new IllegalStateException("message did not decode");
+    }
+    return msg;
+  }
+}
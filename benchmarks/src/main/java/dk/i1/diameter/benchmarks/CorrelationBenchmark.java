@@ -0,0 +1,88 @@
+package dk.i1.diameter.benchmarks;
+
+import dk.i1.diameter.Message;
+import dk.i1.diameter.node.ConnectionKey;
+import dk.i1.diameter.node.NodeManager;
+import dk.i1.diameter.node.NodeSettings;
+import dk.i1.diameter.node.Peer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching answers to outstanding requests in NodeManager.handle().
+ * Each operation sends a request on a real connection (to a server that
+ * does not answer) and then hands NodeManager the answer to it directly,
+ * so the cost is hop-by-hop assignment, request registration, queueing
+ * the request for sending, and answer correlation, without waiting for the
+ * network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CorrelationBenchmark {
+  private static final int port = 13868;
+  private static final Object request_state = new Object();
+
+  private LoopbackServer server;
+  private Client client;
+  private Peer peer;
+  private ConnectionKey connkey;
+  private Message request;
+  private Message answer;
+
+  private static final class Client extends NodeManager {
+    long answers;
+
+    Client(final NodeSettings settings) {
+      super(settings);
+    }
+
+    @Override
+    protected void handleAnswer(final Message answer, final ConnectionKey answer_connkey, final Object state) {
+      if (state == request_state) {
+        answers++;
+      }
+    }
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    server = new LoopbackServer(port, false);
+    server.start();
+    client = new Client(LoopbackServer.settings(Messages.origin_host, 0));
+    client.start();
+    peer = LoopbackServer.peer(port);
+    client.node().initiateConnection(peer, true);
+    client.waitForConnectionTimeout(10000);
+    connkey = client.node().findConnection(peer);
+    request = Messages.ccr("client.example.net;1500000000;42", 7);
+    answer = Messages.cca(request);
+  }
+
+  @TearDown
+  public void tearDown() {
+    client.stop(50);
+    server.stop(50);
+  }
+
+  @Benchmark
+  public long sendAndCorrelate() throws Exception {
+    client.sendRequest(request, connkey, request_state);
+    answer.hdr.hop_by_hop_identifier = request.hdr.hop_by_hop_identifier;
+    client.handle(answer, connkey, peer);
+    return client.answers;
+  }
+}
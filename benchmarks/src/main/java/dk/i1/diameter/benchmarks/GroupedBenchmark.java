@@ -0,0 +1,78 @@
+package dk.i1.diameter.benchmarks;
+
+import dk.i1.diameter.AVP;
+import dk.i1.diameter.AVPCursor;
+import dk.i1.diameter.AVP_Grouped;
+import dk.i1.diameter.InvalidAVPLengthException;
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extracting the used units from the Multiple-Services-Credit-Control AVPs
+ * of a decoded CCR, with AVP_Grouped and with AVPCursor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupedBenchmark {
+  private Message ccr;
+
+  @Setup
+  public void setup() {
+    final byte raw[] = Messages.ccr("client.example.net;1500000000;42", 7).encode();
+    ccr = new Message();
+    ccr.decode(raw);
+  }
+
+  @Benchmark
+  public long queryAVPs() throws InvalidAVPLengthException {
+    long total = 0;
+    for (final AVP mscc : ccr.subset(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL)) {
+      for (final AVP a : new AVP_Grouped(mscc).queryAVPs()) {
+        if (a.code == ProtocolConstants.DI_RATING_GROUP) {
+          total += a.getUnsigned32();
+        } else if (a.code == ProtocolConstants.DI_USED_SERVICE_UNIT) {
+          for (final AVP u : new AVP_Grouped(a).queryAVPs()) {
+            if (u.code == ProtocolConstants.DI_CC_TOTAL_OCTETS) {
+              total += u.getUnsigned64();
+            }
+          }
+        }
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long cursor() throws InvalidAVPLengthException {
+    long total = 0;
+    for (final AVP mscc : ccr.subset(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL)) {
+      final AVPCursor c = new AVPCursor(mscc);
+      while (c.next()) {
+        if (c.code() == ProtocolConstants.DI_RATING_GROUP) {
+          total += c.getUnsigned32();
+        } else if (c.code() == ProtocolConstants.DI_USED_SERVICE_UNIT) {
+          final AVPCursor u = c.enter();
+          if (u.next(ProtocolConstants.DI_CC_TOTAL_OCTETS)) {
+            total += u.getUnsigned64();
+          }
+        }
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,67 @@
+package dk.i1.diameter.benchmarks;
+
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import dk.i1.diameter.node.Capability;
+import dk.i1.diameter.node.ConnectionKey;
+import dk.i1.diameter.node.InvalidSettingException;
+import dk.i1.diameter.node.NodeManager;
+import dk.i1.diameter.node.NodeSettings;
+import dk.i1.diameter.node.NotAnAnswerException;
+import dk.i1.diameter.node.Peer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A server on the loopback interface for the benchmarks that need a peer.
+ * It answers credit-control requests with {@link Messages#cca}, or drops
+ * all requests if it is told not to answer.
+ * <p>
+ * NB: As with the end-to-end tests the host must have a fully qualified
+ * domain name with at least two dots that resolves to this host.
+ */
+final class LoopbackServer extends NodeManager {
+  private final boolean answer_requests;
+
+  LoopbackServer(final int port, final boolean answer_requests) throws InvalidSettingException, UnknownHostException {
+    super(settings(hostId(), port));
+    this.answer_requests = answer_requests;
+  }
+
+  /** Returns the host-id of the server, which is also the host the clients connect to */
+  static String hostId() throws UnknownHostException {
+    return InetAddress.getLocalHost().getCanonicalHostName();
+  }
+
+  /** Returns the settings for a node (client or server) supporting credit-control and accounting over TCP */
+  static NodeSettings settings(final String host_id, final int port) throws InvalidSettingException {
+    final Capability capability = new Capability();
+    capability.addAuthApp(ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL);
+    capability.addAcctApp(ProtocolConstants.DIAMETER_APPLICATION_ACCOUNTING);
+    final NodeSettings settings = new NodeSettings(
+            host_id, Messages.origin_realm,
+            99999, //vendor-id
+            capability,
+            port,
+            "JavaDiameter benchmark", 0x01000000);
+    settings.setUseTCP(true);
+    settings.setUseSCTP(false);
+    return settings;
+  }
+
+  /** Returns the peer for connecting to a server on the port */
+  static Peer peer(final int port) throws Exception {
+    return new Peer(hostId(), port, Peer.TransportProtocol.tcp);
+  }
+
+  @Override
+  protected void handleRequest(final Message request, final ConnectionKey connkey, final Peer peer) {
+    if (!answer_requests || request.hdr.command_code != ProtocolConstants.DIAMETER_COMMAND_CC) {
+      return;
+    }
+    try {
+      answer(Messages.cca(request), connkey);
+    } catch (final NotAnAnswerException ex) {
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package dk.i1.diameter.benchmarks;
+
+import dk.i1.diameter.AVP;
+import dk.i1.diameter.AVP_Grouped;
+import dk.i1.diameter.AVP_Time;
+import dk.i1.diameter.AVP_UTF8String;
+import dk.i1.diameter.AVP_Unsigned32;
+import dk.i1.diameter.AVP_Unsigned64;
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import dk.i1.diameter.Utils;
+
+/**
+ * The messages used by the benchmarks.
+ * They are shaped like the traffic of an online charging system: a CCR-U
+ * reporting and requesting units for a few rating groups, the matching CCA,
+ * and an interim ACR.
+ */
+final class Messages {
+  static final String origin_host = "client.example.net";
+  static final String origin_realm = "example.net";
+  static final int rating_groups = 3;
+
+  private Messages() {
+  }
+
+  /** Credit-Control-Request (update) with Subscription-Id and Multiple-Services-Credit-Control */
+  static Message ccr(final String session_id, final int request_number) {
+    final Message ccr = new Message();
+    ccr.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_CC;
+    ccr.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL;
+    ccr.hdr.setRequest(true);
+    ccr.hdr.setProxiable(true);
+    ccr.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, session_id));
+    ccr.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, origin_host));
+    ccr.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM, origin_realm));
+    ccr.add(new AVP_UTF8String(ProtocolConstants.DI_DESTINATION_REALM, "ocs.example.net"));
+    ccr.add(new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID,
+            ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL));
+    ccr.add(new AVP_UTF8String(ProtocolConstants.DI_SERVICE_CONTEXT_ID, "32251@3gpp.org"));
+    ccr.add(new AVP_Unsigned32(ProtocolConstants.DI_CC_REQUEST_TYPE,
+            ProtocolConstants.DI_CC_REQUEST_TYPE_UPDATE_REQUEST));
+    ccr.add(new AVP_Unsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER, request_number));
+    ccr.add(new AVP_Time(ProtocolConstants.DI_EVENT_TIMESTAMP, 1500000000));
+    ccr.add(new AVP_Grouped(ProtocolConstants.DI_SUBSCRIPTION_ID,
+            new AVP_Unsigned32(ProtocolConstants.DI_SUBSCRIPTION_ID_TYPE,
+                    ProtocolConstants.DI_SUBSCRIPTION_ID_TYPE_END_USER_E164),
+            new AVP_UTF8String(ProtocolConstants.DI_SUBSCRIPTION_ID_DATA, "4512345678")));
+    ccr.add(new AVP_Grouped(ProtocolConstants.DI_SUBSCRIPTION_ID,
+            new AVP_Unsigned32(ProtocolConstants.DI_SUBSCRIPTION_ID_TYPE,
+                    ProtocolConstants.DI_SUBSCRIPTION_ID_TYPE_END_USER_IMSI),
+            new AVP_UTF8String(ProtocolConstants.DI_SUBSCRIPTION_ID_DATA, "238011234567890")));
+    ccr.add(new AVP_Unsigned32(ProtocolConstants.DI_MULTIPLE_SERVICES_INDICATOR,
+            ProtocolConstants.DI_MULTIPLE_SERVICES_INDICATOR_MULTIPLE_SERVICES_SUPPORTED));
+    for (int rg = 1; rg <= rating_groups; rg++) {
+      ccr.add(new AVP_Grouped(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL,
+              new AVP_Grouped(ProtocolConstants.DI_REQUESTED_SERVICE_UNIT),
+              new AVP_Grouped(ProtocolConstants.DI_USED_SERVICE_UNIT,
+                      new AVP_Unsigned32(ProtocolConstants.DI_CC_TIME, 300),
+                      new AVP_Unsigned64(ProtocolConstants.DI_CC_TOTAL_OCTETS, 1048576L * rg),
+                      new AVP_Unsigned64(ProtocolConstants.DI_CC_INPUT_OCTETS, 65536L * rg),
+                      new AVP_Unsigned64(ProtocolConstants.DI_CC_OUTPUT_OCTETS, 983040L * rg)),
+              new AVP_Unsigned32(ProtocolConstants.DI_SERVICE_IDENTIFIER, 1000 + rg),
+              new AVP_Unsigned32(ProtocolConstants.DI_RATING_GROUP, rg)));
+    }
+    Utils.setMandatory_RFC3588(ccr);
+    Utils.setMandatory_RFC4006(ccr);
+    return ccr;
+  }
+
+  /** Credit-Control-Answer granting units for each rating group of the request */
+  static Message cca(final Message ccr) {
+    final Message cca = new Message();
+    cca.prepareResponse(ccr);
+    cca.add(ccr.find(ProtocolConstants.DI_SESSION_ID));
+    cca.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_SUCCESS));
+    cca.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, "ocs.example.net"));
+    cca.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM, "example.net"));
+    cca.add(ccr.find(ProtocolConstants.DI_AUTH_APPLICATION_ID));
+    cca.add(ccr.find(ProtocolConstants.DI_CC_REQUEST_TYPE));
+    cca.add(ccr.find(ProtocolConstants.DI_CC_REQUEST_NUMBER));
+    for (int rg = 1; rg <= rating_groups; rg++) {
+      cca.add(new AVP_Grouped(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL,
+              new AVP_Grouped(ProtocolConstants.DI_GRANTED_SERVICE_UNIT,
+                      new AVP_Unsigned32(ProtocolConstants.DI_CC_TIME, 3600),
+                      new AVP_Unsigned64(ProtocolConstants.DI_CC_TOTAL_OCTETS, 10485760L)),
+              new AVP_Unsigned32(ProtocolConstants.DI_RATING_GROUP, rg),
+              new AVP_Unsigned32(ProtocolConstants.DI_VALIDITY_TIME, 1800),
+              new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_SUCCESS)));
+    }
+    Utils.setMandatory_RFC3588(cca);
+    Utils.setMandatory_RFC4006(cca);
+    return cca;
+  }
+
+  /** Interim Accounting-Request */
+  static Message acr(final String session_id, final int record_number) {
+    final Message acr = new Message();
+    acr.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_ACCOUNTING;
+    acr.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_ACCOUNTING;
+    acr.hdr.setRequest(true);
+    acr.hdr.setProxiable(true);
+    acr.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, session_id));
+    acr.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, origin_host));
+    acr.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM, origin_realm));
+    acr.add(new AVP_UTF8String(ProtocolConstants.DI_DESTINATION_REALM, "acct.example.net"));
+    acr.add(new AVP_Unsigned32(ProtocolConstants.DI_ACCOUNTING_RECORD_TYPE,
+            ProtocolConstants.DI_ACCOUNTING_RECORD_TYPE_INTERIM_RECORD));
+    acr.add(new AVP_Unsigned32(ProtocolConstants.DI_ACCOUNTING_RECORD_NUMBER, record_number));
+    acr.add(new AVP_Unsigned32(ProtocolConstants.DI_ACCT_APPLICATION_ID,
+            ProtocolConstants.DIAMETER_APPLICATION_ACCOUNTING));
+    acr.add(new AVP_UTF8String(ProtocolConstants.DI_USER_NAME, "user@example.net"));
+    acr.add(new AVP_Unsigned32(ProtocolConstants.DI_ACCT_INTERIM_INTERVAL, 300));
+    acr.add(new AVP_Unsigned32(ProtocolConstants.DI_ORIGIN_STATE_ID, 1500000000));
+    acr.add(new AVP_Time(ProtocolConstants.DI_EVENT_TIMESTAMP, 1500000000));
+    acr.add(new AVP_Unsigned32(ProtocolConstants.DI_ACCT_SESSION_TIME, 900));
+    acr.add(new AVP_Unsigned64(ProtocolConstants.DI_ACCOUNTING_INPUT_OCTETS, 123456789L));
+    acr.add(new AVP_Unsigned64(ProtocolConstants.DI_ACCOUNTING_OUTPUT_OCTETS, 987654321L));
+    acr.add(new AVP_Unsigned64(ProtocolConstants.DI_ACCOUNTING_INPUT_PACKETS, 123456L));
+    acr.add(new AVP_Unsigned64(ProtocolConstants.DI_ACCOUNTING_OUTPUT_PACKETS, 654321L));
+    Utils.setMandatory_RFC3588(acr);
+    return acr;
+  }
+
+  /** Returns the first Multiple-Services-Credit-Control AVP of a message */
+  static AVP firstMSCC(final Message msg) {
+    return msg.find(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL);
+  }
+}
@@ -0,0 +1,91 @@
+package dk.i1.diameter.benchmarks;
+
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import dk.i1.diameter.node.Peer;
+import dk.i1.diameter.session.BaseSession;
+import dk.i1.diameter.session.SessionManager;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A CCR/CCA round trip through a SessionManager and a server over TCP on
+ * the loopback interface. One request is outstanding at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionRoundTripBenchmark {
+  private static final int port = 13869;
+  private static final int client_port = 13870; //SessionManager requires that inbound connections are allowed
+
+  private LoopbackServer server;
+  private SessionManager session_manager;
+  private CCSession session;
+  private int request_number;
+
+  private static final class CCSession extends BaseSession {
+    final BlockingQueue<Message> answers = new ArrayBlockingQueue<Message>(1);
+
+    CCSession(final SessionManager session_manager) {
+      super(ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL, session_manager);
+    }
+
+    @Override
+    protected void startAuth() {
+      //no authentication, the session only carries the CCRs
+    }
+
+    @Override
+    protected void startReauth() {
+    }
+
+    @Override
+    public void handleAnswer(final Message answer, final Object state) {
+      answers.offer(answer);
+    }
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    server = new LoopbackServer(port, true);
+    server.start();
+    session_manager = new SessionManager(LoopbackServer.settings(Messages.origin_host, client_port),
+            new Peer[]{LoopbackServer.peer(port)});
+    session_manager.start();
+    session_manager.waitForConnectionTimeout(10000);
+    session = new CCSession(session_manager);
+    session.openSession();
+  }
+
+  @TearDown
+  public void tearDown() {
+    session_manager.stop(50);
+    server.stop(50);
+  }
+
+  @Benchmark
+  public Message roundTrip() throws Exception {
+    session_manager.sendRequest(Messages.ccr(session.sessionId(), ++request_number), session, null);
+    final Message cca = session.answers.poll(10, TimeUnit.SECONDS);
+    if (cca == null) {
+      throw new IllegalStateException("no answer");
+    }
+    return cca;
+  }
+}
@@ -0,0 +1,73 @@
+package dk.i1.diameter.benchmarks;
+
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import dk.i1.diameter.Utils;
+import dk.i1.diameter.Utils.ABNFComponent;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ABNF checking and M-bit setting of a decoded CCR.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+  /** ABNF for CCR (RFC4006 section 3.1) */
+  static final ABNFComponent abnf_ccr[] = {
+    new ABNFComponent(true, 1, 1, ProtocolConstants.DI_SESSION_ID),
+    new ABNFComponent(false, 1, 1, ProtocolConstants.DI_ORIGIN_HOST),
+    new ABNFComponent(false, 1, 1, ProtocolConstants.DI_ORIGIN_REALM),
+    new ABNFComponent(false, 1, 1, ProtocolConstants.DI_DESTINATION_REALM),
+    new ABNFComponent(false, 1, 1, ProtocolConstants.DI_AUTH_APPLICATION_ID),
+    new ABNFComponent(false, 1, 1, ProtocolConstants.DI_SERVICE_CONTEXT_ID),
+    new ABNFComponent(false, 1, 1, ProtocolConstants.DI_CC_REQUEST_TYPE),
+    new ABNFComponent(false, 1, 1, ProtocolConstants.DI_CC_REQUEST_NUMBER),
+    new ABNFComponent(false, 0, 1, ProtocolConstants.DI_DESTINATION_HOST),
+    new ABNFComponent(false, 0, 1, ProtocolConstants.DI_USER_NAME),
+    new ABNFComponent(false, 0, 1, ProtocolConstants.DI_ORIGIN_STATE_ID),
+    new ABNFComponent(false, 0, 1, ProtocolConstants.DI_EVENT_TIMESTAMP),
+    new ABNFComponent(false, 0, -1, ProtocolConstants.DI_SUBSCRIPTION_ID),
+    new ABNFComponent(false, 0, 1, ProtocolConstants.DI_MULTIPLE_SERVICES_INDICATOR),
+    new ABNFComponent(false, 0, -1, ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL),
+    new ABNFComponent(false, 0, -1, ProtocolConstants.DI_PROXY_INFO),
+    new ABNFComponent(false, 0, -1, ProtocolConstants.DI_ROUTE_RECORD),
+    new ABNFComponent(false, 0, -1, -1),
+  };
+
+  private Message ccr;
+
+  @Setup
+  public void setup() {
+    final byte raw[] = Messages.ccr("client.example.net;1500000000;42", 7).encode();
+    ccr = new Message();
+    ccr.decode(raw);
+    if (Utils.checkABNF(ccr, abnf_ccr) != null) {
+      throw new IllegalStateException("CCR does not conform to the ABNF");
+    }
+  }
+
+  @Benchmark
+  public Utils.CheckABNFFailure checkABNF() {
+    return Utils.checkABNF(ccr, abnf_ccr);
+  }
+
+  @Benchmark
+  public Message setMandatory_RFC3588() {
+    Utils.setMandatory_RFC3588(ccr);
+    return ccr;
+  }
+}
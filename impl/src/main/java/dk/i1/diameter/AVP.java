@@ -1,5 +1,7 @@
 package dk.i1.diameter;
 
+import java.nio.ByteBuffer;
+
 /**
  * A Diameter AVP.
  * See RFC3588 section 4 for details.
@@ -21,7 +23,16 @@ package dk.i1.diameter;
  * @see ProtocolConstants
  */
 public class AVP {
+  /**
+   * The buffer holding the payload. For AVPs decoded as views (see
+   * {@link Message#decodeShared}) this is the buffer of the whole message,
+   * otherwise it is owned by the AVP and payload_offset is 0.
+   */
   byte payload[];
+  int payload_offset;
+  int payload_length;
+  //Number of embedded AVPs once the payload has been validated as grouped. -1: not checked yet, -2: not valid
+  int grouped_count = -1;
 
   /** The AVP code */
   public int code;
@@ -30,9 +41,9 @@ public class AVP {
   /** The vendor ID. Assigning directly to this has the delayed effect of of setting/unsetting the vendor flag bit */
   public int vendor_id;
 
-  private static final int avp_flag_vendor = 0x80;
-  private static final int avp_flag_mandatory = 0x40;
-  private static final int avp_flag_private = 0x20;
+  static final int avp_flag_vendor = 0x80;
+  static final int avp_flag_mandatory = 0x40;
+  static final int avp_flag_private = 0x20;
 
   /**
    * Default constructor
@@ -43,8 +54,10 @@ public class AVP {
 
   /** Copy constructor (deep copy) */
   public AVP(final AVP a) {
-    payload = new byte[a.payload.length];
-    System.arraycopy(a.payload, 0, payload, 0, a.payload.length);
+    payload = new byte[a.payload_length];
+    System.arraycopy(a.payload, a.payload_offset, payload, 0, a.payload_length);
+    payload_length = a.payload_length;
+    grouped_count = a.grouped_count;
     code = a.code;
     flags = a.flags;
     vendor_id = a.vendor_id;
@@ -71,6 +84,7 @@ public class AVP {
     this.code = code;
     this.vendor_id = vendor_id;
     this.payload = payload;
+    this.payload_length = payload.length;
   }
 
   static final int decodeSize(final byte[] b, final int offset, final int bytes) {
@@ -94,6 +108,19 @@ public class AVP {
   }
 
   boolean decode(final byte[] b, final int offset, final int bytes) {
+    if (!decodeView(b, offset, bytes)) {
+      return false;
+    }
+    setPayload(b, payload_offset, payload_length);
+    return true;
+  }
+
+  /**
+   * Decode the AVP without copying the payload.
+   * The AVP will refer to the payload in b, so b must not be modified
+   * afterwards.
+   */
+  boolean decodeView(final byte[] b, final int offset, final int bytes) {
     if (bytes < 8) {
       return false;
     }
@@ -119,8 +146,10 @@ public class AVP {
     } else {
       vendor_id = 0;
     }
-    setPayload(b, offset + i, length);
-    i += length;
+    payload = b;
+    payload_offset = offset + i;
+    payload_length = length;
+    grouped_count = -1;
     return true;
   }
 
@@ -129,7 +158,7 @@ public class AVP {
     if (vendor_id != 0) {
       sz += 4;
     }
-    sz += (payload.length + 3) & ~3;
+    sz += (payload_length + 3) & ~3;
     return sz;
   }
 
@@ -138,7 +167,7 @@ public class AVP {
     if (vendor_id != 0) {
       sz += 4;
     }
-    sz += payload.length;
+    sz += payload_length;
 
     int f = flags;
     if (vendor_id != 0) {
@@ -158,17 +187,48 @@ public class AVP {
       i += 4;
     }
 
-    System.arraycopy(payload, 0, b, offset + i, payload.length);
+    System.arraycopy(payload, payload_offset, b, offset + i, payload_length);
 
     return encodeSize();
   }
 
+  /**
+   * Encode the AVP at the current position of the buffer, including padding.
+   * The buffer must be big-endian and have room for encodeSize() bytes.
+   */
+  int encode(final ByteBuffer bb) {
+    int sz = 4 + 4;
+    if (vendor_id != 0) {
+      sz += 4;
+    }
+    sz += payload_length;
+
+    int f = flags;
+    if (vendor_id != 0) {
+      f |= avp_flag_vendor;
+    } else {
+      f &= ~avp_flag_vendor;
+    }
+
+    bb.putInt(code);
+    bb.putInt(sz | (f << 24));
+    if (vendor_id != 0) {
+      bb.putInt(vendor_id);
+    }
+    bb.put(payload, payload_offset, payload_length);
+    for (int padding = (4 - (payload_length & 3)) & 3; padding > 0; padding--) {
+      bb.put((byte) 0);
+    }
+
+    return (sz + 3) & ~3;
+  }
+
   byte[] encode() {
     int sz = 4 + 4;
     if (vendor_id != 0) {
       sz += 4;
     }
-    sz += payload.length;
+    sz += payload_length;
 
     int f = flags;
     if (vendor_id != 0) {
@@ -190,7 +250,7 @@ public class AVP {
       i += 4;
     }
 
-    System.arraycopy(payload, 0, b, i, payload.length);
+    System.arraycopy(payload, payload_offset, b, i, payload_length);
 
     return b;
   }
@@ -204,13 +264,110 @@ public class AVP {
    * @since 0.9.6.5
    */
   public byte[] queryPayload() {
-    final byte tmp[] = new byte[payload.length];
-    System.arraycopy(payload, 0, tmp, 0, payload.length);
+    final byte tmp[] = new byte[payload_length];
+    System.arraycopy(payload, payload_offset, tmp, 0, payload_length);
     return tmp;
   }
 
   int queryPayloadSize() {
-    return payload.length;
+    return payload_length;
+  }
+
+  /**
+   * Returns the number of AVPs embedded in the payload, or -2 if the payload
+   * is not a valid sequence of AVPs. The result is cached until the payload
+   * is replaced.
+   */
+  int groupedCount() {
+    if (grouped_count == -1) {
+      int offset = 0;
+      int n = 0;
+      while (offset < payload_length) {
+        final int avp_sz = decodeSize(payload, payload_offset + offset, payload_length - offset);
+        if (avp_sz == 0 || avp_sz > payload_length - offset) {
+          grouped_count = -2;
+          return grouped_count;
+        }
+        offset += avp_sz;
+        n++;
+      }
+      grouped_count = n;
+    }
+    return grouped_count;
+  }
+
+  /**
+   * Returns the payload as a 32-bit integer.
+   * This is the same as <code>new AVP_Unsigned32(avp).queryValue()</code> but
+   * reads the payload directly without copying it.
+   * 
+   * @throws InvalidAVPLengthException If the payload is not 4 bytes
+   * @since 0.9.6.14
+   */
+  public int getUnsigned32() throws InvalidAVPLengthException {
+    if (payload_length != 4) {
+      throw new InvalidAVPLengthException(this);
+    }
+    return packunpack.unpack32(payload, payload_offset);
+  }
+
+  /**
+   * Returns the payload as a signed 32-bit integer.
+   * Same as {@link #getUnsigned32}, for readability when the AVP is of type Integer32.
+   * 
+   * @throws InvalidAVPLengthException If the payload is not 4 bytes
+   * @since 0.9.6.14
+   */
+  public int getInteger32() throws InvalidAVPLengthException {
+    return getUnsigned32();
+  }
+
+  /**
+   * Returns the payload as a 64-bit integer.
+   * This is the same as <code>new AVP_Unsigned64(avp).queryValue()</code> but
+   * reads the payload directly without copying it.
+   * 
+   * @throws InvalidAVPLengthException If the payload is not 8 bytes
+   * @since 0.9.6.14
+   */
+  public long getUnsigned64() throws InvalidAVPLengthException {
+    if (payload_length != 8) {
+      throw new InvalidAVPLengthException(this);
+    }
+    return packunpack.unpack64(payload, payload_offset);
+  }
+
+  /**
+   * Returns the payload as a signed 64-bit integer.
+   * Same as {@link #getUnsigned64}, for readability when the AVP is of type Integer64.
+   * 
+   * @throws InvalidAVPLengthException If the payload is not 8 bytes
+   * @since 0.9.6.14
+   */
+  public long getInteger64() throws InvalidAVPLengthException {
+    return getUnsigned64();
+  }
+
+  /**
+   * Returns the payload as a string.
+   * This is the same as <code>new AVP_UTF8String(avp).queryValue()</code> but
+   * decodes the payload directly without copying it first.
+   * 
+   * @since 0.9.6.14
+   */
+  public String getUTF8() {
+    return new String(payload, payload_offset, payload_length, java.nio.charset.StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns a shallow copy of the AVP.
+   * The copy has its own code, flags and vendor ID but shares the payload
+   * with this AVP.
+   */
+  AVP shallowCopy() {
+    final AVP a = new AVP();
+    a.inline_shallow_replace(this);
+    return a;
   }
 
   void setPayload(final byte[] payload_) {
@@ -221,6 +378,21 @@ public class AVP {
     final byte[] new_payload = new byte[count];
     System.arraycopy(b, from, new_payload, 0, count);
     payload = new_payload;
+    payload_offset = 0;
+    payload_length = count;
+    grouped_count = -1;
+  }
+
+  /** Overwrite a 4-byte payload in place */
+  void setPayload32(final int value) {
+    packunpack.pack32(payload, payload_offset, value);
+    grouped_count = -1;
+  }
+
+  /** Overwrite an 8-byte payload in place */
+  void setPayload64(final long value) {
+    packunpack.pack64(payload, payload_offset, value);
+    grouped_count = -1;
   }
 
   /** Returns if the AVP is vendor-specific (has non-zero vendor_id) */
@@ -292,6 +464,9 @@ public class AVP {
    */
   void inline_shallow_replace(final AVP a) {
     payload = a.payload;
+    payload_offset = a.payload_offset;
+    payload_length = a.payload_length;
+    grouped_count = a.grouped_count;
     code = a.code;
     flags = a.flags;
     vendor_id = a.vendor_id;
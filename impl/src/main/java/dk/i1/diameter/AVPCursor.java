@@ -0,0 +1,254 @@
+package dk.i1.diameter;
+
+/**
+ * A cursor over the AVPs embedded in a grouped AVP.
+ * The cursor walks the payload of the grouped AVP in place. Nothing is
+ * copied and no AVP objects are created unless you ask for one with
+ * {@link #avp}. Nested grouped AVPs are traversed with {@link #enter}.
+ * Example:
+ *
+ * <pre>
+for(AVP avp : msg.subset(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL)) {
+    AVPCursor c = new AVPCursor(avp);
+    while(c.next()) {
+        switch(c.code()) {
+            case ProtocolConstants.DI_RATING_GROUP:
+                int rating_group = c.getUnsigned32();
+                ...
+            case ProtocolConstants.DI_USED_SERVICE_UNIT:
+                AVPCursor usu = c.enter();
+                if(usu.next(ProtocolConstants.DI_CC_TOTAL_OCTETS)) {
+                    long octets = usu.getUnsigned64();
+                    ...
+                }
+                ...
+        }
+    }
+}
+ * </pre>
+ *
+ * The embedded AVPs are validated as the cursor reaches them, so malformed
+ * content is reported by {@link #next} throwing {@link InvalidAVPLengthException}.
+ *
+ * @since 0.9.6.14
+ */
+public final class AVPCursor {
+  //The grouped AVP, only created when needed for an exception when traversing nested AVPs
+  private AVP grouped;
+  private final byte buf[];
+  private final int start;
+  private final int end;
+  private final int grouped_start;
+  private final int grouped_size;
+  private int pos; //start of the next AVP
+  //the current AVP
+  private int cur_start;
+  private int cur_size;
+  private int cur_code;
+  private int cur_flags;
+  private int cur_vendor_id;
+  private int cur_payload_offset;
+  private int cur_payload_length;
+
+  /**
+   * Creates a cursor over the AVPs embedded in the payload of an AVP.
+   * The cursor is positioned before the first embedded AVP.
+   *
+   * @param grouped The AVP. It is not required to be an AVP_Grouped instance.
+   */
+  public AVPCursor(final AVP grouped) {
+    this(grouped, grouped.payload, grouped.payload_offset, grouped.payload_length, 0, 0);
+  }
+
+  private AVPCursor(final AVP grouped, final byte buf[], final int offset, final int bytes,
+                    final int grouped_start, final int grouped_size) {
+    this.grouped = grouped;
+    this.buf = buf;
+    this.start = offset;
+    this.end = offset + bytes;
+    this.grouped_start = grouped_start;
+    this.grouped_size = grouped_size;
+    rewind();
+  }
+
+  private AVP grouped() {
+    if (grouped == null) {
+      grouped = new AVP();
+      grouped.decodeView(buf, grouped_start, grouped_size);
+    }
+    return grouped;
+  }
+
+  /** Positions the cursor before the first embedded AVP again */
+  public void rewind() {
+    pos = start;
+    cur_start = -1;
+  }
+
+  /**
+   * Advances to the next embedded AVP.
+   *
+   * @return True if the cursor is positioned on an AVP, false if there are no more.
+   * @throws InvalidAVPLengthException If the next AVP is malformed. The exception refers to the grouped AVP.
+   */
+  public boolean next() throws InvalidAVPLengthException {
+    if (pos >= end) {
+      cur_start = -1;
+      return false;
+    }
+    final int sz = AVP.decodeSize(buf, pos, end - pos);
+    if (sz == 0 || sz > end - pos) {
+      cur_start = -1;
+      pos = end;
+      throw new InvalidAVPLengthException(grouped());
+    }
+    final int flags_and_length = packunpack.unpack32(buf, pos + 4);
+    cur_start = pos;
+    cur_size = sz;
+    cur_code = packunpack.unpack32(buf, pos);
+    cur_flags = (flags_and_length >> 24) & 0xff;
+    int header = 8;
+    if ((cur_flags & AVP.avp_flag_vendor) != 0) {
+      cur_vendor_id = packunpack.unpack32(buf, pos + 8);
+      header = 12;
+    } else {
+      cur_vendor_id = 0;
+    }
+    cur_payload_offset = pos + header;
+    cur_payload_length = (flags_and_length & 0x00FFFFFF) - header;
+    pos += sz;
+    return true;
+  }
+
+  /**
+   * Advances to the next embedded AVP with the specified code.
+   * Implemented as <code>next(code,0)</code>
+   */
+  public boolean next(final int code) throws InvalidAVPLengthException {
+    return next(code, 0);
+  }
+
+  /**
+   * Advances to the next embedded AVP with the specified code and vendor ID.
+   * As with {@link Message#iterator(int,int)} a vendor_id of 0 matches any vendor.
+   *
+   * @return True if such an AVP was found, false if there are no more.
+   */
+  public boolean next(final int code, final int vendor_id) throws InvalidAVPLengthException {
+    while (next()) {
+      if (cur_code == code && (vendor_id == 0 || cur_vendor_id == vendor_id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void checkPositioned() {
+    if (cur_start < 0) {
+      throw new IllegalStateException("cursor is not positioned on an AVP");
+    }
+  }
+
+  /** Returns the code of the current AVP */
+  public int code() {
+    checkPositioned();
+    return cur_code;
+  }
+
+  /** Returns the vendor ID of the current AVP. 0 if it is not vendor-specific */
+  public int vendorId() {
+    checkPositioned();
+    return cur_vendor_id;
+  }
+
+  /** Returns if the mandatory (M) flag is set on the current AVP */
+  public boolean isMandatory() {
+    checkPositioned();
+    return (cur_flags & AVP.avp_flag_mandatory) != 0;
+  }
+
+  /** Returns if the private (P) flag is set on the current AVP */
+  public boolean isPrivate() {
+    checkPositioned();
+    return (cur_flags & AVP.avp_flag_private) != 0;
+  }
+
+  /** Returns the (unpadded) payload size of the current AVP */
+  public int payloadSize() {
+    checkPositioned();
+    return cur_payload_length;
+  }
+
+  /**
+   * Returns the payload of the current AVP as a 32-bit integer.
+   *
+   * @throws InvalidAVPLengthException If the payload is not 4 bytes
+   */
+  public int getUnsigned32() throws InvalidAVPLengthException {
+    checkPositioned();
+    if (cur_payload_length != 4) {
+      throw new InvalidAVPLengthException(avp());
+    }
+    return packunpack.unpack32(buf, cur_payload_offset);
+  }
+
+  /**
+   * Returns the payload of the current AVP as a signed 32-bit integer.
+   *
+   * @throws InvalidAVPLengthException If the payload is not 4 bytes
+   */
+  public int getInteger32() throws InvalidAVPLengthException {
+    return getUnsigned32();
+  }
+
+  /**
+   * Returns the payload of the current AVP as a 64-bit integer.
+   *
+   * @throws InvalidAVPLengthException If the payload is not 8 bytes
+   */
+  public long getUnsigned64() throws InvalidAVPLengthException {
+    checkPositioned();
+    if (cur_payload_length != 8) {
+      throw new InvalidAVPLengthException(avp());
+    }
+    return packunpack.unpack64(buf, cur_payload_offset);
+  }
+
+  /**
+   * Returns the payload of the current AVP as a signed 64-bit integer.
+   *
+   * @throws InvalidAVPLengthException If the payload is not 8 bytes
+   */
+  public long getInteger64() throws InvalidAVPLengthException {
+    return getUnsigned64();
+  }
+
+  /** Returns the payload of the current AVP as a string */
+  public String getUTF8() {
+    checkPositioned();
+    return new String(buf, cur_payload_offset, cur_payload_length, java.nio.charset.StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns a cursor over the AVPs embedded in the current AVP.
+   * This is how nested grouped AVPs are traversed. The returned cursor is
+   * independent of this one.
+   */
+  public AVPCursor enter() {
+    checkPositioned();
+    return new AVPCursor(null, buf, cur_payload_offset, cur_payload_length, cur_start, cur_size);
+  }
+
+  /**
+   * Returns the current AVP.
+   * The returned AVP shares the payload with the grouped AVP instead of
+   * having its own copy. Use the copy constructor if you need it to be
+   * independent.
+   */
+  public AVP avp() {
+    checkPositioned();
+    final AVP a = new AVP();
+    a.decodeView(buf, cur_start, cur_size);
+    return a;
+  }
+}
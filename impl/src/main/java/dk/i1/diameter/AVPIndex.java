@@ -0,0 +1,64 @@
+package dk.i1.diameter;
+
+import java.util.List;
+
+/**
+ * Index from AVP code to the positions of the AVPs with that code.
+ * The positions of AVPs with the same code are chained in ascending order
+ * through next[]. The index is built in a single pass over the AVPs and is
+ * never updated; it is simply thrown away when the AVP list changes.
+ */
+final class AVPIndex {
+  /** The modification count of the AVP list the index was built from */
+  final int mod_count;
+  /** Next position with the same code, or -1 */
+  final int next[];
+  //Open addressing table. A slot is free when slot_first is -1
+  private final int slot_code[];
+  private final int slot_first[];
+  private final int slot_count[];
+  private final int mask;
+
+  AVPIndex(final List<AVP> avps, final int mod_count) {
+    this.mod_count = mod_count;
+    final int n = avps.size();
+    int slots = 16;
+    while (slots < n * 2) {
+      slots <<= 1;
+    }
+    mask = slots - 1;
+    slot_code = new int[slots];
+    slot_first = new int[slots];
+    slot_count = new int[slots];
+    java.util.Arrays.fill(slot_first, -1);
+    next = new int[n];
+    //walk backwards so the chains end up in ascending order
+    for (int i = n - 1; i >= 0; i--) {
+      final int code = avps.get(i).code;
+      final int slot = slot(code);
+      slot_code[slot] = code;
+      next[i] = slot_first[slot];
+      slot_first[slot] = i;
+      slot_count[slot]++;
+    }
+  }
+
+  private int slot(final int code) {
+    final int h = code * 0x9E3779B9;
+    int slot = (h ^ (h >>> 16)) & mask;
+    while (slot_first[slot] != -1 && slot_code[slot] != code) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /** Returns the position of the first AVP with the code, or -1 */
+  int first(final int code) {
+    return slot_first[slot(code)];
+  }
+
+  /** Returns the number of AVPs with the code */
+  int count(final int code) {
+    return slot_count[slot(code)];
+  }
+}
@@ -17,7 +17,7 @@ public final class AVP_Address extends AVP_OctetString {
     if (a.queryPayloadSize() < 2) {
       throw new InvalidAVPLengthException(a);
     }
-    final int address_family = packunpack.unpack16(payload, 0);
+    final int address_family = packunpack.unpack16(payload, payload_offset);
     if (address_family == 1) {
       if (a.queryPayloadSize() != 2 + 4) {
         throw new InvalidAVPLengthException(a);
@@ -16,61 +16,67 @@ ccr.add(new AVP_Grouped(ProtocolConstants.DI_VENDOR_SPECIFIC_APPLICATION_ID,
  * </pre>
  */
 public class AVP_Grouped extends AVP {
+  /**
+   * Construct a grouped AVP from a generic AVP.
+   * The payload is validated to be a sequence of AVPs. The result of the
+   * validation is remembered in both AVPs, so constructing an AVP_Grouped
+   * from the same AVP again does not repeat it.
+   * 
+   * @throws InvalidAVPLengthException If the payload is not a valid sequence of AVPs
+   */
   public AVP_Grouped(final AVP a) throws InvalidAVPLengthException {
     super(a);
-
-    int offset = 0;
-    final byte raw[] = queryPayload();
-    int i = 0;
-    while (offset < raw.length) {
-      final int avp_sz = AVP.decodeSize(raw, offset, raw.length - offset);
-      if (avp_sz == 0) {
-        throw new InvalidAVPLengthException(a);
-      }
-      offset += avp_sz;
-      i++;
-    }
-
-    if (offset > raw.length) {
+    if (a.groupedCount() < 0) {
       throw new InvalidAVPLengthException(a);
     }
+    grouped_count = a.grouped_count;
   }
 
   public AVP_Grouped(final int code, final AVP... g) {
     super(code, avps2byte(g));
+    grouped_count = g.length;
   }
 
   public AVP_Grouped(final int code, final int vendor_id, final AVP... g) {
     super(code, vendor_id, avps2byte(g));
+    grouped_count = g.length;
   }
 
+  /**
+   * Returns the embedded AVPs.
+   * The returned AVPs refer to the payload of this AVP instead of having
+   * their own copy. Use the copy constructor if you need them to be
+   * independent. If you just need to look at the embedded AVPs then
+   * {@link #cursor} is cheaper.
+   */
   public AVP[] queryAVPs() {
-    int offset = 0;
-    final byte raw[] = queryPayload();
-    int i = 0;
-    while (offset < raw.length) {
-      final int avp_sz = AVP.decodeSize(raw, offset, raw.length - offset);
-      if (avp_sz == 0) {
-        return null;
-      }
-      offset += avp_sz;
-      i++;
+    final int n = groupedCount();
+    if (n < 0) {
+      return null;
     }
-    final AVP a[] = new AVP[i];
-    offset = 0;
-    i = 0;
-    while (offset < raw.length) {
-      final int avp_sz = AVP.decodeSize(raw, offset, raw.length - offset);
+    final AVP a[] = new AVP[n];
+    int offset = 0;
+    for (int i = 0; i < n; i++) {
+      final int avp_sz = AVP.decodeSize(payload, payload_offset + offset, payload_length - offset);
       a[i] = new AVP();
-      a[i].decode(raw, offset, avp_sz);
+      a[i].decodeView(payload, payload_offset + offset, avp_sz);
       offset += avp_sz;
-      i++;
     }
     return a;
   }
 
+  /**
+   * Returns a cursor over the embedded AVPs.
+   * 
+   * @since 0.9.6.14
+   */
+  public AVPCursor cursor() {
+    return new AVPCursor(this);
+  }
+
   public void setAVPs(final AVP... g) {
     setPayload(avps2byte(g));
+    grouped_count = g.length;
   }
 
   static private final byte[] avps2byte(final AVP g[]) {
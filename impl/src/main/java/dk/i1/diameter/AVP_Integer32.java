@@ -20,11 +20,11 @@ public final class AVP_Integer32 extends AVP {
   }
 
   public int queryValue() {
-    return packunpack.unpack32(payload, 0);
+    return packunpack.unpack32(payload, payload_offset);
   }
 
   public void setValue(final int value) {
-    packunpack.pack32(payload, 0, value);
+    setPayload32(value);
   }
 
   static private byte[] int2byte(final int value) {
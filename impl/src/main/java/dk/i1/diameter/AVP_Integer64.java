@@ -20,11 +20,11 @@ public final class AVP_Integer64 extends AVP {
   }
 
   public long queryValue() {
-    return packunpack.unpack64(payload, 0);
+    return packunpack.unpack64(payload, payload_offset);
   }
 
   public void setValue(final long value) {
-    packunpack.pack64(payload, 0, value);
+    setPayload64(value);
   }
 
   static private byte[] long2byte(final long value) {
@@ -18,7 +18,7 @@ public final class AVP_UTF8String extends AVP {
 
   public String queryValue() {
     try {
-      return new String(queryPayload(), "UTF-8");
+      return new String(payload, payload_offset, payload_length, "UTF-8");
     } catch (final java.io.UnsupportedEncodingException e) {
       return null;
     }
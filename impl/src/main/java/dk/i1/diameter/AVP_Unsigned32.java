@@ -22,11 +22,11 @@ public class AVP_Unsigned32 extends AVP {
   }
 
   public int queryValue() {
-    return packunpack.unpack32(payload, 0);
+    return packunpack.unpack32(payload, payload_offset);
   }
 
   public void setValue(final int value) {
-    packunpack.pack32(payload, 0, value);
+    setPayload32(value);
   }
 
   static private final byte[] int2byte(final int value) {
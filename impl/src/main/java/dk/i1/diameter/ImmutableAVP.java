@@ -0,0 +1,108 @@
+package dk.i1.diameter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An AVP that cannot be modified, so the same instance can be added to any
+ * number of messages, by any number of threads.
+ * The AVP is encoded when the instance is constructed, and those bytes are
+ * what is written when a message holding it is encoded.
+ * <p>
+ * Setting the M or P flag to the value it already has is allowed (
+ * {@link Utils#setMandatory_RFC3588(Message)} does that), any other change
+ * throws UnsupportedOperationException. The public fields {@link #code} and
+ * {@link #vendor_id} cannot be protected; assigning to them is not supported
+ * and does not change the encoded AVP.
+ *
+ * @since 0.9.6.14
+ */
+public final class ImmutableAVP extends AVP {
+  private final byte encoded[];
+
+  /**
+   * Constructs an immutable copy of an AVP.
+   *
+   * @param a The AVP to copy. It is not modified.
+   */
+  public ImmutableAVP(final AVP a) {
+    super(a);
+    encoded = new AVP(a).encode();
+    groupedCount(); //cached now, so it is not written later
+  }
+
+  private static UnsupportedOperationException immutable() {
+    return new UnsupportedOperationException("AVP is immutable");
+  }
+
+  @Override
+  boolean decode(final byte[] b, final int offset, final int bytes) {
+    throw immutable();
+  }
+
+  @Override
+  boolean decodeView(final byte[] b, final int offset, final int bytes) {
+    throw immutable();
+  }
+
+  @Override
+  int encodeSize() {
+    return encoded.length;
+  }
+
+  @Override
+  int encode(final byte b[], final int offset) {
+    System.arraycopy(encoded, 0, b, offset, encoded.length);
+    return encoded.length;
+  }
+
+  @Override
+  int encode(final ByteBuffer bb) {
+    bb.put(encoded);
+    return encoded.length;
+  }
+
+  @Override
+  byte[] encode() {
+    return encoded.clone();
+  }
+
+  @Override
+  void setPayload(final byte[] b, final int from, final int count) {
+    throw immutable();
+  }
+
+  @Override
+  void setPayload32(final int value) {
+    throw immutable();
+  }
+
+  @Override
+  void setPayload64(final long value) {
+    throw immutable();
+  }
+
+  @Override
+  public void setMandatory(final boolean b) {
+    if (b != isMandatory()) {
+      throw immutable();
+    }
+  }
+
+  @Override
+  public void setPrivate(final boolean b) {
+    if (b != isPrivate()) {
+      throw immutable();
+    }
+  }
+
+  @Override
+  public AVP setM() {
+    setMandatory(true);
+    return this;
+  }
+
+  @Override
+  void inline_shallow_replace(final AVP a) {
+    throw immutable();
+  }
+}
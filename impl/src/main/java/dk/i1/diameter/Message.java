@@ -1,8 +1,12 @@
 package dk.i1.diameter;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.NoSuchElementException;
 
 /**
  * A Diameter Message.
@@ -45,11 +49,47 @@ if(avp!=null) {
     ..do something sensible with reply-message
 }
  * </pre>
+ * <p>
+ * Lookups by AVP code ({@link #find}, {@link #subset}, {@link #iterator(int)} etc.)
+ * use an index that is built on first use and rebuilt when AVPs are added or
+ * removed. Changing the code of an AVP while it is in the message is
+ * therefore not noticed by the lookups until the AVP list is modified.
  */
 public final class Message {
   /** The message header */
   public MessageHeader hdr;
-  private ArrayList<AVP> avp;
+  private AVPList avp;
+  private AVPIndex index;
+
+  //Below this number of AVPs a linear scan is cheaper than building an index
+  private static final int index_threshold = 8;
+
+  //ArrayList exposing the modification count, so the index can tell when it is stale
+  private static final class AVPList extends ArrayList<AVP> {
+    private static final long serialVersionUID = 1L;
+
+    AVPList() {
+    }
+
+    AVPList(final int initialCapacity) {
+      super(initialCapacity);
+    }
+
+    int modCount() {
+      return modCount;
+    }
+  }
+
+  //Returns the index, or null if the message is so small that it is not worth it
+  private AVPIndex index() {
+    if (avp.size() < index_threshold) {
+      return null;
+    }
+    if (index == null || index.mod_count != avp.modCount()) {
+      index = new AVPIndex(avp, avp.modCount());
+    }
+    return index;
+  }
 
   /**
    * The default constructor. The header is initialized to default
@@ -57,7 +97,7 @@ public final class Message {
    */
   public Message() {
     hdr = new MessageHeader();
-    avp = new ArrayList<AVP>();
+    avp = new AVPList();
   }
 
   /**
@@ -67,7 +107,7 @@ public final class Message {
    */
   public Message(final MessageHeader header) {
     hdr = new MessageHeader(header);
-    avp = new ArrayList<AVP>();
+    avp = new AVPList();
   }
 
   /**
@@ -109,6 +149,34 @@ public final class Message {
     }
   }
 
+  /**
+   * Encode the message in on-the-wire format into the specified buffer.
+   * The message is written at the current position of the buffer, and the
+   * position is advanced past it. This avoids the intermediate byte array
+   * of {@link #encode()} when the destination is a buffer anyway.
+   * 
+   * @param bb The buffer. It must have at least {@link #encodeSize()} bytes remaining.
+   * @return The number of bytes written
+   * @throws java.nio.BufferOverflowException If there is not enough room in the buffer
+   * @since 0.9.6.14
+   */
+  public int encode(final ByteBuffer bb) {
+    final ByteOrder order = bb.order();
+    bb.order(ByteOrder.BIG_ENDIAN);
+    try {
+      final int start = bb.position();
+      hdr.encode(bb, 0);
+      for (final AVP a : avp) {
+        a.encode(bb);
+      }
+      final int sz = bb.position() - start;
+      bb.putInt(start, (hdr.version << 24) | sz);
+      return sz;
+    } finally {
+      bb.order(order);
+    }
+  }
+
   /**
    * Encode the message to on-the-wire format
    * 
@@ -143,6 +211,27 @@ public final class Message {
     return ml;
   }
 
+  /**
+   * Determine the complete size of the message from a buffer.
+   * This works like {@link #decodeSize(byte[],int)} but reads the length
+   * directly from the buffer (absolute, network byte order) so that stream
+   * decoders can frame messages without copying them out first.
+   * There must be at least 4 bytes available at the offset.
+   * 
+   * @param bb The buffer
+   * @param offset The absolute offset into the buffer where the message is supposed to start.
+   * @return The size (in bytes) of the message
+   * @since 0.9.6.14
+   */
+  public static int decodeSize(final ByteBuffer bb, final int offset) {
+    final int v = bb.get(offset) & 0xff;
+    final int ml = ((bb.get(offset + 1) & 0xff) << 16) | ((bb.get(offset + 2) & 0xff) << 8) | (bb.get(offset + 3) & 0xff);
+    if (v != 1 || ml < 20 || (ml % 4) != 0) {
+      return 4; //will cause decode() to fail
+    }
+    return ml;
+  }
+
   /** The decode status from {@link Message#decode} */
   public enum decode_status {
     /** A complete Diameter message was successfully decoded */
@@ -174,7 +263,28 @@ public final class Message {
    * @param bytes The bytes to try to decode
    * @return The result for the decode operation.
    */
-  public decode_status decode(final byte b[], int offset, final int bytes) {
+  public decode_status decode(final byte b[], final int offset, final int bytes) {
+    return decode(b, offset, bytes, false);
+  }
+
+  /**
+   * Decode a message from on-the-wire format without copying the AVP payloads.
+   * This works like {@link #decode(byte[],int,int)} but the decoded AVPs
+   * refer to their payload in the byte array instead of each having their
+   * own copy. The array must not be modified or reused as long as the
+   * message or any of its AVPs are in use.
+   * 
+   * @param b A byte array possibly containing a Diameter message
+   * @param offset Offset into the array where decoding should start
+   * @param bytes The bytes to try to decode
+   * @return The result for the decode operation.
+   * @since 0.9.6.14
+   */
+  public decode_status decodeShared(final byte b[], final int offset, final int bytes) {
+    return decode(b, offset, bytes, true);
+  }
+
+  private decode_status decode(final byte b[], int offset, final int bytes, final boolean shared) {
     if (bytes < 1) {
       return decode_status.not_enough;
     }
@@ -208,7 +318,7 @@ public final class Message {
     offset += 20; //skip over header
     int bytes_left = bytes - 20;
     final int estimated_avp_count = bytes_left / 16;
-    final ArrayList<AVP> new_avps = new ArrayList<AVP>(estimated_avp_count);
+    final AVPList new_avps = new AVPList(estimated_avp_count);
     while (bytes_left > 0) {
       if (bytes_left < 8) {
         return decode_status.garbage;
@@ -222,7 +332,7 @@ public final class Message {
       }
 
       final AVP new_avp = new AVP();
-      if (!new_avp.decode(b, offset, avp_sz)) {
+      if (!(shared ? new_avp.decodeView(b, offset, avp_sz) : new_avp.decode(b, offset, avp_sz))) {
         return decode_status.garbage;
       }
       new_avps.add(new_avp);
@@ -234,6 +344,7 @@ public final class Message {
     }
 
     avp = new_avps;
+    index = null;
     return decode_status.decoded;
   }
 
@@ -252,6 +363,22 @@ public final class Message {
     return new AVP(avp.get(index));
   }
 
+  /**
+   * Gets a shallow copy of the AVP at the specified index (0-based).
+   * Unlike {@link #get} the payload is not copied; the returned AVP shares it
+   * with the AVP in the message. The returned AVP is not read-only, but it
+   * is detached: it has its own code, flags and vendor ID, so changing those
+   * only affects the copy, and the typed AVPs constructed from it (eg. to
+   * set a new value) get their own copy of the payload.
+   * It can be added to another message, eg. when copying Session-Id to an
+   * answer.
+   * 
+   * @since 0.9.6.14
+   */
+  public AVP view(final int index) {
+    return avp.get(index).shallowCopy();
+  }
+
   /** Removes all AVPs from the message */
   public void clear() {
     avp.clear();
@@ -319,8 +446,70 @@ public final class Message {
     return iterator(code, 0);
   }
 
+  //Iterates the AVPs with a code by following the chain in the index
+  private class IndexedAVPIterator implements Iterator<AVP> {
+    private final int next_pos[];
+    private final int code;
+    private final int vendor_id;
+    private int pos; //next candidate (position when the index was built), or -1
+    private int removed; //AVPs removed through the iterator. They are all before pos
+    private int last = -1; //current position of the AVP returned by next(), or -1
+    private int expected_mod_count;
+
+    IndexedAVPIterator(final AVPIndex index, final int code, final int vendor_id) {
+      this.next_pos = index.next;
+      this.code = code;
+      this.vendor_id = vendor_id;
+      this.pos = index.first(code);
+      this.expected_mod_count = index.mod_count;
+    }
+
+    public void remove() {
+      if (last < 0) {
+        throw new IllegalStateException();
+      }
+      checkForComodification();
+      avp.remove(last);
+      removed++;
+      last = -1;
+      expected_mod_count = avp.modCount();
+    }
+
+    public boolean hasNext() {
+      checkForComodification();
+      while (pos != -1) {
+        final AVP a = avp.get(pos - removed);
+        if (a.code == code &&
+            (vendor_id == 0 || a.vendor_id == vendor_id)) {
+          return true;
+        }
+        pos = next_pos[pos];
+      }
+      return false;
+    }
+
+    public AVP next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = pos - removed;
+      pos = next_pos[pos];
+      return avp.get(last);
+    }
+
+    private void checkForComodification() {
+      if (avp.modCount() != expected_mod_count) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+
   /** Returns an iterator for the AVPs with the specified code and vendor id */
   public Iterator<AVP> iterator(final int code, final int vendor_id) {
+    final AVPIndex index = index();
+    if (index != null) {
+      return new IndexedAVPIterator(index, code, vendor_id);
+    }
     return new AVPIterator(avp.listIterator(), code, vendor_id);
   }
 
@@ -409,6 +598,16 @@ public final class Message {
    * @return AP with the specified code/vendor-id. Null if not found.
    */
   public AVP find(final int code, final int vendor_id) {
+    final AVPIndex index = index();
+    if (index != null) {
+      for (int i = index.first(code); i != -1; i = index.next[i]) {
+        final AVP a = avp.get(i);
+        if (a.code == code && a.vendor_id == vendor_id) {
+          return a;
+        }
+      }
+      return null;
+    }
     for (final AVP a : avp) {
       if (a.code == code && a.vendor_id == vendor_id) {
         return a;
@@ -417,7 +616,149 @@ public final class Message {
     return null;
   }
 
+  /**
+   * Returns if the message contains an AVP with the specified code.
+   * Implemented as <code>find(code)!=null</code>
+   * 
+   * @since 0.9.6.14
+   */
+  public boolean contains(final int code) {
+    return find(code, 0) != null;
+  }
+
+  /**
+   * Returns if the message contains an AVP with the specified code/vendor-id.
+   * Implemented as <code>find(code,vendor_id)!=null</code>
+   * 
+   * @since 0.9.6.14
+   */
+  public boolean contains(final int code, final int vendor_id) {
+    return find(code, vendor_id) != null;
+  }
+
+  private AVP require(final int code, final int vendor_id) throws MissingAVPException {
+    final AVP a = find(code, vendor_id);
+    if (a == null) {
+      throw new MissingAVPException(code, vendor_id);
+    }
+    return a;
+  }
+
+  /**
+   * Returns the value of an Unsigned32 AVP without copying anything.
+   * Implemented as <code>getUnsigned32(code,0)</code>
+   * 
+   * @since 0.9.6.14
+   */
+  public int getUnsigned32(final int code) throws MissingAVPException, InvalidAVPLengthException {
+    return getUnsigned32(code, 0);
+  }
+
+  /**
+   * Returns the value of an Unsigned32 AVP without copying anything.
+   * The AVP is located as with {@link #find(int,int)}.
+   * 
+   * @throws MissingAVPException If there is no such AVP
+   * @throws InvalidAVPLengthException If the AVP does not have the size of an Unsigned32
+   * @since 0.9.6.14
+   */
+  public int getUnsigned32(final int code, final int vendor_id) throws MissingAVPException, InvalidAVPLengthException {
+    return require(code, vendor_id).getUnsigned32();
+  }
+
+  /**
+   * Returns the value of an Integer32 AVP without copying anything.
+   * Implemented as <code>getInteger32(code,0)</code>
+   * 
+   * @since 0.9.6.14
+   */
+  public int getInteger32(final int code) throws MissingAVPException, InvalidAVPLengthException {
+    return getInteger32(code, 0);
+  }
+
+  /**
+   * Returns the value of an Integer32 AVP without copying anything.
+   * The AVP is located as with {@link #find(int,int)}.
+   * 
+   * @throws MissingAVPException If there is no such AVP
+   * @throws InvalidAVPLengthException If the AVP does not have the size of an Integer32
+   * @since 0.9.6.14
+   */
+  public int getInteger32(final int code, final int vendor_id) throws MissingAVPException, InvalidAVPLengthException {
+    return require(code, vendor_id).getInteger32();
+  }
+
+  /**
+   * Returns the value of an Unsigned64 AVP without copying anything.
+   * Implemented as <code>getUnsigned64(code,0)</code>
+   * 
+   * @since 0.9.6.14
+   */
+  public long getUnsigned64(final int code) throws MissingAVPException, InvalidAVPLengthException {
+    return getUnsigned64(code, 0);
+  }
+
+  /**
+   * Returns the value of an Unsigned64 AVP without copying anything.
+   * The AVP is located as with {@link #find(int,int)}.
+   * 
+   * @throws MissingAVPException If there is no such AVP
+   * @throws InvalidAVPLengthException If the AVP does not have the size of an Unsigned64
+   * @since 0.9.6.14
+   */
+  public long getUnsigned64(final int code, final int vendor_id) throws MissingAVPException, InvalidAVPLengthException {
+    return require(code, vendor_id).getUnsigned64();
+  }
+
+  /**
+   * Returns the value of an Integer64 AVP without copying anything.
+   * Implemented as <code>getInteger64(code,0)</code>
+   * 
+   * @since 0.9.6.14
+   */
+  public long getInteger64(final int code) throws MissingAVPException, InvalidAVPLengthException {
+    return getInteger64(code, 0);
+  }
+
+  /**
+   * Returns the value of an Integer64 AVP without copying anything.
+   * The AVP is located as with {@link #find(int,int)}.
+   * 
+   * @throws MissingAVPException If there is no such AVP
+   * @throws InvalidAVPLengthException If the AVP does not have the size of an Integer64
+   * @since 0.9.6.14
+   */
+  public long getInteger64(final int code, final int vendor_id) throws MissingAVPException, InvalidAVPLengthException {
+    return require(code, vendor_id).getInteger64();
+  }
+
+  /**
+   * Returns the value of an UTF8String AVP.
+   * Implemented as <code>getUTF8(code,0)</code>
+   * 
+   * @since 0.9.6.14
+   */
+  public String getUTF8(final int code) throws MissingAVPException {
+    return getUTF8(code, 0);
+  }
+
+  /**
+   * Returns the value of an UTF8String AVP.
+   * The AVP is located as with {@link #find(int,int)}, and the string is
+   * decoded directly from the payload.
+   * 
+   * @throws MissingAVPException If there is no such AVP
+   * @since 0.9.6.14
+   */
+  public String getUTF8(final int code, final int vendor_id) throws MissingAVPException {
+    return require(code, vendor_id).getUTF8();
+  }
+
   int find_first(final int code) {
+    final AVPIndex index = index();
+    if (index != null) {
+      return index.first(code);
+    }
     int i = 0;
     for (final AVP a : avp) {
       if (a.code == code) {
@@ -429,6 +770,10 @@ public final class Message {
   }
 
   int count(final int code) {
+    final AVPIndex index = index();
+    if (index != null) {
+      return index.count(code);
+    }
     int i = 0;
     for (final AVP a : avp) {
       if (a.code == code) {
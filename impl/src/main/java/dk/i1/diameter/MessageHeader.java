@@ -1,5 +1,7 @@
 package dk.i1.diameter;
 
+import java.nio.ByteBuffer;
+
 /**
  * A Diameter message header.
  * See RFC3588 section 3. After you have read that understanding the class is trivial.
@@ -117,6 +119,15 @@ public final class MessageHeader {
     return 5 * 4;
   }
 
+  int encode(final ByteBuffer bb, final int message_length) {
+    bb.putInt((version << 24) | (message_length & 0x00FFFFFF));
+    bb.putInt((command_flags << 24) | (command_code & 0x00FFFFFF));
+    bb.putInt(application_id);
+    bb.putInt(hop_by_hop_identifier);
+    bb.putInt(end_to_end_identifier);
+    return 5 * 4;
+  }
+
   void decode(final byte b[], final int offset) {
     version = packunpack.unpack8(b, offset + 0);
     //message_length = Array.getInt(b,offset+0)&0x00FFFFFF;
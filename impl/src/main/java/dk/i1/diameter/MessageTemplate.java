@@ -0,0 +1,225 @@
+package dk.i1.diameter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pre-encoded message with patchable AVPs.
+ * When sending many requests that only differ in a few AVP values (eg.
+ * Session-Id and CC-Request-Number) the message can be encoded once into a
+ * template. The designated AVPs (slots) are then patched directly in the
+ * on-the-wire bytes before each copy is made, so the message is not
+ * re-encoded and no AVP objects are created. Example:
+ *
+ * <pre>
+Message ccr = ...; //a complete CCR with dummy Session-Id and CC-Request-Number
+MessageTemplate t = new MessageTemplate(ccr, ProtocolConstants.DI_SESSION_ID, ProtocolConstants.DI_CC_REQUEST_NUMBER);
+for(int i=0; i!=n; i++) {
+    t.setUTF8(0, session_id[i]);
+    t.setUnsigned32(1, 0);
+    node_manager.sendRequest(t, peers, state[i]);
+}
+ * </pre>
+ *
+ * Only top-level AVPs can be slots. Patching a fixed-size AVP (Unsigned32
+ * etc.) overwrites the payload in place. Patching a variable-size AVP
+ * (UTF8String, OctetString) moves the following bytes if the padded size
+ * changes and updates the message length accordingly.
+ * <p>
+ * A template is not thread-safe.
+ *
+ * @since 0.9.6.14
+ */
+public final class MessageTemplate {
+  private final Message prototype;
+  private byte buf[];
+  private int size;
+  //start of the slot AVPs and the size of their AVP header (8 or 12)
+  private final int slot_start[];
+  private final int slot_header[];
+
+  /**
+   * Create a template from a message.
+   * The message is encoded and the first top-level AVP with each of the
+   * specified codes becomes a slot. Slots are numbered by their position in
+   * <code>slot_codes</code>. The message is copied so modifying it
+   * afterwards does not affect the template.
+   *
+   * @param msg The message
+   * @param slot_codes The codes of the AVPs that can be patched
+   * @throws IllegalArgumentException If the message has no AVP with one of the codes
+   */
+  public MessageTemplate(final Message msg, final int... slot_codes) {
+    prototype = new Message(msg);
+    final byte raw[] = prototype.encode();
+    size = raw.length;
+    buf = new byte[size + 64];
+    System.arraycopy(raw, 0, buf, 0, size);
+    slot_start = new int[slot_codes.length];
+    slot_header = new int[slot_codes.length];
+    for (int i = 0; i < slot_codes.length; i++) {
+      slot_start[i] = -1;
+      for (int pos = 20; pos < size; pos += AVP.decodeSize(buf, pos, size - pos)) {
+        if (packunpack.unpack32(buf, pos) == slot_codes[i]) {
+          slot_start[i] = pos;
+          slot_header[i] = (buf[pos + 4] & AVP.avp_flag_vendor) != 0 ? 12 : 8;
+          break;
+        }
+      }
+      if (slot_start[i] < 0) {
+        throw new IllegalArgumentException("message has no AVP with code " + slot_codes[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the message the template was created from.
+   * The returned message does not reflect patched values. It must not be modified.
+   */
+  public Message prototype() {
+    return prototype;
+  }
+
+  /** Returns if the R bit is set in the header */
+  public boolean isRequest() {
+    return (buf[4] & MessageHeader.command_flag_request_bit) != 0;
+  }
+
+  /** Sets or clears the T (retransmit) bit in the header */
+  public void setRetransmit(final boolean b) {
+    if (b) {
+      buf[4] |= MessageHeader.command_flag_retransmit_bit;
+    } else {
+      buf[4] &= ~MessageHeader.command_flag_retransmit_bit;
+    }
+  }
+
+  /** Sets the hop-by-hop identifier in the header */
+  public void setHopByHopIdentifier(final int hop_by_hop_identifier) {
+    packunpack.pack32(buf, 12, hop_by_hop_identifier);
+  }
+
+  /** Sets the end-to-end identifier in the header */
+  public void setEndToEndIdentifier(final int end_to_end_identifier) {
+    packunpack.pack32(buf, 16, end_to_end_identifier);
+  }
+
+  private int payloadLength(final int slot) {
+    return (packunpack.unpack32(buf, slot_start[slot] + 4) & 0x00FFFFFF) - slot_header[slot];
+  }
+
+  private int fixedSlot(final int slot, final int payload_size) {
+    if (payloadLength(slot) != payload_size) {
+      throw new IllegalArgumentException("slot " + slot + " does not have a " + payload_size + "-byte payload");
+    }
+    return slot_start[slot] + slot_header[slot];
+  }
+
+  /**
+   * Patch an Unsigned32 slot.
+   *
+   * @throws IllegalArgumentException If the slot payload is not 4 bytes
+   */
+  public void setUnsigned32(final int slot, final int value) {
+    packunpack.pack32(buf, fixedSlot(slot, 4), value);
+  }
+
+  /** Patch an Integer32 slot */
+  public void setInteger32(final int slot, final int value) {
+    setUnsigned32(slot, value);
+  }
+
+  /**
+   * Patch an Unsigned64 slot.
+   *
+   * @throws IllegalArgumentException If the slot payload is not 8 bytes
+   */
+  public void setUnsigned64(final int slot, final long value) {
+    packunpack.pack64(buf, fixedSlot(slot, 8), value);
+  }
+
+  /** Patch an Integer64 slot */
+  public void setInteger64(final int slot, final long value) {
+    setUnsigned64(slot, value);
+  }
+
+  /** Patch an UTF8String slot */
+  public void setUTF8(final int slot, final String value) {
+    final int n = value.length();
+    int i = 0;
+    while (i < n && value.charAt(i) < 0x80) {
+      i++;
+    }
+    if (i == n) {
+      //plain ASCII can be written without creating a byte array
+      final int offset = resizeSlot(slot, n);
+      for (i = 0; i < n; i++) {
+        buf[offset + i] = (byte) value.charAt(i);
+      }
+    } else {
+      setOctetString(slot, value.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+  }
+
+  /** Patch an OctetString slot */
+  public void setOctetString(final int slot, final byte value[]) {
+    System.arraycopy(value, 0, buf, resizeSlot(slot, value.length), value.length);
+  }
+
+  /*
+   * Change the payload size of the slot, moving the rest of the message if
+   * the padded size changes. The padding is zeroed. Returns the payload offset.
+   */
+  private int resizeSlot(final int slot, final int payload_size) {
+    final int start = slot_start[slot];
+    final int header = slot_header[slot];
+    final int old_length = payloadLength(slot) + header;
+    final int new_length = payload_size + header;
+    final int delta = ((new_length + 3) & ~3) - ((old_length + 3) & ~3);
+    if (delta != 0) {
+      final int old_end = start + ((old_length + 3) & ~3);
+      if (size + delta > buf.length) {
+        final byte tmp[] = new byte[(size + delta) * 2];
+        System.arraycopy(buf, 0, tmp, 0, size);
+        buf = tmp;
+      }
+      System.arraycopy(buf, old_end, buf, old_end + delta, size - old_end);
+      size += delta;
+      packunpack.pack32(buf, 0, (buf[0] << 24) | size);
+      for (int i = 0; i < slot_start.length; i++) {
+        if (slot_start[i] > start) {
+          slot_start[i] += delta;
+        }
+      }
+    }
+    packunpack.pack32(buf, start + 4, (buf[start + 4] << 24) | new_length);
+    for (int i = start + new_length; (i & 3) != 0; i++) {
+      buf[i] = 0;
+    }
+    return start + header;
+  }
+
+  /** Returns the size of the message in on-the-wire format */
+  public int size() {
+    return size;
+  }
+
+  /** Returns a copy of the message in on-the-wire format */
+  public byte[] toByteArray() {
+    final byte raw[] = new byte[size];
+    System.arraycopy(buf, 0, raw, 0, size);
+    return raw;
+  }
+
+  /**
+   * Writes the message in on-the-wire format to the buffer.
+   * This is how the node sends a template: the bytes are copied straight into
+   * the output buffer, without the array {@link #toByteArray} would create.
+   *
+   * @return The number of bytes written
+   * @throws java.nio.BufferOverflowException If there is not enough room in the buffer
+   */
+  public int writeTo(final ByteBuffer bb) {
+    bb.put(buf, 0, size);
+    return size;
+  }
+}
@@ -0,0 +1,334 @@
+package dk.i1.diameter;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a Diameter message directly in on-the-wire format.
+ * Instead of building a {@link Message} out of AVP objects and then encoding
+ * it, the header and AVPs are written sequentially into a growable buffer.
+ * Grouped AVPs are opened and closed, and their lengths are filled in when
+ * they are closed, so nested AVPs are written exactly once.
+ * The following example builds the same as the example in {@link AVP_Grouped}:
+ *
+ * <pre>
+MessageWriter w = new MessageWriter();
+w.begin(hdr)
+ .addUTF8(ProtocolConstants.DI_SESSION_ID, session_id).setM()
+ .openGrouped(ProtocolConstants.DI_VENDOR_SPECIFIC_APPLICATION_ID).setM()
+   .addUnsigned32(ProtocolConstants.DI_VENDOR_ID, my_vendor_id).setM()
+   .addUnsigned32(ProtocolConstants.DI_ACCT_APPLICATION_ID, my_application_id).setM()
+ .closeGrouped();
+byte raw[] = w.toByteArray();
+ * </pre>
+ *
+ * The writer can be reused for the next message by calling {@link #begin} again.
+ * It is not thread-safe.
+ *
+ * @since 0.9.6.14
+ */
+public final class MessageWriter {
+  private byte buf[];
+  private int pos;
+  private int last_avp_start = -1;
+  private int open_groups[] = new int[4];
+  private int depth;
+
+  /** Create a writer with a default initial buffer size */
+  public MessageWriter() {
+    this(512);
+  }
+
+  /**
+   * Create a writer
+   *
+   * @param initial_capacity Initial size of the buffer. It grows when needed.
+   */
+  public MessageWriter(final int initial_capacity) {
+    buf = new byte[Math.max(initial_capacity, 20)];
+  }
+
+  /**
+   * Start a new message.
+   * Anything written so far is discarded and the header is written. The
+   * message length in the header is filled in when the message is retrieved.
+   */
+  public MessageWriter begin(final MessageHeader hdr) {
+    pos = 0;
+    depth = 0;
+    last_avp_start = -1;
+    pos += hdr.encode(buf, 0, 0);
+    return this;
+  }
+
+  private void ensureSpace(final int how_much) {
+    if (pos + how_much > buf.length) {
+      int new_capacity = buf.length * 2;
+      while (new_capacity < pos + how_much) {
+        new_capacity *= 2;
+      }
+      final byte tmp[] = new byte[new_capacity];
+      System.arraycopy(buf, 0, tmp, 0, pos);
+      buf = tmp;
+    }
+  }
+
+  private void checkStarted() {
+    if (pos < 20) {
+      throw new IllegalStateException("begin() has not been called");
+    }
+  }
+
+  //Write the AVP header. The length is filled in later by finishAVP()
+  private void startAVP(final int code, final int vendor_id, final int payload_size) {
+    checkStarted();
+    ensureSpace(12 + payload_size + 3);
+    last_avp_start = pos;
+    packunpack.pack32(buf, pos, code);
+    if (vendor_id != 0) {
+      packunpack.pack32(buf, pos + 4, AVP.avp_flag_vendor << 24);
+      packunpack.pack32(buf, pos + 8, vendor_id);
+      pos += 12;
+    } else {
+      packunpack.pack32(buf, pos + 4, 0);
+      pos += 8;
+    }
+  }
+
+  //Fill in the length of the AVP starting at start, and pad it
+  private void finishAVP(final int start) {
+    final int length = pos - start;
+    packunpack.pack32(buf, start + 4, (buf[start + 4] << 24) | length);
+    while ((pos & 3) != 0) {
+      buf[pos++] = 0;
+    }
+  }
+
+  /**
+   * Sets the M-bit on the most recently added AVP.
+   * After {@link #closeGrouped} that is the grouped AVP.
+   */
+  public MessageWriter setM() {
+    if (last_avp_start < 0) {
+      throw new IllegalStateException("no AVP has been added");
+    }
+    buf[last_avp_start + 4] |= AVP.avp_flag_mandatory;
+    return this;
+  }
+
+  /**
+   * Sets the P-bit on the most recently added AVP.
+   * After {@link #closeGrouped} that is the grouped AVP.
+   */
+  public MessageWriter setP() {
+    if (last_avp_start < 0) {
+      throw new IllegalStateException("no AVP has been added");
+    }
+    buf[last_avp_start + 4] |= AVP.avp_flag_private;
+    return this;
+  }
+
+  /** Add an Unsigned32 AVP */
+  public MessageWriter addUnsigned32(final int code, final int value) {
+    return addUnsigned32(code, 0, value);
+  }
+
+  /** Add a vendor-specific Unsigned32 AVP */
+  public MessageWriter addUnsigned32(final int code, final int vendor_id, final int value) {
+    final int start = pos;
+    startAVP(code, vendor_id, 4);
+    packunpack.pack32(buf, pos, value);
+    pos += 4;
+    finishAVP(start);
+    return this;
+  }
+
+  /** Add an Integer32 AVP */
+  public MessageWriter addInteger32(final int code, final int value) {
+    return addUnsigned32(code, 0, value);
+  }
+
+  /** Add a vendor-specific Integer32 AVP */
+  public MessageWriter addInteger32(final int code, final int vendor_id, final int value) {
+    return addUnsigned32(code, vendor_id, value);
+  }
+
+  /** Add an Unsigned64 AVP */
+  public MessageWriter addUnsigned64(final int code, final long value) {
+    return addUnsigned64(code, 0, value);
+  }
+
+  /** Add a vendor-specific Unsigned64 AVP */
+  public MessageWriter addUnsigned64(final int code, final int vendor_id, final long value) {
+    final int start = pos;
+    startAVP(code, vendor_id, 8);
+    packunpack.pack64(buf, pos, value);
+    pos += 8;
+    finishAVP(start);
+    return this;
+  }
+
+  /** Add an Integer64 AVP */
+  public MessageWriter addInteger64(final int code, final long value) {
+    return addUnsigned64(code, 0, value);
+  }
+
+  /** Add a vendor-specific Integer64 AVP */
+  public MessageWriter addInteger64(final int code, final int vendor_id, final long value) {
+    return addUnsigned64(code, vendor_id, value);
+  }
+
+  /** Add an UTF8String AVP */
+  public MessageWriter addUTF8(final int code, final String value) {
+    return addUTF8(code, 0, value);
+  }
+
+  /**
+   * Add a vendor-specific UTF8String AVP.
+   * ASCII strings are encoded directly into the buffer.
+   */
+  public MessageWriter addUTF8(final int code, final int vendor_id, final String value) {
+    final int n = value.length();
+    final int start = pos;
+    startAVP(code, vendor_id, n);
+    int i = 0;
+    while (i < n) {
+      final char c = value.charAt(i);
+      if (c >= 0x80) {
+        break;
+      }
+      buf[pos + i] = (byte) c;
+      i++;
+    }
+    if (i == n) {
+      pos += n;
+    } else {
+      final byte raw[] = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+      ensureSpace(raw.length + 3);
+      System.arraycopy(raw, 0, buf, pos, raw.length);
+      pos += raw.length;
+    }
+    finishAVP(start);
+    return this;
+  }
+
+  /** Add an OctetString AVP */
+  public MessageWriter addOctetString(final int code, final byte value[]) {
+    return addOctetString(code, 0, value);
+  }
+
+  /** Add a vendor-specific OctetString AVP */
+  public MessageWriter addOctetString(final int code, final int vendor_id, final byte value[]) {
+    final int start = pos;
+    startAVP(code, vendor_id, value.length);
+    System.arraycopy(value, 0, buf, pos, value.length);
+    pos += value.length;
+    finishAVP(start);
+    return this;
+  }
+
+  /** Add an Address AVP */
+  public MessageWriter addAddress(final int code, final InetAddress value) {
+    return addAddress(code, 0, value);
+  }
+
+  /** Add a vendor-specific Address AVP */
+  public MessageWriter addAddress(final int code, final int vendor_id, final InetAddress value) {
+    final byte raw_address[] = value.getAddress();
+    final int start = pos;
+    startAVP(code, vendor_id, 2 + raw_address.length);
+    packunpack.pack16(buf, pos, value instanceof Inet4Address ? 1 : 2);
+    System.arraycopy(raw_address, 0, buf, pos + 2, raw_address.length);
+    pos += 2 + raw_address.length;
+    finishAVP(start);
+    return this;
+  }
+
+  /**
+   * Add an existing AVP.
+   * This is useful for copying AVPs from another message, eg. Proxy-Info.
+   */
+  public MessageWriter add(final AVP avp) {
+    checkStarted();
+    ensureSpace(avp.encodeSize());
+    last_avp_start = pos;
+    pos += avp.encode(buf, pos);
+    //AVP.encode() does not write the padding and the buffer may be dirty from a previous message
+    for (int i = last_avp_start + (packunpack.unpack32(buf, last_avp_start + 4) & 0x00FFFFFF); i < pos; i++) {
+      buf[i] = 0;
+    }
+    return this;
+  }
+
+  /**
+   * Open a grouped AVP.
+   * The AVPs added until the matching {@link #closeGrouped} are embedded in it.
+   */
+  public MessageWriter openGrouped(final int code) {
+    return openGrouped(code, 0);
+  }
+
+  /** Open a vendor-specific grouped AVP */
+  public MessageWriter openGrouped(final int code, final int vendor_id) {
+    final int start = pos;
+    startAVP(code, vendor_id, 0);
+    if (depth == open_groups.length) {
+      final int tmp[] = new int[depth * 2];
+      System.arraycopy(open_groups, 0, tmp, 0, depth);
+      open_groups = tmp;
+    }
+    open_groups[depth++] = start;
+    return this;
+  }
+
+  /** Close the most recently opened grouped AVP */
+  public MessageWriter closeGrouped() {
+    if (depth == 0) {
+      throw new IllegalStateException("no open grouped AVP");
+    }
+    final int start = open_groups[--depth];
+    finishAVP(start);
+    last_avp_start = start;
+    return this;
+  }
+
+  /** Returns the number of bytes written so far */
+  public int size() {
+    return pos;
+  }
+
+  //Fill in the message length
+  private void finish() {
+    checkStarted();
+    if (depth != 0) {
+      throw new IllegalStateException("grouped AVP has not been closed");
+    }
+    packunpack.pack32(buf, 0, (buf[0] << 24) | pos);
+  }
+
+  /**
+   * Returns the message in on-the-wire format.
+   *
+   * @throws IllegalStateException If a grouped AVP is still open
+   */
+  public byte[] toByteArray() {
+    finish();
+    final byte raw[] = new byte[pos];
+    System.arraycopy(buf, 0, raw, 0, pos);
+    return raw;
+  }
+
+  /**
+   * Writes the message in on-the-wire format to the buffer.
+   *
+   * @return The number of bytes written
+   * @throws IllegalStateException If a grouped AVP is still open
+   * @throws java.nio.BufferOverflowException If there is not enough room in the buffer
+   */
+  public int encode(final ByteBuffer bb) {
+    finish();
+    bb.put(buf, 0, pos);
+    return pos;
+  }
+}
@@ -0,0 +1,32 @@
+package dk.i1.diameter;
+
+/**
+ * Exception thrown when a required AVP is not present in a message.
+ * 
+ * @since 0.9.6.14
+ */
+public final class MissingAVPException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  /** The code of the missing AVP */
+  public int code;
+  /** The vendor ID of the missing AVP. 0 if not vendor-specific */
+  public int vendor_id;
+
+  /** Construct the expection with the specified AVP code and vendor ID */
+  public MissingAVPException(final int code, final int vendor_id) {
+    super("AVP " + code + (vendor_id != 0 ? " (vendor " + vendor_id + ")" : "") + " is missing");
+    this.code = code;
+    this.vendor_id = vendor_id;
+  }
+
+  /**
+   * Returns an empty AVP with the code and vendor ID of the missing AVP.
+   * This is what RFC3588 section 7.5 says to put in the Failed-AVP AVP of a
+   * DIAMETER_MISSING_AVP answer.
+   */
+  public AVP toAVP() {
+    return new AVP(code, vendor_id, new byte[0]);
+  }
+}
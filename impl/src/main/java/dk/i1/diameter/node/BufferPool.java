@@ -0,0 +1,93 @@
+package dk.i1.diameter.node;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of I/O buffers in power-of-two size classes (512 bytes to 1 MB).
+ * The buffers are direct, so the socket reads and writes do not go through
+ * the temporary direct buffer NIO otherwise copies heap buffers into.
+ * Released buffers are kept for reuse until the pool holds its configured
+ * number of bytes; beyond that, and for buffers larger than the largest size
+ * class, they are left to the garbage collector.
+ * A pool with a size of 0 hands out heap buffers of exactly the requested
+ * size and does not keep any.
+ * The pool is thread-safe.
+ *
+ * @see NodeSettings#setBufferPoolSize
+ */
+final class BufferPool {
+  private static final int min_shift = 9;
+  private static final int max_shift = 20;
+
+  private final boolean direct;
+  private final long max_pooled;
+  private final AtomicLong pooled = new AtomicLong();
+  private final ArrayDeque<ByteBuffer> free[];
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  BufferPool(final long max_pooled) {
+    this.direct = max_pooled > 0;
+    this.max_pooled = max_pooled;
+    free = new ArrayDeque[max_shift - min_shift + 1];
+    for (int i = 0; i < free.length; i++) {
+      free[i] = new ArrayDeque<ByteBuffer>();
+    }
+  }
+
+  /** Returns if the buffers are direct */
+  boolean isDirect() {
+    return direct;
+  }
+
+  //The size class of a buffer of at least size bytes, or -1 if it is too large
+  private static int sizeClass(final int size) {
+    if (size <= (1 << min_shift)) {
+      return 0;
+    }
+    final int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+    return shift <= max_shift ? shift - min_shift : -1;
+  }
+
+  /** Returns a cleared buffer with room for at least size bytes */
+  ByteBuffer lease(final int size) {
+    if (!direct) {
+      return ByteBuffer.allocate(size); //nothing is pooled, so no need to round up
+    }
+    final int c = sizeClass(size);
+    if (c < 0) {
+      return allocate(size);
+    }
+    final ByteBuffer bb;
+    synchronized (free[c]) {
+      bb = free[c].pollLast();
+    }
+    if (bb == null) {
+      return allocate(1 << (min_shift + c));
+    }
+    pooled.addAndGet(-bb.capacity());
+    bb.clear();
+    return bb;
+  }
+
+  /** Give a buffer back. It must not be used afterwards */
+  void release(final ByteBuffer bb) {
+    final int capacity = bb.capacity();
+    final int c = sizeClass(capacity);
+    if (!direct || !bb.isDirect() || c < 0 || capacity != 1 << (min_shift + c)) {
+      return; //not one of ours
+    }
+    if (pooled.addAndGet(capacity) > max_pooled) {
+      pooled.addAndGet(-capacity);
+      return;
+    }
+    synchronized (free[c]) {
+      free[c].addLast(bb);
+    }
+  }
+
+  private static ByteBuffer allocate(final int size) {
+    return ByteBuffer.allocateDirect(size);
+  }
+}
@@ -1,10 +1,14 @@
 package dk.i1.diameter.node;
 
+import dk.i1.diameter.Message;
+import dk.i1.diameter.MessageTemplate;
 import java.net.InetAddress;
 import java.util.Collection;
 
 abstract class Connection {
   NodeImplementation node_impl;
+  //The part of the node implementation that handles the connection (eg. a selector thread), or null
+  Object owner;
   public Peer peer; //initially null
   public String host_id; //always set, updated from CEA/CER
   public ConnectionTimers timers;
@@ -21,7 +25,16 @@ abstract class Connection {
     closed
   }
 
-  public State state;
+  //Changed holding the node lock, but read without it (eg. by Node.sendMessage())
+  public volatile State state;
+  //False while the queued output is above the high watermark (see NodeSettings.setOutputWatermarks())
+  volatile boolean writable = true;
+  //Position in the timer wheel of the owner. Guarded by the node lock
+  TimerWheel timer_wheel;
+  int timer_slot;
+  long timer_tick;
+  Connection timer_prev;
+  Connection timer_next;
 
   public Connection(final NodeImplementation node_impl, final long watchdog_interval, final long idle_timeout) {
     this.node_impl = node_impl;
@@ -37,8 +50,14 @@ abstract class Connection {
 
   abstract InetAddress toInetAddress(); //todo: eliminate
 
+  //The sendMessage() methods may be called by any thread without holding the node lock
   abstract void sendMessage(byte[] raw);
 
+  abstract void sendMessage(Message msg);
+
+  //The template is copied before this returns
+  abstract void sendMessage(MessageTemplate template);
+
   abstract Object getRelevantNodeAuthInfo();
 
   abstract Collection<InetAddress> getLocalAddresses();
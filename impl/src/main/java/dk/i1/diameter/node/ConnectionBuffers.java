@@ -4,42 +4,41 @@ import java.nio.ByteBuffer;
 // import java.nio.channels.SocketChannel;
 
 /**
- *
+ * The input buffers of a connection.
+ * Output is queued in an {@link OutputQueue} instead.
  */
 abstract class ConnectionBuffers {
-  abstract ByteBuffer netOutBuffer();
-
   abstract ByteBuffer netInBuffer();
 
   abstract ByteBuffer appInBuffer();
 
-  abstract ByteBuffer appOutBuffer();
-
   abstract void processNetInBuffer();
 
-  abstract void processAppOutBuffer();
-
   abstract void makeSpaceInNetInBuffer();
 
-  abstract void makeSpaceInAppOutBuffer(int how_much);
-
-  void consumeNetOutBuffer(final int bytes) {
-    consume(netOutBuffer(), bytes);
-  }
+  abstract void makeSpaceInAppInBuffer(int how_much);
 
   void consumeAppInBuffer(final int bytes) {
     consume(appInBuffer(), bytes);
   }
 
-  static ByteBuffer makeSpaceInBuffer(ByteBuffer bb, final int how_much) {
+  /** Return grown buffers to the pool if they have not been needed for a while. The buffers must be empty */
+  abstract void shrinkIfIdle();
+
+  /** Give the buffers back to the pool. The connection is closed */
+  abstract void release();
+
+  /**
+   * Make room for how_much bytes after the data in the buffer. If the buffer
+   * is too small a larger one is leased from the pool, the data is moved to
+   * it and the old buffer is released.
+   */
+  static ByteBuffer makeSpaceInBuffer(final BufferPool pool, ByteBuffer bb, final int how_much) {
     if (bb.position() + how_much > bb.capacity()) {
-      final int bytes = bb.position();
-      int new_capacity = bb.capacity() + how_much;
-      new_capacity = new_capacity + (4096 - (new_capacity % 4096));
-      final ByteBuffer tmp = ByteBuffer.allocate(new_capacity);
+      final ByteBuffer tmp = pool.lease(bb.position() + how_much);
       bb.flip();
       tmp.put(bb);
-      tmp.position(bytes);
+      pool.release(bb);
       bb = tmp;
     }
     return bb;
@@ -0,0 +1,19 @@
+package dk.i1.diameter.node;
+
+/**
+ * A request could not be sent because too much output is queued on the connection.
+ * This exception is thrown when the output queued on a connection has reached
+ * the high watermark (see {@link NodeSettings#setOutputWatermarks}) and the
+ * connection has not drained to the low watermark yet. The connection is
+ * still open; the request can be retried later or sent to another peer.
+ * It extends StaleConnectionException so existing error handling still works.
+ *
+ * @since 0.9.6.14
+ */
+public final class ConnectionNotWritableException extends StaleConnectionException {
+
+  private static final long serialVersionUID = 1L;
+
+  public ConnectionNotWritableException() {
+  }
+}
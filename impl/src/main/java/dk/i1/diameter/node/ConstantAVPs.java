@@ -0,0 +1,63 @@
+package dk.i1.diameter.node;
+
+import dk.i1.diameter.AVP;
+import dk.i1.diameter.AVP_UTF8String;
+import dk.i1.diameter.AVP_Unsigned32;
+import dk.i1.diameter.ImmutableAVP;
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import dk.i1.diameter.Utils;
+
+/**
+ * The AVPs a node puts in the messages it sends whose values are fixed by
+ * the node settings (Origin-Host, Origin-Realm, Vendor-Id, etc).
+ * They are built once, with the M-bit set as Utils.setMandatory_RFC3588()
+ * would set it, and the same immutable instances are added to every message
+ * the node builds itself and by Node.addSharedHostAndRealm().
+ */
+final class ConstantAVPs {
+  //Plain Origin-Host and Origin-Realm, copied for Node.addOurHostAndRealm()
+  final AVP host_id;
+  final AVP realm;
+  final AVP origin_host;
+  final AVP origin_realm;
+  final AVP vendor_id;
+  final AVP product_name;
+  final AVP origin_state_id;
+  final AVP firmware_revision; //null if not configured
+
+  ConstantAVPs(final NodeSettings settings, final int state_id) {
+    host_id = new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, settings.hostId());
+    realm = new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM, settings.realm());
+    final AVP a[] = freeze(
+            new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, settings.hostId()),
+            new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM, settings.realm()),
+            new AVP_Unsigned32(ProtocolConstants.DI_VENDOR_ID, settings.vendorId()),
+            new AVP_UTF8String(ProtocolConstants.DI_PRODUCT_NAME, settings.productName()),
+            new AVP_Unsigned32(ProtocolConstants.DI_ORIGIN_STATE_ID, state_id),
+            new AVP_Unsigned32(ProtocolConstants.DI_FIRMWARE_REVISION, settings.firmwareRevision()));
+    origin_host = a[0];
+    origin_realm = a[1];
+    vendor_id = a[2];
+    product_name = a[3];
+    origin_state_id = a[4];
+    firmware_revision = settings.firmwareRevision() != 0 ? a[5] : null;
+  }
+
+  /**
+   * Returns immutable copies of the AVPs (see {@link ImmutableAVP}), with the
+   * M-bit set on them (and on embedded AVPs) as Utils.setMandatory_RFC3588() would.
+   */
+  static AVP[] freeze(final AVP... avps) {
+    final Message tmp = new Message();
+    for (final AVP a : avps) {
+      tmp.add(new AVP(a));
+    }
+    Utils.setMandatory_RFC3588(tmp);
+    final AVP frozen[] = new AVP[avps.length];
+    for (int i = 0; i < avps.length; i++) {
+      frozen[i] = new ImmutableAVP(tmp.view(i));
+    }
+    return frozen;
+  }
+}
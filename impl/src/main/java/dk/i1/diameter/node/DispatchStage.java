@@ -0,0 +1,178 @@
+package dk.i1.diameter.node;
+
+import dk.i1.diameter.AVP;
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hands messages from the network threads to the message dispatcher on an executor.
+ * Messages are put in the mailbox of their connection or of their Session-Id
+ * (see {@link NodeSettings.DispatchOrdering}). Each mailbox is processed by at
+ * most one executor task at a time, so messages with the same key are
+ * dispatched one at a time in the order they arrived, while different keys
+ * are dispatched in parallel and never wait for each other. A mailbox only
+ * exists while it has messages. Without ordering each message is a separate
+ * executor task.
+ * The total number of queued messages is limited. When the limit is reached
+ * requests are refused (the caller answers them with DIAMETER_TOO_BUSY), but
+ * answers are always queued because they complete requests we sent.
+ */
+@Slf4j
+final class DispatchStage {
+  //Maximum number of messages a mailbox task dispatches before it yields the executor thread
+  private static final int batch_size = 32;
+
+  private final Node node;
+  private final Executor executor;
+  private final int queue_limit;
+  private final boolean by_session;
+  private final boolean unordered;
+  private final ConcurrentHashMap<Object, Mailbox> mailboxes = new ConcurrentHashMap<Object, Mailbox>();
+  private final AtomicInteger queued = new AtomicInteger();
+
+  DispatchStage(final Node node, final NodeSettings settings) {
+    this.node = node;
+    this.executor = settings.dispatchExecutor();
+    this.queue_limit = settings.dispatchQueueLimit();
+    this.by_session = settings.dispatchOrdering() == NodeSettings.DispatchOrdering.session;
+    this.unordered = settings.dispatchOrdering() == NodeSettings.DispatchOrdering.none;
+  }
+
+  /**
+   * Queue a message for dispatching.
+   *
+   * @return False if the message is a request and the queue is full.
+   */
+  boolean dispatch(final Message msg, final Connection conn) {
+    if (queued.incrementAndGet() > queue_limit && msg.hdr.isRequest()) {
+      queued.decrementAndGet();
+      return false;
+    }
+    if (unordered) {
+      execute(new QueuedMessage(msg, conn));
+    } else {
+      enqueue(keyOf(msg, conn), new QueuedMessage(msg, conn));
+    }
+    return true;
+  }
+
+  /** Returns the number of messages waiting to be dispatched */
+  int queued() {
+    return queued.get();
+  }
+
+  //The Session-Id, or the connection key
+  private Object keyOf(final Message msg, final Connection conn) {
+    if (by_session) {
+      final AVP a = msg.find(ProtocolConstants.DI_SESSION_ID);
+      if (a != null) {
+        return a.getUTF8();
+      }
+    }
+    return conn.key;
+  }
+
+  private void enqueue(final Object key, final QueuedMessage qm) {
+    for (;;) {
+      Mailbox mailbox = mailboxes.get(key);
+      if (mailbox == null) {
+        final Mailbox fresh = new Mailbox(key);
+        mailbox = mailboxes.putIfAbsent(key, fresh);
+        if (mailbox == null) {
+          mailbox = fresh;
+        }
+      }
+      if (mailbox.add(qm)) {
+        return;
+      }
+      //it drained and was removed in the meantime
+    }
+  }
+
+  private void execute(final Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (final RejectedExecutionException ex) {
+      //The messages cannot be dropped, so dispatch them in this thread instead
+      log.warn("Dispatch executor rejected task, dispatching in the calling thread");
+      task.run();
+    }
+  }
+
+  private void dispatchNow(final QueuedMessage qm) {
+    queued.decrementAndGet();
+    try {
+      node.dispatchQueued(qm.msg, qm.conn);
+    } catch (final RuntimeException ex) {
+      log.warn("Message dispatcher threw an exception", ex);
+    }
+  }
+
+  //A single message. Also the executor task when there is no ordering
+  private final class QueuedMessage implements Runnable {
+    final Message msg;
+    final Connection conn;
+
+    QueuedMessage(final Message msg, final Connection conn) {
+      this.msg = msg;
+      this.conn = conn;
+    }
+
+    @Override
+    public void run() {
+      dispatchNow(this);
+    }
+  }
+
+  private final class Mailbox implements Runnable {
+    private final Object key;
+    private final ArrayDeque<QueuedMessage> queue = new ArrayDeque<QueuedMessage>();
+    private boolean scheduled;
+    private boolean removed;
+
+    Mailbox(final Object key) {
+      this.key = key;
+    }
+
+    /* Returns false if the mailbox has been removed from the map */
+    boolean add(final QueuedMessage qm) {
+      synchronized (this) {
+        if (removed) {
+          return false;
+        }
+        queue.add(qm);
+        if (scheduled) {
+          return true;
+        }
+        scheduled = true;
+      }
+      execute(this);
+      return true;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < batch_size; i++) {
+        final QueuedMessage qm;
+        synchronized (this) {
+          qm = queue.poll();
+          if (qm == null) {
+            scheduled = false;
+            removed = true;
+            mailboxes.remove(key, this);
+            return;
+          }
+        }
+        dispatchNow(qm);
+      }
+      //more messages may be waiting; let other mailboxes have the thread first
+      execute(this);
+    }
+  }
+}
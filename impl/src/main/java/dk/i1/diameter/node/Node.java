@@ -2,19 +2,23 @@ package dk.i1.diameter.node;
 
 import java.lang.reflect.Constructor;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import dk.i1.diameter.AVP;
+import dk.i1.diameter.AVPCursor;
 import dk.i1.diameter.AVP_Address;
 import dk.i1.diameter.AVP_Grouped;
 import dk.i1.diameter.AVP_UTF8String;
 import dk.i1.diameter.AVP_Unsigned32;
 import dk.i1.diameter.InvalidAVPLengthException;
 import dk.i1.diameter.Message;
+import dk.i1.diameter.MessageHeader;
+import dk.i1.diameter.MessageTemplate;
 import dk.i1.diameter.ProtocolConstants;
 import dk.i1.diameter.Utils;
 import dk.i1.diameter.VendorIDs;
@@ -74,14 +78,25 @@ public final class Node {
   private final NodeSettings settings;
   private final NodeValidator node_validator;
   private final NodeState node_state;
+  private final ConstantAVPs constant_avps;
+  private AVP cer_capability_avps[];
   private Thread reconnect_thread;
   private boolean please_stop;
   private long shutdown_deadline;
-  private Map<ConnectionKey, Connection> map_key_conn;
+  //Lookups are lock-free; changes to the set of connections and their state are made holding the map's monitor
+  private volatile Map<ConnectionKey, Connection> map_key_conn;
+  //The ready connections by peer and by host-id, maintained holding map_key_conn's monitor
+  private final Map<Peer, Connection> map_peer_conn = new ConcurrentHashMap<Peer, Connection>();
+  private final Map<String, Connection> map_host_conn = new ConcurrentHashMap<String, Connection>();
+  //The timer wheel of each connection owner (or node implementation). Lookups are lock-free; the wheels are
+  //created and changed holding map_key_conn's monitor
+  private final Map<Object, TimerWheel> timer_wheels = new ConcurrentHashMap<Object, TimerWheel>();
   private Set<Peer> persistent_peers;
   private final Object obj_conn_wait;
   private NodeImplementation tcp_node;
   private NodeImplementation sctp_node;
+  private DispatchStage dispatch_stage; //null if dispatching in the network threads
+  private WritabilityListener writability_listener; //can be null
 
   /**
    * Constructor for Node.
@@ -121,6 +136,7 @@ public final class Node {
     this.settings = settings;
     this.node_validator = (node_validator == null) ? new DefaultNodeValidator() : node_validator;
     this.node_state = new NodeState();
+    this.constant_avps = new ConstantAVPs(settings, node_state.stateId());
     this.obj_conn_wait = new Object();
     this.tcp_node = null;
     this.sctp_node = null;
@@ -247,6 +263,9 @@ public final class Node {
       obj_conn_wait.notifyAll();
     }
     map_key_conn = null;
+    map_peer_conn.clear();
+    map_host_conn.clear();
+    timer_wheels.clear();
     persistent_peers = null;
     if (tcp_node != null) {
       tcp_node.closeIO();
@@ -330,6 +349,8 @@ public final class Node {
    * Returns the connection key for a peer.
    * Behaviour change since 0.9.6: Connections that are not in the "Open"
    * state (rfc3588 section 5.6) will not be returned.
+   * The ready connections are indexed by peer, so this is a lock-free
+   * constant-time lookup.
    *
    * @return The connection key. Null if there is no connection to the peer.
    */
@@ -337,31 +358,20 @@ public final class Node {
     if (log.isTraceEnabled()) {
       log.trace("Finding '" + peer.host() + "'");
     }
-    if (map_key_conn == null) {
-      if (log.isTraceEnabled()) {
-        log.trace(peer.host() + " NOT found (node is not ready)");
-      }
-      return null;
+    final Connection conn = map_peer_conn.get(peer);
+    if (conn != null && conn.state == Connection.State.ready) {
+      return conn.key;
     }
-    synchronized (map_key_conn) {
-      //System.out.println("Node.findConnection: size=" + map_key_conn.size());
-      for (final Map.Entry<ConnectionKey, Connection> e : map_key_conn.entrySet()) {
-        final Connection conn = e.getValue();
-        //System.out.println("Node.findConnection(): examing " + ((conn.peer!=null)?conn.peer.host():"?"));
-        if (conn.state != Connection.State.ready) {
-          continue;
-        }
-        if (conn.peer != null
-                && conn.peer.equals(peer)) {
-          //System.out.println("Node.findConnection(): found");
-          return conn.key;
-        }
-      }
-      if (log.isTraceEnabled()) {
-        log.trace(peer.host() + " NOT found");
-      }
-      return null;
+    if (log.isTraceEnabled()) {
+      log.trace(peer.host() + " NOT found");
     }
+    return null;
+  }
+
+  //Lock-free lookup of a connection. Returns null if the node is not running or the connection is gone
+  private Connection lookup(final ConnectionKey connkey) {
+    final Map<ConnectionKey, Connection> map = map_key_conn;
+    return map != null ? map.get(connkey) : null;
   }
 
   /**
@@ -372,29 +382,45 @@ public final class Node {
    * exception if the connection has gone stale.
    */
   public boolean isConnectionKeyValid(final ConnectionKey connkey) {
-    if (map_key_conn == null) {
-      return false;
-    }
-    synchronized (map_key_conn) {
-      return map_key_conn.get(connkey) != null;
-    }
+    return lookup(connkey) != null;
+  }
+
+  /**
+   * Returns if requests can be sent on the connection.
+   * A connection is not writable while the output queued on it is above the
+   * high watermark (see {@link NodeSettings#setOutputWatermarks}). Sending a
+   * request to it then throws {@link ConnectionNotWritableException}.
+   *
+   * @return False if the connection is not writable or not valid.
+   * @since 0.9.6.14
+   */
+  public boolean isWritable(final ConnectionKey connkey) {
+    final Connection conn = lookup(connkey);
+    return conn != null && conn.writable;
+  }
+
+  /**
+   * Set the observer of connection writability changes.
+   * It must be set before the node is started.
+   *
+   * @param listener The observer, or null.
+   * @see NodeSettings#setOutputWatermarks
+   * @since 0.9.6.14
+   */
+  public void setWritabilityListener(final WritabilityListener listener) {
+    this.writability_listener = listener;
   }
 
   /**
    * Returns the Peer on a connection.
    */
   public Peer connectionKey2Peer(final ConnectionKey connkey) {
-    if (map_key_conn == null) {
+    final Connection conn = lookup(connkey);
+    if (conn != null) {
+      return conn.peer;
+    } else {
       return null;
     }
-    synchronized (map_key_conn) {
-      final Connection conn = map_key_conn.get(connkey);
-      if (conn != null) {
-        return conn.peer;
-      } else {
-        return null;
-      }
-    }
   }
 
   /**
@@ -405,56 +431,116 @@ public final class Node {
    * connectionKey2Peer()
    */
   public InetAddress connectionKey2InetAddress(final ConnectionKey connkey) {
-    if (map_key_conn == null) {
+    final Connection conn = lookup(connkey);
+    if (conn != null) {
+      return conn.toInetAddress();
+    } else {
       return null;
     }
-    synchronized (map_key_conn) {
-      final Connection conn = map_key_conn.get(connkey);
-      if (conn != null) {
-        return conn.toInetAddress();
-      } else {
-        return null;
-      }
-    }
   }
 
   /**
    * Returns the next hop-by-hop identifier for a connection
    */
   public int nextHopByHopIdentifier(final ConnectionKey connkey) throws StaleConnectionException {
-    if (map_key_conn == null) {
+    final Connection conn = lookup(connkey);
+    if (conn == null) {
       throw new StaleConnectionException();
     }
-    synchronized (map_key_conn) {
-      final Connection conn = map_key_conn.get(connkey);
-      if (conn == null) {
-        throw new StaleConnectionException();
-      }
-      return conn.nextHopByHopIdentifier();
-    }
+    return conn.nextHopByHopIdentifier();
   }
 
   /**
    * Send a message.
    * Send the specified message on the specified connection.
+   * No node-wide lock is taken: the message is encoded by the calling thread
+   * and handed to the connection, which writes it from its network thread.
    *
    * @param msg The message to be sent
    * @param connkey The connection to use. If the connection has been closed in the meantime StaleConnectionException is
-   *        thrown.
+   *        thrown. If msg is a request and the connection is not writable (see {@link #isWritable})
+   *        ConnectionNotWritableException is thrown. Answers are always queued.
    */
   public void sendMessage(final Message msg, final ConnectionKey connkey) throws StaleConnectionException {
-    if (map_key_conn == null) {
+    final Connection conn = lookup(connkey);
+    if (conn == null) {
       throw new StaleConnectionException();
     }
-    synchronized (map_key_conn) {
-      final Connection conn = map_key_conn.get(connkey);
-      if (conn == null) {
-        throw new StaleConnectionException();
-      }
-      if (conn.state != Connection.State.ready) {
-        throw new StaleConnectionException();
-      }
-      sendMessage(msg, conn);
+    if (conn.state != Connection.State.ready) {
+      throw new StaleConnectionException();
+    }
+    if (!conn.writable && msg.hdr.isRequest()) {
+      throw new ConnectionNotWritableException();
+    }
+    sendMessage(msg, conn);
+  }
+
+  /**
+   * Send a message that is already in on-the-wire format.
+   * This is for messages built with {@link dk.i1.diameter.MessageWriter} or
+   * similar. The bytes are sent as-is, so the caller is responsible for
+   * filling in the hop-by-hop identifier (see {@link #nextHopByHopIdentifier})
+   * and the other header fields. The array is queued for sending without
+   * being copied, so it must not be modified afterwards.
+   *
+   * @param raw Exactly one message in on-the-wire format
+   * @param connkey The connection to use. If the connection has been closed in the meantime StaleConnectionException is
+   *        thrown. If the message is a request and the connection is not writable
+   *        ConnectionNotWritableException is thrown.
+   * @throws IllegalArgumentException If the length in the message header does not match the array
+   * @since 0.9.6.14
+   */
+  public void sendMessage(final byte[] raw, final ConnectionKey connkey) throws StaleConnectionException {
+    if (raw.length < 20 || Message.decodeSize(raw, 0) != raw.length) {
+      throw new IllegalArgumentException("not a single message in on-the-wire format");
+    }
+    final Connection conn = lookup(connkey);
+    if (conn == null) {
+      throw new StaleConnectionException();
+    }
+    if (conn.state != Connection.State.ready) {
+      throw new StaleConnectionException();
+    }
+    if (!conn.writable && (raw[4] & MessageHeader.command_flag_request_bit) != 0) {
+      throw new ConnectionNotWritableException();
+    }
+    if (log.isTraceEnabled()) {
+      log.trace(hexDump("Raw packet encoded", raw, 0, raw.length));
+    }
+    conn.sendMessage(raw);
+  }
+
+  /**
+   * Send a message from a template.
+   * The message is copied out of the template before this returns. Otherwise
+   * this is the same as {@link #sendMessage(byte[],ConnectionKey)}.
+   */
+  void sendMessage(final MessageTemplate template, final ConnectionKey connkey) throws StaleConnectionException {
+    final Connection conn = lookup(connkey);
+    if (conn == null) {
+      throw new StaleConnectionException();
+    }
+    if (conn.state != Connection.State.ready) {
+      throw new StaleConnectionException();
+    }
+    if (!conn.writable && template.isRequest()) {
+      throw new ConnectionNotWritableException();
+    }
+    if (log.isTraceEnabled()) {
+      final byte[] raw = template.toByteArray();
+      log.trace(hexDump("Raw packet encoded", raw, 0, raw.length));
+    }
+    conn.sendMessage(template);
+  }
+
+  /** Called by the network thread of the connection when its writability has changed, without locks held */
+  void writabilityChanged(final Connection conn, final boolean writable) {
+    if (log.isDebugEnabled()) {
+      log.debug("Connection to " + (conn.peer != null ? conn.peer.toString() : conn.host_id)
+              + (writable ? " is writable again" : " is not writable"));
+    }
+    if (writability_listener != null && conn.state == Connection.State.ready) {
+      writability_listener.handleWritability(conn.key, writable);
     }
   }
 
@@ -462,13 +548,13 @@ public final class Node {
     if (log.isTraceEnabled()) {
       log.trace("command=" + msg.hdr.command_code + ", to=" + (conn.peer != null ? conn.peer.toString() : conn.host_id));
     }
-    final byte[] raw = msg.encode();
-
     if (log.isTraceEnabled()) {
+      final byte[] raw = msg.encode();
       log.trace(hexDump("Raw packet encoded", raw, 0, raw.length));
     }
 
-    conn.sendMessage(raw);
+    //Connection.sendMessage() is thread-safe; network and dispatcher threads may send on the same connection
+    conn.sendMessage(msg);
   }
 
   /**
@@ -523,6 +609,7 @@ public final class Node {
         conn.peer = peer;
         if (node_impl.initiateConnection(conn, peer)) {
           map_key_conn.put(conn.key, conn);
+          scheduleTimers(conn);
           if (log.isTraceEnabled()) {
             log.trace("Initiated connection to [" + peer.toString() + "]");
           }
@@ -663,29 +750,21 @@ public final class Node {
       log.warn("No transport protocol classes could be loaded. The stack is running but without have any connectivity");
     }
 
-    map_key_conn = new HashMap<ConnectionKey, Connection>();
+    map_key_conn = new ConcurrentHashMap<ConnectionKey, Connection>();
     persistent_peers = new HashSet<Peer>();
+    dispatch_stage = settings.dispatchExecutor() != null ? new DispatchStage(this, settings) : null;
+    cer_capability_avps = ConstantAVPs.freeze(capabilityAVPs(settings.capabilities()));
   }
 
   /**
    * Calculate next timeout for a node implementation.
-   * Located here because the calculation involves examining each open connection.
+   * If owner is not null only the connections with that owner are considered.
+   * The deadlines are kept in a timer wheel per owner, so the connections are
+   * not examined one by one.
    */
-  long calcNextTimeout(final NodeImplementation node_impl) {
-    long timeout = -1;
-    synchronized (map_key_conn) {
-      for (final Map.Entry<ConnectionKey, Connection> e : map_key_conn.entrySet()) {
-        final Connection conn = e.getValue();
-        if (conn.node_impl != node_impl) {
-          continue;
-        }
-        final boolean ready = conn.state == Connection.State.ready;
-        final long conn_timeout = conn.timers.calcNextTimeout(ready);
-        if (timeout == -1 || conn_timeout < timeout) {
-          timeout = conn_timeout;
-        }
-      }
-    }
+  long calcNextTimeout(final NodeImplementation node_impl, final Object owner) {
+    final TimerWheel wheel = timer_wheels.get(owner != null ? owner : node_impl);
+    long timeout = wheel != null ? wheel.dueAt() : -1;
     if (please_stop && shutdown_deadline < timeout) {
       timeout = shutdown_deadline;
     }
@@ -694,48 +773,83 @@ public final class Node {
 
   /**
    * Run timers on the connections for a node implementation.
-   * Located here because it involves examining each open connection.
+   * If owner is not null only the connections with that owner are considered.
+   * Only the connections whose deadline has passed are examined, and the node
+   * lock is only taken if there are any.
    */
-  void runTimers(final NodeImplementation node_impl) {
+  void runTimers(final NodeImplementation node_impl, final Object owner) {
+    final TimerWheel wheel = timer_wheels.get(owner != null ? owner : node_impl);
+    if (wheel == null) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    final long due_at = wheel.dueAt();
+    if (due_at == -1 || due_at > now) {
+      return;
+    }
     synchronized (map_key_conn) {
-      for (final Iterator<Map.Entry<ConnectionKey, Connection>> it = map_key_conn.entrySet().iterator(); it
-              .hasNext();) {
-        final Map.Entry<ConnectionKey, Connection> e = it.next();
-        final Connection conn = e.getValue();
-        if (conn.node_impl != node_impl) {
-          continue;
-        }
+      wheel.expire(now);
+      Connection conn;
+      while ((conn = wheel.nextExpired()) != null) {
         final boolean ready = conn.state == Connection.State.ready;
         switch (conn.timers.calcAction(ready)) {
           case none:
             break;
           case disconnect_no_cer:
             log.warn("Disconnecting due to no CER/CEA");
-            it.remove();
+            map_key_conn.remove(conn.key);
             closeConnection(conn);
-            break;
+            continue;
           case disconnect_idle:
             log.warn("Disconnecting due to idle");
             //busy is the closest thing to "no traffic for a long time. No point in keeping the connection"
-            it.remove();
+            map_key_conn.remove(conn.key);
             initiateConnectionClose(conn, ProtocolConstants.DI_DISCONNECT_CAUSE_BUSY);
-            break;
+            continue;
           case disconnect_no_dw:
             log.warn("Disconnecting due to no DWA");
-            it.remove();
+            map_key_conn.remove(conn.key);
             closeConnection(conn);
-            break;
+            continue;
           case dwr:
             sendDWR(conn);
             break;
         }
+        scheduleTimers(conn);
       }
     }
   }
 
+  /*
+   * Put the connection in the timer wheel of its owner at its next deadline.
+   * Needed when it is registered and when its deadline gets earlier (it became
+   * ready or closing, or a DWA arrived). Called holding map_key_conn's monitor
+   */
+  private void scheduleTimers(final Connection conn) {
+    if (conn.state == Connection.State.closed) {
+      return;
+    }
+    final Object wheel_key = conn.owner != null ? conn.owner : conn.node_impl;
+    TimerWheel wheel = timer_wheels.get(wheel_key);
+    if (wheel == null) {
+      wheel = new TimerWheel(System.currentTimeMillis());
+      timer_wheels.put(wheel_key, wheel);
+    }
+    wheel.schedule(conn, conn.timers.calcNextTimeout(conn.state == Connection.State.ready));
+  }
+
+  //Called holding map_key_conn's monitor
+  private void unscheduleTimers(final Connection conn) {
+    if (conn.timer_wheel != null) {
+      conn.timer_wheel.remove(conn);
+    }
+  }
+
   /** Logs a correctly decoded message */
   void logRawDecodedPacket(final byte[] raw, final int offset, final int msg_size) {
-    log.trace(hexDump("Raw packet decoded", raw, offset, msg_size));
+    if (log.isTraceEnabled()) {
+      log.trace(hexDump("Raw packet decoded", raw, offset, msg_size));
+    }
   }
 
   /** Logs an incorrectly decoded (non-diameter-)message. */
@@ -792,9 +906,14 @@ public final class Node {
       log.info("Closing connection to " + (conn.peer != null ? conn.peer.toString() : conn.host_id));
     }
     synchronized (map_key_conn) {
+      if (conn.state == Connection.State.closed) {
+        return; //closed by another thread in the meantime
+      }
       conn.node_impl.close(conn, reset);
       map_key_conn.remove(conn.key);
       conn.state = Connection.State.closed;
+      unindex(conn);
+      unscheduleTimers(conn);
     }
     connection_listener.handle(conn.key, conn.peer, false);
   }
@@ -805,6 +924,7 @@ public final class Node {
       return; //should probably never happen
     }
     conn.state = Connection.State.closing;
+    scheduleTimers(conn);
     sendDPR(conn, why);
   }
 
@@ -865,6 +985,15 @@ public final class Node {
             }
             //We could also reject requests if we ar shutting down, but there are no result-code for this.
           }
+          if (dispatch_stage != null) {
+            if (!dispatch_stage.dispatch(msg, conn)) {
+              if (log.isDebugEnabled()) {
+                log.debug("Dispatch queue full, rejecting request from " + conn.host_id);
+              }
+              rejectRequest(msg, conn, ProtocolConstants.DIAMETER_RESULT_TOO_BUSY);
+            }
+            return true;
+          }
           if (!message_dispatcher.handle(msg, conn.key, conn.peer)) {
             if (msg.hdr.isRequest()) {
               return handleUnknownRequest(msg, conn);
@@ -878,11 +1007,24 @@ public final class Node {
     }
   }
 
+  /**
+   * Dispatch a message queued by the dispatch stage.
+   * Called by the dispatch executor. The connection may have been closed in the meantime.
+   */
+  void dispatchQueued(final Message msg, final Connection conn) {
+    if (!message_dispatcher.handle(msg, conn.key, conn.peer) && msg.hdr.isRequest()) {
+      synchronized (map_key_conn) {
+        if (conn.state == Connection.State.ready) {
+          handleUnknownRequest(msg, conn);
+        }
+      }
+    }
+  }
+
   private boolean isLoopedMessage(final Message msg) {
     //6.1.3
     for (final AVP a : msg.subset(ProtocolConstants.DI_ROUTE_RECORD)) {
-      final AVP_UTF8String avp = new AVP_UTF8String(a);
-      if (avp.queryValue().equals(settings.hostId())) {
+      if (a.getUTF8().equals(settings.hostId())) {
         return true;
       }
     }
@@ -901,23 +1043,22 @@ public final class Node {
 
     public AVP_VendorSpecificApplicationId(final AVP a) throws InvalidAVPLengthException, InvalidAVPValueException {
       super(a);
-      final AVP g[] = queryAVPs();
-      if (g.length < 2) {
-        throw new InvalidAVPValueException(a);
-      }
+      int count = 0;
       boolean found_vendor_id = false;
       boolean found_app_id = false;
-      for (final AVP e : g) {
-        if (e.code == ProtocolConstants.DI_VENDOR_ID) {
+      final AVPCursor c = cursor();
+      while (c.next()) {
+        count++;
+        if (c.code() == ProtocolConstants.DI_VENDOR_ID) {
           found_vendor_id = true;
-        } else if (e.code == ProtocolConstants.DI_AUTH_APPLICATION_ID) {
+        } else if (c.code() == ProtocolConstants.DI_AUTH_APPLICATION_ID) {
           found_app_id = true;
-        } else if (e.code == ProtocolConstants.DI_ACCT_APPLICATION_ID) {
+        } else if (c.code() == ProtocolConstants.DI_ACCT_APPLICATION_ID) {
           found_app_id = true;
           //else: something non-compliant, but we are tolerant
         }
       }
-      if (!found_vendor_id || !found_app_id) {
+      if (count < 2 || !found_vendor_id || !found_app_id) {
         throw new InvalidAVPValueException(a);
       }
     }
@@ -936,28 +1077,25 @@ public final class Node {
     }
 
     public int vendorId() throws InvalidAVPLengthException, InvalidAVPValueException {
-      for (final AVP a : queryAVPs()) {
-        if (a.code == ProtocolConstants.DI_VENDOR_ID) {
-          return new AVP_Unsigned32(a).queryValue();
-        }
+      final AVPCursor c = cursor();
+      if (c.next(ProtocolConstants.DI_VENDOR_ID)) {
+        return c.getUnsigned32();
       }
       throw new InvalidAVPValueException(this);
     }
 
     public Integer authAppId() throws InvalidAVPLengthException {
-      for (final AVP a : queryAVPs()) {
-        if (a.code == ProtocolConstants.DI_AUTH_APPLICATION_ID) {
-          return new AVP_Unsigned32(a).queryValue();
-        }
+      final AVPCursor c = cursor();
+      if (c.next(ProtocolConstants.DI_AUTH_APPLICATION_ID)) {
+        return c.getUnsigned32();
       }
       return null;
     }
 
     public Integer acctAppId() throws InvalidAVPLengthException {
-      for (final AVP a : queryAVPs()) {
-        if (a.code == ProtocolConstants.DI_ACCT_APPLICATION_ID) {
-          return new AVP_Unsigned32(a).queryValue();
-        }
+      final AVPCursor c = cursor();
+      if (c.next(ProtocolConstants.DI_ACCT_APPLICATION_ID)) {
+        return c.getUnsigned32();
       }
       return null;
     }
@@ -978,7 +1116,7 @@ public final class Node {
       AVP avp;
       avp = msg.find(ProtocolConstants.DI_AUTH_APPLICATION_ID);
       if (avp != null) {
-        final int app = new AVP_Unsigned32(avp).queryValue();
+        final int app = avp.getUnsigned32();
         if (log.isTraceEnabled()) {
           log.trace("auth-application-id=" + app);
         }
@@ -995,7 +1133,7 @@ public final class Node {
       }
       avp = msg.find(ProtocolConstants.DI_ACCT_APPLICATION_ID);
       if (avp != null) {
-        final int app = new AVP_Unsigned32(avp).queryValue();
+        final int app = avp.getUnsigned32();
         if (log.isTraceEnabled()) {
           log.trace("acct-application-id=" + app);
         }
@@ -1043,7 +1181,7 @@ public final class Node {
       response.hdr.setError(true);
     }
     response.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, result_code));
-    addOurHostAndRealm(response);
+    addSharedHostAndRealm(response);
     Utils.copyProxyInfo(msg, response);
     Utils.setMandatory_RFC3588(response);
     sendMessage(response, conn);
@@ -1052,11 +1190,27 @@ public final class Node {
   /**
    * Add origin-host and origin-realm to a message.
    * The configured host and realm is added to the message as origin-host
-   * and origin-realm AVPs
+   * and origin-realm AVPs. New AVPs are added, which the caller may modify;
+   * {@link #addSharedHostAndRealm} is cheaper.
    */
   public void addOurHostAndRealm(final Message msg) {
-    msg.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, settings.hostId()));
-    msg.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM, settings.realm()));
+    //copies of the prebuilt AVPs; the caller may modify them
+    msg.add(new AVP_UTF8String(constant_avps.host_id));
+    msg.add(new AVP_UTF8String(constant_avps.realm));
+  }
+
+  /**
+   * Add shared origin-host and origin-realm AVPs to a message.
+   * Like {@link #addOurHostAndRealm} but the same prebuilt AVPs are added to
+   * every message, so nothing is allocated or encoded per message. They are
+   * {@link dk.i1.diameter.ImmutableAVP}s with the M-bit set, as
+   * Utils.setMandatory_RFC3588() would set it, and cannot be modified.
+   *
+   * @since 0.9.6.14
+   */
+  public void addSharedHostAndRealm(final Message msg) {
+    msg.add(constant_avps.origin_host);
+    msg.add(constant_avps.origin_realm);
   }
 
   /**
@@ -1114,26 +1268,57 @@ public final class Node {
     }
     final boolean close_other_connection = cmp > 0;
     synchronized (map_key_conn) {
-      for (final Map.Entry<ConnectionKey, Connection> e : map_key_conn.entrySet()) {
-        final Connection conn = e.getValue();
-        if (conn.host_id != null && conn.host_id.equals(cer_host_id)
-                && conn.state == Connection.State.ready //TODO: what about TLS?
-                ) {
-          if (log.isInfoEnabled()) {
-            log.info("New connection to a peer we already have a connection to (" + cer_host_id + ")");
-          }
-          if (close_other_connection) {
-            closeConnection(conn);
-            return true;
-          } else {
-            return false; //close this one
-          }
+      final Connection conn = map_host_conn.get(cer_host_id);
+      if (conn != null
+              && conn.state == Connection.State.ready //TODO: what about TLS?
+              ) {
+        if (log.isInfoEnabled()) {
+          log.info("New connection to a peer we already have a connection to (" + cer_host_id + ")");
+        }
+        if (close_other_connection) {
+          closeConnection(conn);
+          return true;
+        } else {
+          return false; //close this one
         }
       }
     }
     return true;
   }
 
+  //The capability exchange has completed. Make the connection ready and findable by peer and host-id
+  private void connectionReady(final Connection conn) {
+    synchronized (map_key_conn) {
+      conn.state = Connection.State.ready;
+      map_peer_conn.put(conn.peer, conn);
+      map_host_conn.put(conn.host_id, conn);
+      scheduleTimers(conn);
+    }
+  }
+
+  //Remove a closed connection from the peer and host-id indexes. Called holding map_key_conn's monitor
+  private void unindex(final Connection conn) {
+    if (conn.peer == null) {
+      return; //never became ready
+    }
+    final boolean by_peer = map_peer_conn.remove(conn.peer, conn);
+    final boolean by_host = map_host_conn.remove(conn.host_id, conn);
+    if (!by_peer && !by_host) {
+      return;
+    }
+    //another ready connection to the same peer may have been shadowed by this one
+    for (final Connection other : map_key_conn.values()) {
+      if (other.state == Connection.State.ready) {
+        if (by_peer && other.peer.equals(conn.peer)) {
+          map_peer_conn.putIfAbsent(other.peer, other);
+        }
+        if (by_host && other.host_id.equals(conn.host_id)) {
+          map_host_conn.putIfAbsent(other.host_id, other);
+        }
+      }
+    }
+  }
+
   private boolean handleCER(final Message msg, final Connection conn) {
     if (log.isTraceEnabled()) {
       log.trace("CER received from " + conn.host_id);
@@ -1151,13 +1336,13 @@ public final class Node {
         error_response.prepareResponse(msg);
         error_response
                 .add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_MISSING_AVP));
-        addOurHostAndRealm(error_response);
+        addSharedHostAndRealm(error_response);
         error_response.add(new AVP_FailedAVP(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, "")));
         Utils.setMandatory_RFC3588(error_response);
         sendMessage(error_response, conn);
         return false;
       }
-      host_id = new AVP_UTF8String(avp).queryValue();
+      host_id = avp.getUTF8();
       if (log.isTraceEnabled()) {
         log.trace("Peer's origin-host-id is " + host_id);
       }
@@ -1179,7 +1364,7 @@ public final class Node {
           error_response.add(
                   new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_UNKNOWN_PEER));
         }
-        addOurHostAndRealm(error_response);
+        addSharedHostAndRealm(error_response);
         if (ar != null && ar.error_message != null) {
           error_response.add(new AVP_UTF8String(ProtocolConstants.DI_ERROR_MESSAGE, ar.error_message));
         }
@@ -1197,7 +1382,7 @@ public final class Node {
         error_response.prepareResponse(msg);
         error_response.add(
                 new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_ELECTION_LOST));
-        addOurHostAndRealm(error_response);
+        addSharedHostAndRealm(error_response);
         Utils.setMandatory_RFC3588(error_response);
         sendMessage(error_response, conn);
         return false;
@@ -1221,7 +1406,7 @@ public final class Node {
       }
       Utils.setMandatory_RFC3588(cea);
       sendMessage(cea, conn);
-      conn.state = Connection.State.ready;
+      connectionReady(conn);
       connection_listener.handle(conn.key, conn.peer, true);
       synchronized (obj_conn_wait) {
         obj_conn_wait.notifyAll();
@@ -1244,7 +1429,7 @@ public final class Node {
     }
     int result_code;
     try {
-      result_code = new AVP_Unsigned32(avp).queryValue();
+      result_code = avp.getUnsigned32();
     } catch (final InvalidAVPLengthException ex) {
       if (log.isInfoEnabled()) {
         log.info("CEA from " + conn.host_id + " contained an ill-formed Result-Code. Dropping connection");
@@ -1262,7 +1447,7 @@ public final class Node {
       log.warn("Peer did not include origin-host-id in CEA (violation of RFC3588 section 5.3.2 page 61). Dropping connection");
       return false;
     }
-    final String host_id = new AVP_UTF8String(avp).queryValue();
+    final String host_id = avp.getUTF8();
     if (log.isTraceEnabled()) {
       log.trace("Node:Peer's origin-host-id is '" + host_id + "'. Expected: '" + conn.host_id + "'");
     }
@@ -1272,7 +1457,7 @@ public final class Node {
     conn.host_id = host_id;
     final boolean rc = handleCEx(msg, conn);
     if (rc) {
-      conn.state = Connection.State.ready;
+      connectionReady(conn);
       if (log.isInfoEnabled()) {
         log.info("Connection to " + conn.peer.toString() + " is now ready");
       }
@@ -1292,14 +1477,14 @@ public final class Node {
     try {
       final Capability reported_capabilities = new Capability();
       for (final AVP a : msg.subset(ProtocolConstants.DI_SUPPORTED_VENDOR_ID)) {
-        final int vendor_id = new AVP_Unsigned32(a).queryValue();
+        final int vendor_id = a.getUnsigned32();
         if (log.isTraceEnabled()) {
           log.trace("peer supports vendor " + vendor_id);
         }
         reported_capabilities.addSupportedVendor(vendor_id);
       }
       for (final AVP a : msg.subset(ProtocolConstants.DI_AUTH_APPLICATION_ID)) {
-        final int app = new AVP_Unsigned32(a).queryValue();
+        final int app = a.getUnsigned32();
         if (log.isTraceEnabled()) {
           log.trace("peer supports auth-app " + app);
         }
@@ -1308,7 +1493,7 @@ public final class Node {
         }
       }
       for (final AVP a : msg.subset(ProtocolConstants.DI_ACCT_APPLICATION_ID)) {
-        final int app = new AVP_Unsigned32(a).queryValue();
+        final int app = a.getUnsigned32();
         if (log.isTraceEnabled()) {
           log.trace("peer supports acct-app " + app);
         }
@@ -1355,7 +1540,7 @@ public final class Node {
           error_response.prepareResponse(msg);
           error_response.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE,
                   ProtocolConstants.DIAMETER_RESULT_NO_COMMON_APPLICATION));
-          addOurHostAndRealm(error_response);
+          addSharedHostAndRealm(error_response);
           Utils.setMandatory_RFC3588(error_response);
           sendMessage(error_response, conn);
         }
@@ -1370,7 +1555,7 @@ public final class Node {
         error_response.prepareResponse(msg);
         error_response.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE,
                 ProtocolConstants.DIAMETER_RESULT_INVALID_AVP_LENGTH));
-        addOurHostAndRealm(error_response);
+        addSharedHostAndRealm(error_response);
         error_response.add(new AVP_FailedAVP(ex.avp));
         Utils.setMandatory_RFC3588(error_response);
         sendMessage(error_response, conn);
@@ -1383,7 +1568,7 @@ public final class Node {
         error_response.prepareResponse(msg);
         error_response.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE,
                 ProtocolConstants.DIAMETER_RESULT_INVALID_AVP_VALUE));
-        addOurHostAndRealm(error_response);
+        addSharedHostAndRealm(error_response);
         error_response.add(new AVP_FailedAVP(ex.avp));
         Utils.setMandatory_RFC3588(error_response);
         sendMessage(error_response, conn);
@@ -1415,44 +1600,56 @@ public final class Node {
 
   private void addCEStuff(final Message msg, final Capability capabilities, final Connection conn) {
     //Origin-Host, Origin-Realm
-    addOurHostAndRealm(msg);
+    addSharedHostAndRealm(msg);
     //Host-IP-Address
     final Collection<InetAddress> local_addresses = conn.getLocalAddresses();
     for (final InetAddress ia : local_addresses) {
       msg.add(new AVP_Address(ProtocolConstants.DI_HOST_IP_ADDRESS, ia));
     }
     //Vendor-Id
-    msg.add(new AVP_Unsigned32(ProtocolConstants.DI_VENDOR_ID, settings.vendorId()));
+    msg.add(constant_avps.vendor_id);
     //Product-Name
-    msg.add(new AVP_UTF8String(ProtocolConstants.DI_PRODUCT_NAME, settings.productName()));
+    msg.add(constant_avps.product_name);
     //Origin-State-Id
-    msg.add(new AVP_Unsigned32(ProtocolConstants.DI_ORIGIN_STATE_ID, node_state.stateId()));
+    msg.add(constant_avps.origin_state_id);
     //Error-Message, Failed-AVP: not in success
+    //Supported-Vendor-Id, Auth-Application-Id, Acct-Application-Id, Vendor-Specific-Application-Id
+    //Our own capabilities (CER) are prebuilt. The negotiated ones (CEA) differ per peer
+    final AVP capability_avps[] = capabilities == settings.capabilities() ? cer_capability_avps
+                                                                           : capabilityAVPs(capabilities);
+    for (final AVP a : capability_avps) {
+      msg.add(a);
+    }
+    //Firmware-Revision
+    if (constant_avps.firmware_revision != null) {
+      msg.add(constant_avps.firmware_revision);
+    }
+  }
+
+  private AVP[] capabilityAVPs(final Capability capabilities) {
+    final ArrayList<AVP> avps = new ArrayList<AVP>();
     //Supported-Vendor-Id
     for (final Integer i : capabilities.supported_vendor) {
-      msg.add(new AVP_Unsigned32(ProtocolConstants.DI_SUPPORTED_VENDOR_ID, i));
+      avps.add(new AVP_Unsigned32(ProtocolConstants.DI_SUPPORTED_VENDOR_ID, i));
     }
     //Auth-Application-Id
     for (final Integer i : capabilities.auth_app) {
-      msg.add(new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID, i));
+      avps.add(new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID, i));
     }
     //Inband-Security-Id
     //  todo
     //Acct-Application-Id
     for (final Integer i : capabilities.acct_app) {
-      msg.add(new AVP_Unsigned32(ProtocolConstants.DI_ACCT_APPLICATION_ID, i));
+      avps.add(new AVP_Unsigned32(ProtocolConstants.DI_ACCT_APPLICATION_ID, i));
     }
     //Vendor-Specific-Application-Id
     for (final Capability.VendorApplication va : capabilities.auth_vendor) {
-      msg.add(new AVP_VendorSpecificApplicationId(va.vendor_id, va.application_id, 0));
+      avps.add(new AVP_VendorSpecificApplicationId(va.vendor_id, va.application_id, 0));
     }
     for (final Capability.VendorApplication va : capabilities.acct_vendor) {
-      msg.add(new AVP_VendorSpecificApplicationId(va.vendor_id, 0, va.application_id));
-    }
-    //Firmware-Revision
-    if (settings.firmwareRevision() != 0) {
-      msg.add(new AVP_Unsigned32(ProtocolConstants.DI_FIRMWARE_REVISION, settings.firmwareRevision()));
+      avps.add(new AVP_VendorSpecificApplicationId(va.vendor_id, 0, va.application_id));
     }
+    return avps.toArray(new AVP[avps.size()]);
   }
 
   private boolean handleDWR(final Message msg, final Connection conn) {
@@ -1463,8 +1660,8 @@ public final class Node {
     final Message dwa = new Message();
     dwa.prepareResponse(msg);
     dwa.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_SUCCESS));
-    addOurHostAndRealm(dwa);
-    dwa.add(new AVP_Unsigned32(ProtocolConstants.DI_ORIGIN_STATE_ID, node_state.stateId()));
+    addSharedHostAndRealm(dwa);
+    dwa.add(constant_avps.origin_state_id);
     Utils.setMandatory_RFC3588(dwa);
 
     sendMessage(dwa, conn);
@@ -1475,7 +1672,10 @@ public final class Node {
     if (log.isTraceEnabled()) {
       log.trace("DWA received from " + conn.host_id);
     }
-    conn.timers.markDWA();
+    synchronized (map_key_conn) {
+      conn.timers.markDWA();
+      scheduleTimers(conn); //the next DWR is due earlier now
+    }
     return true;
   }
 
@@ -1486,7 +1686,7 @@ public final class Node {
     final Message dpa = new Message();
     dpa.prepareResponse(msg);
     dpa.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_SUCCESS));
-    addOurHostAndRealm(dpa);
+    addSharedHostAndRealm(dpa);
     Utils.setMandatory_RFC3588(dpa);
 
     sendMessage(dpa, conn);
@@ -1522,8 +1722,8 @@ public final class Node {
     dwr.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_COMMON;
     dwr.hdr.hop_by_hop_identifier = conn.nextHopByHopIdentifier();
     dwr.hdr.end_to_end_identifier = node_state.nextEndToEndIdentifier();
-    addOurHostAndRealm(dwr);
-    dwr.add(new AVP_Unsigned32(ProtocolConstants.DI_ORIGIN_STATE_ID, node_state.stateId()));
+    addSharedHostAndRealm(dwr);
+    dwr.add(constant_avps.origin_state_id);
     Utils.setMandatory_RFC3588(dwr);
 
     sendMessage(dwr, conn);
@@ -1541,18 +1741,18 @@ public final class Node {
     dpr.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_COMMON;
     dpr.hdr.hop_by_hop_identifier = conn.nextHopByHopIdentifier();
     dpr.hdr.end_to_end_identifier = node_state.nextEndToEndIdentifier();
-    addOurHostAndRealm(dpr);
+    addSharedHostAndRealm(dpr);
     dpr.add(new AVP_Unsigned32(ProtocolConstants.DI_DISCONNECT_CAUSE, why));
     Utils.setMandatory_RFC3588(dpr);
 
     sendMessage(dpr, conn);
   }
 
-  boolean anyOpenConnections(final NodeImplementation node_impl) {
+  boolean anyOpenConnections(final NodeImplementation node_impl, final Object owner) {
     synchronized (map_key_conn) {
       for (final Map.Entry<ConnectionKey, Connection> e : map_key_conn.entrySet()) {
         final Connection conn = e.getValue();
-        if (conn.node_impl == node_impl) {
+        if (conn.node_impl == node_impl && (owner == null || conn.owner == owner)) {
           return true;
         }
       }
@@ -1563,12 +1763,14 @@ public final class Node {
   void registerInboundConnection(final Connection conn) {
     synchronized (map_key_conn) {
       map_key_conn.put(conn.key, conn);
+      scheduleTimers(conn);
     }
   }
 
   void unregisterConnection(final Connection conn) {
     synchronized (map_key_conn) {
       map_key_conn.remove(conn.key);
+      unscheduleTimers(conn);
     }
   }
 
@@ -36,7 +36,11 @@ abstract class NodeImplementation {
 
   //Helper functions. Mostly forwarders to node
   boolean anyOpenConnections() {
-    return node.anyOpenConnections(this);
+    return node.anyOpenConnections(this, null);
+  }
+
+  boolean anyOpenConnections(final Object owner) {
+    return node.anyOpenConnections(this, owner);
   }
 
   void registerInboundConnection(final Connection conn) {
@@ -48,7 +52,15 @@ abstract class NodeImplementation {
   }
 
   long calcNextTimeout() {
-    return node.calcNextTimeout(this);
+    return node.calcNextTimeout(this, null);
+  }
+
+  long calcNextTimeout(final Object owner) {
+    return node.calcNextTimeout(this, owner);
+  }
+
+  void writabilityChanged(final Connection conn, final boolean writable) {
+    node.writabilityChanged(conn, writable);
   }
 
   void closeConnection(final Connection conn) {
@@ -64,7 +76,11 @@ abstract class NodeImplementation {
   }
 
   void runTimers() {
-    node.runTimers(this);
+    node.runTimers(this, null);
+  }
+
+  void runTimers(final Object owner) {
+    node.runTimers(this, owner);
   }
 
   void logRawDecodedPacket(final byte[] raw, final int offset, final int msg_size) {
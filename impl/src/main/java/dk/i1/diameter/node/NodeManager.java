@@ -1,11 +1,18 @@
 package dk.i1.diameter.node;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import dk.i1.diameter.AVP;
 import dk.i1.diameter.AVP_UTF8String;
 import dk.i1.diameter.AVP_Unsigned32;
 import dk.i1.diameter.Message;
+import dk.i1.diameter.MessageTemplate;
 import dk.i1.diameter.ProtocolConstants;
 import dk.i1.diameter.Utils;
 import lombok.extern.slf4j.Slf4j;
@@ -17,6 +24,8 @@ import lombok.extern.slf4j.Slf4j;
  * You can build proxies, redirect agents, servers and clients on top of it.
  * NodeManager is meant to be subclassed and subclasses should override
  * handleRequest() and handleAnswer()
+ * Clients can also use {@link #sendRequestAsync} and get the answer as a
+ * CompletionStage instead of through handleAnswer().
  *
  * <p>
  * If your needs are even simpler then have a look at {@link SimpleSyncClient} and
@@ -68,25 +77,19 @@ import lombok.extern.slf4j.Slf4j;
  * </ol>
  */
 @Slf4j
-public abstract class NodeManager implements MessageDispatcher, ConnectionListener {
+public abstract class NodeManager implements MessageDispatcher, ConnectionListener, WritabilityListener {
 
   private final Node node;
   private final NodeSettings settings;
-  private Map<ConnectionKey, Map<Integer, RequestData>> req_map;
-  private boolean stop_timeout_thread;
+  //The outstanding requests of each ready connection. Also the monitor the timeout thread waits on
+  private final Map<ConnectionKey, PendingRequests> req_map = new ConcurrentHashMap<ConnectionKey, PendingRequests>();
+  private final RequestTimeoutWheel request_timeouts = new RequestTimeoutWheel(System.currentTimeMillis());
+  private volatile boolean stop_timeout_thread;
   private TimeoutThread timeout_thread;
-  private boolean timeout_thread_actively_waiting;
-
-  private final class RequestData {
-
-    public Object state;
-    public long timeout_time;
-
-    RequestData(final Object state, final long timeout_time) {
-      this.state = state;
-      this.timeout_time = timeout_time;
-    }
-  };
+  private volatile PeerSelector peer_selector; //null means array order
+  private final PeerSelector.Load peer_load = new PeerLoad();
+  //When the timeout thread wakes up by itself (MIN_VALUE while it is awake). Senders with an earlier deadline notify it
+  private volatile long timeout_thread_wakeup;
 
   /**
    * Constructor for NodeManager.
@@ -106,8 +109,8 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
    */
   public NodeManager(final NodeSettings settings, final NodeValidator node_validator) {
     node = new Node(this, this, settings, node_validator);
+    node.setWritabilityListener(this);
     this.settings = settings;
-    req_map = new HashMap<ConnectionKey, Map<Integer, RequestData>>();
   }
 
   /**
@@ -118,7 +121,7 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
   public void start() throws java.io.IOException, UnsupportedTransportProtocolException {
     node.start();
     stop_timeout_thread = false;
-    timeout_thread_actively_waiting = false;
+    timeout_thread_wakeup = Long.MIN_VALUE;
     timeout_thread = new TimeoutThread();
     timeout_thread.setDaemon(true);
     timeout_thread.start();
@@ -142,13 +145,15 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
   public void stop(final long grace_time) {
     node.stop(grace_time);
     stop_timeout_thread = true;
-    synchronized (req_map) {
-      for (final Map.Entry<ConnectionKey, Map<Integer, RequestData>> e_c : req_map.entrySet()) {
-        final ConnectionKey connkey = e_c.getKey();
-        for (final Map.Entry<Integer, RequestData> e_s : e_c.getValue().entrySet()) {
-          handleAnswer(null, connkey, e_s.getValue().state);
+    for (final ConnectionKey connkey : req_map.keySet()) {
+      final PendingRequests pending = req_map.remove(connkey);
+      if (pending != null) {
+        for (final Object state : pending.close()) {
+          deliverAnswer(null, connkey, state, false);
         }
       }
+    }
+    synchronized (req_map) {
       req_map.notify();
     }
     if (timeout_thread != null) {
@@ -158,8 +163,7 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
       }
       timeout_thread = null;
     }
-    //Fastest way to clear it...
-    req_map = new HashMap<ConnectionKey, Map<Integer, RequestData>>();
+    request_timeouts.clear();
   }
 
   /**
@@ -244,7 +248,7 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
     answer.hdr.setError(true);
     answer.add(
             new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_UNABLE_TO_DELIVER));
-    node.addOurHostAndRealm(answer);
+    node.addSharedHostAndRealm(answer);
     Utils.copyProxyInfo(request, answer);
     Utils.setMandatory_RFC3588(answer);
     try {
@@ -338,7 +342,7 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
     boolean our_route_record_found = false;
     final String our_host_id = settings.hostId();
     for (final AVP a : request.subset(ProtocolConstants.DI_ROUTE_RECORD)) {
-      if (new AVP_UTF8String(a).queryValue().equals(our_host_id)) {
+      if (a.getUTF8().equals(our_host_id)) {
         our_route_record_found = true;
         break;
       }
@@ -404,7 +408,8 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
    * @param state A state object that will be passed to handleAnswer() when the answer arrives.
    * @param timeout Timeout in milliseconds, -1 means no timeout
    * @throws NotARequestException If the request does not have the R bit set in the header.
-   * @throws StaleConnectionException If the ConnectionKey refers to a lost connection.
+   * @throws StaleConnectionException If the ConnectionKey refers to a lost connection, or
+   *         ConnectionNotWritableException if the connection is not writable (see {@link Node#isWritable}).
    * @since 0.9.6.8 timeout parameter introduced
    */
   public final void sendRequest(final Message request, final ConnectionKey connkey, final Object state,
@@ -414,30 +419,26 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
       throw new NotARequestException();
     }
     request.hdr.hop_by_hop_identifier = node.nextHopByHopIdentifier(connkey);
-    //remember state
-    synchronized (req_map) {
-      final Map<Integer, RequestData> e_c = req_map.get(connkey);
-      if (e_c == null) {
-        throw new StaleConnectionException();
-      }
-      e_c.put(request.hdr.hop_by_hop_identifier, new RequestData(state, System.currentTimeMillis() + timeout));
-      if (timeout >= 0 && !timeout_thread_actively_waiting) {
-        req_map.notify(); //wake up timeout thread
+    rememberRequest(connkey, request.hdr.hop_by_hop_identifier, state, timeout);
+    try {
+      node.sendMessage(request, connkey);
+    } catch (final StaleConnectionException e) {
+      //Not sent. Forget it, so it is not failed as stale later while routeRequest() retries it
+      //elsewhere, unless the lost connection has already delivered its outcome.
+      if (forgetRequest(connkey, request.hdr.hop_by_hop_identifier)) {
+        throw e;
       }
+      return;
     }
-    node.sendMessage(request, connkey);
     if (log.isTraceEnabled()) {
       log.trace("Request sent, command_code=" + request.hdr.command_code + " hop_by_hop_identifier="
               + request.hdr.hop_by_hop_identifier);
     }
-    //note: if Node.sendMessage() throws StaleConnectionException
-    //then we should theoretically remove the registered request,
-    //but that is done by the ConnectionListener.handle() method.
   }
 
   /**
    * Sends a request.
-   * The request is sent to one of the peers and an optional state object is remembered.
+   * The request is sent to one of the peers (see {@link #setPeerSelector}) and an optional state object is remembered.
    * Please note that handleAnswer() for this request may get called before this method returns. This can happen if the
    * peer is very fast and the OS thread scheduler decides to schedule the networking thread.
    * The end-to-end identifier of the message is set. This is not symmetric with the other sendRequest method.
@@ -456,7 +457,7 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
 
   /**
    * Sends a request.
-   * The request is sent to one of the peers and an optional state object is remembered.
+   * The request is sent to one of the peers (see {@link #setPeerSelector}) and an optional state object is remembered.
    * Please note that handleAnswer() for this request may get called before this method returns. This can happen if the
    * peer is very fast and the OS thread scheduler decides to schedule the networking thread.
    * The end-to-end identifier of the message is set. This is not symmetric with the other sendRequest method.
@@ -472,13 +473,206 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
    */
   public final void sendRequest(final Message request, final Peer peers[], final Object state, final long timeout)
           throws NotRoutableException, NotARequestException {
+    request.hdr.end_to_end_identifier = node.nextEndToEndIdentifier();
+    routeRequest(request, null, peers, state, timeout);
+  }
+
+  /**
+   * Sends a request asynchronously.
+   * Implemented as <code>sendRequestAsync(request,peers,timeout,null)</code>
+   *
+   * @since 0.9.6.14
+   */
+  public final CompletionStage<Message> sendRequestAsync(final Message request, final Peer peers[],
+          final long timeout) {
+    return sendRequestAsync(request, peers, timeout, null);
+  }
+
+  /**
+   * Sends a request asynchronously.
+   * The request is sent to one of the peers like sendRequest() does, but
+   * instead of handleAnswer() being called the returned stage is completed
+   * with the answer. The stage completes exceptionally with
+   * NotARequestException or NotRoutableException if the request could not be
+   * sent, with java.util.concurrent.TimeoutException if the timeout expires,
+   * and with StaleConnectionException if the connection is lost or the node
+   * manager is stopped before the answer arrives.
+   * <p>
+   * The stage is completed by the executor if one is specified, and
+   * otherwise by the networking thread or the timeout thread (or by the
+   * calling thread if the request could not be sent). Dependent actions
+   * that do lengthy processing should then use an executor of their own.
+   *
+   * @param request The request to send.
+   * @param peers The candidate peers
+   * @param timeout Timeout in milliseconds, -1 means no timeout
+   * @param executor The executor that completes the stage. Null means the thread delivering the outcome.
+   * @return A stage completed with the answer.
+   * @since 0.9.6.14
+   */
+  public final CompletionStage<Message> sendRequestAsync(final Message request, final Peer peers[],
+          final long timeout, final Executor executor) {
+    final AsyncRequest async_request = new AsyncRequest(executor);
+    try {
+      sendRequest(request, peers, async_request, timeout);
+    } catch (final NotRoutableException ex) {
+      async_request.complete(null, ex);
+    } catch (final NotARequestException ex) {
+      async_request.complete(null, ex);
+    }
+    return async_request.future;
+  }
+
+  /*
+   * The state of a request sent with sendRequestAsync(). The outcome is
+   * delivered to the future instead of handleAnswer().
+   */
+  private static final class AsyncRequest implements Runnable {
+    final CompletableFuture<Message> future = new CompletableFuture<Message>();
+    private final Executor executor;
+    private Message answer;
+    private Throwable failure;
+
+    AsyncRequest(final Executor executor) {
+      this.executor = executor;
+    }
+
+    void complete(final Message answer, final Throwable failure) {
+      this.answer = answer;
+      this.failure = failure;
+      if (executor != null) {
+        try {
+          executor.execute(this);
+          return;
+        } catch (final RejectedExecutionException ex) {
+          //complete it here rather than leave it hanging
+        }
+      }
+      run();
+    }
+
+    @Override
+    public void run() {
+      if (failure != null) {
+        future.completeExceptionally(failure);
+      } else {
+        future.complete(answer);
+      }
+    }
+  }
+
+  /**
+   * Sends a request built from a template.
+   * Implemented as <code>sendRequest(template,connkey,state,-1)</code>
+   *
+   * @since 0.9.6.14
+   */
+  public final void sendRequest(final MessageTemplate template, final ConnectionKey connkey, final Object state)
+          throws StaleConnectionException, NotARequestException {
+    sendRequest(template, connkey, state, -1);
+  }
+
+  /**
+   * Sends a request built from a template.
+   * A request initiated by this node is sent to the specified connection.
+   * The hop-by-hop identifier is set in the template before the message is
+   * copied from it (by the calling thread, so the template can be patched
+   * again as soon as this returns), and the request is tracked just like a request sent with
+   * {@link #sendRequest(Message,ConnectionKey,Object,long)}.
+   *
+   * @param template The request template with its slots already patched.
+   * @param connkey The connection to use.
+   * @param state A state object that will be passed to handleAnswer() when the answer arrives.
+   * @param timeout Timeout in milliseconds, -1 means no timeout
+   * @throws NotARequestException If the template does not have the R bit set in the header.
+   * @throws StaleConnectionException If the ConnectionKey refers to a lost connection, or
+   *         ConnectionNotWritableException if the connection is not writable.
+   * @since 0.9.6.14
+   */
+  public final void sendRequest(final MessageTemplate template, final ConnectionKey connkey, final Object state,
+          final long timeout)
+          throws StaleConnectionException, NotARequestException {
+    if (!template.isRequest()) {
+      throw new NotARequestException();
+    }
+    final int hop_by_hop_identifier = node.nextHopByHopIdentifier(connkey);
+    template.setHopByHopIdentifier(hop_by_hop_identifier);
+    rememberRequest(connkey, hop_by_hop_identifier, state, timeout);
+    try {
+      node.sendMessage(template, connkey);
+    } catch (final StaleConnectionException e) {
+      //as for messages
+      if (forgetRequest(connkey, hop_by_hop_identifier)) {
+        throw e;
+      }
+      return;
+    }
+    if (log.isTraceEnabled()) {
+      log.trace("Request sent, command_code=" + template.prototype().hdr.command_code + " hop_by_hop_identifier="
+              + hop_by_hop_identifier);
+    }
+  }
+
+  /**
+   * Sends a request built from a template.
+   * Implemented as <code>sendRequest(template,peers,state,-1)</code>
+   *
+   * @since 0.9.6.14
+   */
+  public final void sendRequest(final MessageTemplate template, final Peer peers[], final Object state)
+          throws NotRoutableException, NotARequestException {
+    sendRequest(template, peers, state, -1);
+  }
+
+  /**
+   * Sends a request built from a template.
+   * This works like {@link #sendRequest(Message,Peer[],Object,long)}: the
+   * end-to-end identifier is set in the template and the request is sent to
+   * one of the peers. The T bit is cleared first so the template can be
+   * reused after a request had to be retransmitted to another peer. The
+   * peers are checked against the application of the template's prototype
+   * message, so the application-id AVPs should not be slots.
+   *
+   * @param template The request template with its slots already patched.
+   * @param peers The candidate peers
+   * @param state A state object to be remembered. This will be passed to the handleAnswer() method when the answer
+   *        arrives.
+   * @param timeout Timeout in milliseconds, -1 means no timeout
+   * @throws NotARequestException If the template does not have the R bit set in the header.
+   * @throws NotRoutableException If the message could not be sent to any of the peers.
+   * @since 0.9.6.14
+   */
+  public final void sendRequest(final MessageTemplate template, final Peer peers[], final Object state,
+          final long timeout)
+          throws NotRoutableException, NotARequestException {
+    template.setEndToEndIdentifier(node.nextEndToEndIdentifier());
+    template.setRetransmit(false);
+    routeRequest(template.prototype(), template, peers, state, timeout);
+  }
+
+  /*
+   * Send the request (or the template if not null) to the first capable peer
+   * with a usable connection. The request is used for the application check.
+   */
+  private void routeRequest(final Message request, final MessageTemplate template, final Peer peers[],
+          final Object state, final long timeout)
+          throws NotRoutableException, NotARequestException {
     if (log.isTraceEnabled()) {
       log.trace("Sending request (command_code=" + request.hdr.command_code + ") to " + peers.length + " peers");
     }
-    request.hdr.end_to_end_identifier = node.nextEndToEndIdentifier();
     boolean any_peers = false;
     boolean any_capable_peers = false;
-    for (final Peer p : peers) {
+    final PeerSelector selector = peer_selector;
+    int first = 0;
+    if (selector != null && peers.length > 1) {
+      first = selector.select(peers, peer_load);
+      if (first < 0 || first >= peers.length) {
+        first = 0;
+      }
+    }
+    for (int n = 0; n < peers.length; n++) {
+      //the selected peer first, then the others in array order
+      final Peer p = peers[n == 0 ? first : (n - 1 < first ? n - 1 : n)];
       any_peers = true;
       if (log.isTraceEnabled()) {
         log.trace("Considering sending request to " + p.host());
@@ -499,13 +693,27 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
       }
       any_capable_peers = true;
       try {
-        sendRequest(request, connkey, state, timeout);
+        if (template != null) {
+          sendRequest(template, connkey, state, timeout);
+        } else {
+          sendRequest(request, connkey, state, timeout);
+        }
         return;
+      } catch (final ConnectionNotWritableException e) {
+        //not sent, so try the next peer without setting the T bit
+        if (log.isTraceEnabled()) {
+          log.trace("peer " + p.host() + " is not writable");
+        }
+        continue;
       } catch (final StaleConnectionException e) {
         //ok
       }
       log.trace("Setting retransmit bit");
-      request.hdr.setRetransmit(true);
+      if (template != null) {
+        template.setRetransmit(true);
+      } else {
+        request.hdr.setRetransmit(true);
+      }
     }
     if (any_capable_peers) {
       throw new NotRoutableException("All capable peer connections went stale");
@@ -516,6 +724,82 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
     }
   }
 
+  /**
+   * Set the load-balancing policy for sendRequest() with a list of peers.
+   * By default the peers are tried in array order, so the first usable peer
+   * gets all the requests.
+   *
+   * @param selector The policy, or null for array order. See {@link PeerSelectors}.
+   * @since 0.9.6.14
+   */
+  public void setPeerSelector(final PeerSelector selector) {
+    this.peer_selector = selector;
+  }
+
+  //The load of the peers for the PeerSelector, from the pending-request tables of their connections
+  private final class PeerLoad implements PeerSelector.Load {
+    private PendingRequests pending(final Peer peer) {
+      final ConnectionKey connkey = node.findConnection(peer);
+      return connkey != null ? req_map.get(connkey) : null;
+    }
+
+    @Override
+    public int outstandingRequests(final Peer peer) {
+      final PendingRequests pending = pending(peer);
+      return pending != null ? pending.size() : -1;
+    }
+
+    @Override
+    public long latency(final Peer peer) {
+      final PendingRequests pending = pending(peer);
+      return pending != null ? pending.latency() : -1;
+    }
+  }
+
+  //Register an outstanding request so handleAnswer() gets its state
+  private void rememberRequest(final ConnectionKey connkey, final int hop_by_hop_identifier, final Object state,
+          final long timeout) throws StaleConnectionException {
+    final PendingRequests pending = req_map.get(connkey);
+    final long timeout_time = timeout >= 0 ? System.currentTimeMillis() + timeout : -1;
+    if (pending == null || !pending.put(hop_by_hop_identifier, state, timeout_time)) {
+      throw new StaleConnectionException();
+    }
+    if (timeout >= 0) {
+      request_timeouts.add(pending, hop_by_hop_identifier, timeout_time);
+      if (timeout_time < timeout_thread_wakeup) {
+        synchronized (req_map) {
+          req_map.notify(); //wake up timeout thread
+        }
+      }
+    }
+  }
+
+  //The request was not sent after all. Returns false if the connection is gone and has delivered it as lost
+  private boolean forgetRequest(final ConnectionKey connkey, final int hop_by_hop_identifier) {
+    final PendingRequests pending = req_map.get(connkey);
+    return pending != null && pending.remove(hop_by_hop_identifier) != PendingRequests.not_found;
+  }
+
+  /*
+   * Deliver the outcome of a request to handleAnswer(), or to the future if
+   * it was sent with sendRequestAsync(). A null answer means the request
+   * timed out or the connection was lost.
+   */
+  private void deliverAnswer(final Message answer, final ConnectionKey connkey, final Object state,
+          final boolean timed_out) {
+    if (state instanceof AsyncRequest) {
+      if (answer != null) {
+        ((AsyncRequest) state).complete(answer, null);
+      } else if (timed_out) {
+        ((AsyncRequest) state).complete(null, new TimeoutException("No answer within the timeout"));
+      } else {
+        ((AsyncRequest) state).complete(null, new StaleConnectionException());
+      }
+    } else {
+      handleAnswer(answer, connkey, state);
+    }
+  }
+
   //messagedispatcher
   /**
    * Handle an incoming message.
@@ -531,21 +815,10 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
         log.trace("Handling answer, hop_by_hop_identifier=" + msg.hdr.hop_by_hop_identifier);
       }
       //locate state
-      Object state = null;
-      boolean found = false;
-      synchronized (req_map) {
-        final Map<Integer, RequestData> e_c = req_map.get(connkey);
-        if (e_c != null) {
-          final RequestData rd = e_c.get(msg.hdr.hop_by_hop_identifier);
-          if (rd != null) {
-            state = rd.state;
-            e_c.remove(msg.hdr.hop_by_hop_identifier);
-            found = true;
-          }
-        }
-      }
-      if (found) {
-        handleAnswer(msg, connkey, state);
+      final PendingRequests pending = req_map.get(connkey);
+      final Object state = pending != null ? pending.answered(msg.hdr.hop_by_hop_identifier) : PendingRequests.not_found;
+      if (state != PendingRequests.not_found) {
+        deliverAnswer(msg, connkey, state, false);
       } else {
         log.info("Answer did not match any outstanding request");
       }
@@ -561,31 +834,42 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
    * Subclasses should not override this method.
    */
   public final void handle(final ConnectionKey connkey, final Peer peer, final boolean up) {
-    synchronized (req_map) {
-      if (up) {
-        //register the new connection
-        req_map.put(connkey, new HashMap<Integer, RequestData>());
-      } else {
-        //find outstanding requests, and call handleAnswer with NULL
-        final Map<Integer, RequestData> e_c = req_map.get(connkey);
-        if (e_c == null) {
-          return;
-        }
-        //forget the connection
-        req_map.remove(connkey);
-        //remove the entries
-        for (final Map.Entry<Integer, RequestData> e_s : e_c.entrySet()) {
-          handleAnswer(null, connkey, e_s.getValue().state);
-        }
+    if (up) {
+      //register the new connection
+      req_map.put(connkey, new PendingRequests(connkey));
+    } else {
+      //forget the connection and call handleAnswer with NULL for its outstanding requests
+      final PendingRequests pending = req_map.remove(connkey);
+      if (pending == null) {
+        return;
+      }
+      for (final Object state : pending.close()) {
+        deliverAnswer(null, connkey, state, false);
       }
     }
   }
 
+  //writabilitylistener
+  /**
+   * Handle a change in the writability of a connection.
+   * Called when the output queued on a connection reaches the high watermark
+   * and when it has drained to the low watermark again (see
+   * {@link NodeSettings#setOutputWatermarks}). While a connection is not
+   * writable sendRequest() to it throws ConnectionNotWritableException, and
+   * sendRequest() with a list of peers skips it. This implementation does
+   * nothing; override it to shed load or reroute.
+   * It is called by a network thread and should not block.
+   *
+   * @since 0.9.6.14
+   */
+  public void handleWritability(final ConnectionKey connkey, final boolean writable) {
+  }
+
   /**
-   * Thread for handling request timeouts. The thread is not accurate but does ensure that pending requests are timed
-   * out
+   * Thread for handling request timeouts. It sleeps until the next deadline in
+   * the timeout wheel and then only looks at the requests that have expired.
    */
-  private class TimeoutThread extends Thread {
+  private class TimeoutThread extends Thread implements RequestTimeoutWheel.Handler {
 
     public TimeoutThread() {
       super("NodeManager request timeout thread");
@@ -594,35 +878,38 @@ public abstract class NodeManager implements MessageDispatcher, ConnectionListen
     @Override
     public void run() {
       while (!stop_timeout_thread) {
+        request_timeouts.expire(System.currentTimeMillis(), this);
         synchronized (req_map) {
-          boolean any_timeouts_found = false;
-          final long now = System.currentTimeMillis();
-          for (final Map.Entry<ConnectionKey, Map<Integer, RequestData>> e_c : req_map.entrySet()) {
-            final ConnectionKey connkey = e_c.getKey();
-            for (final Map.Entry<Integer, RequestData> e_s : e_c.getValue().entrySet()) {
-              final RequestData rd = e_s.getValue();
-              if (rd.timeout_time >= 0) {
-                any_timeouts_found = true;
-              }
-              if (rd.timeout_time >= 0 && rd.timeout_time <= now) {
-                e_c.getValue().remove(e_s.getKey());
-                log.trace("Timing out request");
-                handleAnswer(null, connkey, rd.state);
-              }
-            }
+          if (stop_timeout_thread) {
+            break;
           }
+          //senders notify while the next expiry is being found, so a new earlier deadline is not missed
+          timeout_thread_wakeup = Long.MAX_VALUE;
+          final long next = request_timeouts.nextExpiry();
+          timeout_thread_wakeup = next == -1 ? Long.MAX_VALUE : next;
           try {
-            if (any_timeouts_found) {
-              timeout_thread_actively_waiting = true;
-              req_map.wait(1000);
-            } else {
+            if (next == -1) {
               req_map.wait();
+            } else {
+              final long delay = next - System.currentTimeMillis();
+              if (delay > 0) {
+                req_map.wait(delay);
+              }
             }
-            timeout_thread_actively_waiting = false;
           } catch (final InterruptedException ex) {
           }
+          timeout_thread_wakeup = Long.MIN_VALUE; //awake; it looks at the wheel again before sleeping
         }
       }
     }
+
+    @Override
+    public void expired(final PendingRequests pending, final int hop_by_hop_identifier, final long timeout_time) {
+      final Object state = pending.removeTimedOut(hop_by_hop_identifier, timeout_time);
+      if (state != PendingRequests.not_found) {
+        log.trace("Timing out request");
+        deliverAnswer(null, pending.connkey, state, true);
+      }
+    }
   }
 }
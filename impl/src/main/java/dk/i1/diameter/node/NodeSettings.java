@@ -64,6 +64,17 @@ public final class NodeSettings {
   private Boolean use_tcp;
   private Boolean use_sctp;
   private PortRange port_range;
+  private int selector_threads;
+  private long buffer_pool_size;
+  private int max_message_size;
+  private long cork_window;
+  private long output_low_watermark;
+  private long output_high_watermark;
+  private int output_low_watermark_messages;
+  private int output_high_watermark_messages;
+  private java.util.concurrent.Executor dispatch_executor;
+  private int dispatch_queue_limit;
+  private DispatchOrdering dispatch_ordering;
 
   /**
    * A port range
@@ -81,6 +92,28 @@ public final class NodeSettings {
     }
   };
 
+  /**
+   * The order incoming messages are dispatched in when a dispatch executor is used.
+   *
+   * @see NodeSettings#setDispatchOrdering
+   * @since 0.9.6.14
+   */
+  public enum DispatchOrdering {
+    /** Messages from the same connection are dispatched one at a time, in the order they arrived */
+    connection,
+    /**
+     * Messages with the same Session-Id are dispatched one at a time, in the order they arrived.
+     * Messages without a Session-Id are ordered by connection.
+     */
+    session,
+    /**
+     * Each message is dispatched in its own executor task, with no ordering.
+     * This is meant for executors that start a thread per task, eg. with
+     * {@link NodeSettings#setDispatchOnVirtualThreads}.
+     */
+    none
+  }
+
   /**
    * Constructor for NodeSettings.
    * 
@@ -139,6 +172,12 @@ public final class NodeSettings {
     this.firmware_revision = firmware_revision;
     this.watchdog_interval = 30 * 1000;
     this.idle_close_timeout = 7 * 24 * 3600 * 1000;
+    this.selector_threads = 1;
+    this.buffer_pool_size = 4 * 1024 * 1024;
+    this.max_message_size = 1024 * 1024;
+    this.cork_window = -1;
+    this.dispatch_queue_limit = 10000;
+    this.dispatch_ordering = DispatchOrdering.connection;
   }
 
   /** Returns the configured host ID */
@@ -319,4 +358,301 @@ public final class NodeSettings {
   public PortRange TCPPortRange() {
     return port_range;
   }
+
+  /**
+   * Returns the number of selector threads used for TCP connections.
+   *
+   * @since 0.9.6.14
+   */
+  public int selectorThreads() {
+    return selector_threads;
+  }
+
+  /**
+   * Sets the number of selector threads used for TCP connections.
+   * The default is a single thread that accepts connections, and reads,
+   * writes and runs timers for all connections. With more threads each
+   * connection is assigned to one of them (round-robin) for its lifetime,
+   * and the first thread also accepts incoming connections. Note that
+   * handleRequest()/handleAnswer() are then called from several threads
+   * concurrently, though never concurrently for the same connection.
+   *
+   * @param threads Number of threads, at least 1.
+   * @throws InvalidSettingException If threads is less than 1
+   * @since 0.9.6.14
+   */
+  public void setSelectorThreads(final int threads) throws InvalidSettingException {
+    if (threads < 1) {
+      throw new InvalidSettingException("there must be at least 1 selector thread");
+    }
+    this.selector_threads = threads;
+  }
+
+  /**
+   * Returns the size of the I/O buffer pool in bytes.
+   *
+   * @since 0.9.6.14
+   */
+  public long bufferPoolSize() {
+    return buffer_pool_size;
+  }
+
+  /**
+   * Sets the size of the I/O buffer pool.
+   * TCP connections read into and write from direct buffers leased from a
+   * pool, which saves the copy NIO makes between heap buffers and the
+   * socket. The pool keeps at most this many bytes of unused buffers. A
+   * connection that had to grow its read buffer for large messages gives it
+   * back once it has been idle for a couple of seconds. The default is 4 MB.
+   * 0 disables the pool and uses heap buffers.
+   *
+   * @param bytes The maximum number of bytes of unused buffers the pool keeps
+   * @throws InvalidSettingException If bytes is negative
+   * @since 0.9.6.14
+   */
+  public void setBufferPoolSize(final long bytes) throws InvalidSettingException {
+    if (bytes < 0) {
+      throw new InvalidSettingException("buffer pool size cannot be negative");
+    }
+    this.buffer_pool_size = bytes;
+  }
+
+  /**
+   * Returns the maximum size of incoming messages in bytes.
+   *
+   * @since 0.9.6.14
+   */
+  public int maxMessageSize() {
+    return max_message_size;
+  }
+
+  /**
+   * Sets the maximum size of messages received on TCP connections.
+   * The length in the header of an incoming message is checked before the
+   * rest of it is read, and a TCP connection announcing a larger message is
+   * closed, so a peer cannot make the node reserve up to 16 MB per
+   * connection. The default is 1 MB.
+   *
+   * @param bytes The maximum message size, including the header
+   * @throws InvalidSettingException If bytes is less than 20 (the header size)
+   * @since 0.9.6.14
+   */
+  public void setMaxMessageSize(final int bytes) throws InvalidSettingException {
+    if (bytes < 20) {
+      throw new InvalidSettingException("maximum message size must be at least 20");
+    }
+    this.max_message_size = bytes;
+  }
+
+  /**
+   * Returns the cork window in microseconds, or -1 if corking is off.
+   *
+   * @since 0.9.6.14
+   */
+  public long corkWindow() {
+    return cork_window;
+  }
+
+  /**
+   * Sets write corking for TCP connections.
+   * Normally a message sent by the selector thread is written to the socket
+   * right away, which is one system call per message (messages sent by other
+   * threads are always written by the selector thread, together with whatever
+   * else was queued meanwhile). With corking, messages are only queued
+   * and the selector thread writes everything queued for a connection in one
+   * gathering write at the end of its loop iteration. Answers sent while the
+   * selector thread dispatches a batch of incoming requests are thus written
+   * together. Messages sent from other threads wake up the selector thread,
+   * which waits for the cork window to pass before writing, so that more
+   * messages can be collected. A window of 0 writes them as soon as the
+   * selector thread gets to it.
+   * Corking trades a little latency for fewer system calls at high message
+   * rates. The default is -1 (off).
+   *
+   * @param microseconds The cork window, or -1 to turn corking off
+   * @throws InvalidSettingException If microseconds is less than -1
+   * @since 0.9.6.14
+   */
+  public void setCorkWindow(final long microseconds) throws InvalidSettingException {
+    if (microseconds < -1) {
+      throw new InvalidSettingException("cork window must be -1 (off) or at least 0");
+    }
+    this.cork_window = microseconds;
+  }
+
+  /**
+   * Returns the high watermark for queued output in bytes, or 0 if there is none.
+   *
+   * @since 0.9.6.14
+   */
+  public long outputHighWatermark() {
+    return output_high_watermark;
+  }
+
+  /**
+   * Returns the low watermark for queued output in bytes.
+   *
+   * @since 0.9.6.14
+   */
+  public long outputLowWatermark() {
+    return output_low_watermark;
+  }
+
+  /**
+   * Sets the watermarks for output queued on a TCP connection, in bytes.
+   * If a peer reads slower than we send, the output queued for it grows.
+   * When it reaches the high watermark the connection becomes not writable:
+   * requests sent to it are refused with {@link ConnectionNotWritableException}
+   * (NodeManager.sendRequest() with a list of peers tries the next peer) and
+   * the {@link WritabilityListener} is told. Answers are still queued. Once
+   * the queue has drained to the low watermark the connection is writable
+   * again. By default there are no watermarks.
+   *
+   * @param low The low watermark
+   * @param high The high watermark, or 0 for no limit
+   * @throws InvalidSettingException If low is negative or not below high
+   * @since 0.9.6.14
+   */
+  public void setOutputWatermarks(final long low, final long high) throws InvalidSettingException {
+    if (high != 0 && (low < 0 || low >= high)) {
+      throw new InvalidSettingException("output watermarks must satisfy 0 <= low < high");
+    }
+    this.output_low_watermark = low;
+    this.output_high_watermark = high;
+  }
+
+  /**
+   * Returns the high watermark for queued output in messages, or 0 if there is none.
+   *
+   * @since 0.9.6.14
+   */
+  public int outputHighWatermarkMessages() {
+    return output_high_watermark_messages;
+  }
+
+  /**
+   * Returns the low watermark for queued output in messages.
+   *
+   * @since 0.9.6.14
+   */
+  public int outputLowWatermarkMessages() {
+    return output_low_watermark_messages;
+  }
+
+  /**
+   * Sets the watermarks for output queued on a TCP connection, in messages.
+   * This works like {@link #setOutputWatermarks}. If both are set the
+   * connection becomes not writable when either high watermark is reached,
+   * and writable again when both low watermarks are reached.
+   *
+   * @param low The low watermark
+   * @param high The high watermark, or 0 for no limit
+   * @throws InvalidSettingException If low is negative or not below high
+   * @since 0.9.6.14
+   */
+  public void setOutputMessageWatermarks(final int low, final int high) throws InvalidSettingException {
+    if (high != 0 && (low < 0 || low >= high)) {
+      throw new InvalidSettingException("output watermarks must satisfy 0 <= low < high");
+    }
+    this.output_low_watermark_messages = low;
+    this.output_high_watermark_messages = high;
+  }
+
+  /**
+   * Returns the executor for dispatching incoming messages, or null if they are dispatched by the network threads.
+   *
+   * @since 0.9.6.14
+   */
+  public java.util.concurrent.Executor dispatchExecutor() {
+    return dispatch_executor;
+  }
+
+  /**
+   * Sets the executor for dispatching incoming messages.
+   * By default the {@link MessageDispatcher} (eg. NodeManager.handleRequest()
+   * and handleAnswer()) is called by the network thread that read the message,
+   * so a slow handler delays all other traffic on that thread. If an executor
+   * is set then requests and answers (except for the base protocol messages
+   * CER/CEA, DWR/DWA and DPR/DPA, which are still handled by the network
+   * thread) are queued and dispatched by the executor, in the order
+   * specified with {@link #setDispatchOrdering}. The executor is not shut
+   * down by the stack.
+   *
+   * @param executor The executor, or null for dispatching in the network threads.
+   * @since 0.9.6.14
+   */
+  public void setDispatchExecutor(final java.util.concurrent.Executor executor) {
+    this.dispatch_executor = executor;
+  }
+
+  /**
+   * Dispatch incoming messages on virtual threads.
+   * This sets a dispatch executor that runs each task on a new virtual
+   * thread, so handlers can block (eg. by sending requests with
+   * {@link SimpleSyncClient}) without tying up a platform thread. Combine it
+   * with {@link DispatchOrdering#none} to run each request on its own virtual
+   * thread, or with {@link DispatchOrdering#session} to run each session's
+   * messages in order.
+   * Virtual threads require Java 21 or later, and a jar built with JDK 21
+   * (the multi-release-21 profile); the library itself runs on Java 8.
+   *
+   * @throws InvalidSettingException If the JVM or the jar does not support virtual threads
+   * @since 0.9.6.14
+   */
+  public void setDispatchOnVirtualThreads() throws InvalidSettingException {
+    if (!VirtualThreads.supported()) {
+      throw new InvalidSettingException("virtual threads require Java 21 or later and a javadiameter jar built with JDK 21"
+              + " (running on Java " + System.getProperty("java.specification.version") + ")");
+    }
+    setDispatchExecutor(VirtualThreads.newThreadPerTaskExecutor("DiameterNode dispatch (virtual) #"));
+  }
+
+  /**
+   * Returns the maximum number of queued incoming messages.
+   *
+   * @since 0.9.6.14
+   */
+  public int dispatchQueueLimit() {
+    return dispatch_queue_limit;
+  }
+
+  /**
+   * Sets the maximum number of incoming messages waiting for the dispatch executor.
+   * When the limit is reached incoming requests are answered with
+   * DIAMETER_TOO_BUSY. Answers are always queued. The default is 10000.
+   *
+   * @param limit The limit
+   * @throws InvalidSettingException If the limit is less than 1
+   * @since 0.9.6.14
+   */
+  public void setDispatchQueueLimit(final int limit) throws InvalidSettingException {
+    if (limit < 1) {
+      throw new InvalidSettingException("dispatch queue limit must be at least 1");
+    }
+    this.dispatch_queue_limit = limit;
+  }
+
+  /**
+   * Returns the order messages are dispatched in when a dispatch executor is used.
+   *
+   * @since 0.9.6.14
+   */
+  public DispatchOrdering dispatchOrdering() {
+    return dispatch_ordering;
+  }
+
+  /**
+   * Sets the order messages are dispatched in when a dispatch executor is used.
+   * The default is {@link DispatchOrdering#connection}. Ordering by session
+   * allows more parallelism when most of the traffic comes from a few peers.
+   *
+   * @param ordering The ordering
+   * @since 0.9.6.14
+   */
+  public void setDispatchOrdering(final DispatchOrdering ordering) {
+    if (ordering == null) {
+      throw new NullPointerException("ordering");
+    }
+    this.dispatch_ordering = ordering;
+  }
 }
@@ -3,17 +3,18 @@ package dk.i1.diameter.node;
 import java.nio.ByteBuffer;
 
 final class NormalConnectionBuffers extends ConnectionBuffers {
-  private ByteBuffer in_buffer;
-  private ByteBuffer out_buffer;
+  private static final int initial_size = 8192;
+  //How long a grown buffer is kept after it was last needed
+  private static final long shrink_delay = 2000;
 
-  NormalConnectionBuffers() {
-    in_buffer = ByteBuffer.allocate(8192);
-    out_buffer = ByteBuffer.allocate(8192);
-  }
+  private final BufferPool pool;
+  private ByteBuffer in_buffer;
+  //When the buffer last held more than initial_size bytes
+  private long last_large_use;
 
-  @Override
-  ByteBuffer netOutBuffer() {
-    return out_buffer;
+  NormalConnectionBuffers(final BufferPool pool) {
+    this.pool = pool;
+    in_buffer = pool.lease(initial_size);
   }
 
   @Override
@@ -27,25 +28,41 @@ final class NormalConnectionBuffers extends ConnectionBuffers {
   }
 
   @Override
-  ByteBuffer appOutBuffer() {
-    return out_buffer;
+  void processNetInBuffer() {
   }
 
   @Override
-  void processNetInBuffer() {
+  void makeSpaceInNetInBuffer() {
+    makeSpaceInAppInBuffer(4096);
   }
 
   @Override
-  void processAppOutBuffer() {
+  void makeSpaceInAppInBuffer(final int how_much) {
+    in_buffer = makeSpaceInBuffer(pool, in_buffer, how_much);
+    if (in_buffer.capacity() > initial_size && in_buffer.position() + how_much > initial_size) {
+      last_large_use = System.currentTimeMillis();
+    }
   }
 
+  /*
+   * Called when all data in the buffer has been consumed. A grown buffer
+   * is swapped for a small one once it has not been needed for a while, so
+   * a burst of large messages does not leave a large buffer behind.
+   */
   @Override
-  void makeSpaceInNetInBuffer() {
-    in_buffer = makeSpaceInBuffer(in_buffer, 4096);
+  void shrinkIfIdle() {
+    if (in_buffer.capacity() > initial_size
+            && System.currentTimeMillis() - last_large_use >= shrink_delay) {
+      pool.release(in_buffer);
+      in_buffer = pool.lease(initial_size);
+    }
   }
 
   @Override
-  void makeSpaceInAppOutBuffer(final int how_much) {
-    out_buffer = makeSpaceInBuffer(out_buffer, how_much);
+  void release() {
+    if (in_buffer != null) {
+      pool.release(in_buffer);
+      in_buffer = null;
+    }
   }
 }
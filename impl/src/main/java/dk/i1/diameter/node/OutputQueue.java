@@ -0,0 +1,107 @@
+package dk.i1.diameter.node;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * The encoded messages waiting to be written to a connection.
+ * Each message is queued as its own buffer, as it came from the encoder, and
+ * the queue is written with gathering writes. A partially written buffer
+ * simply keeps its position until the next write, so queued bytes are
+ * never copied or compacted. Written buffers are released to the pool.
+ * Not thread-safe; it is only used by the event loop of the connection.
+ */
+final class OutputQueue {
+  //Maximum number of buffers handed to a single gathering write
+  private static final int max_gather = 64;
+
+  private final BufferPool pool;
+  //The queued buffers are buffers[head..head+count-1]
+  private ByteBuffer buffers[] = new ByteBuffer[16];
+  private int head;
+  private int count;
+  private long bytes;
+
+  OutputQueue(final BufferPool pool) {
+    this.pool = pool;
+  }
+
+  /** Returns true if nothing is waiting to be written */
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  /** Returns the number of buffers (messages) waiting to be written */
+  int size() {
+    return count;
+  }
+
+  /** Returns the number of bytes waiting to be written */
+  long bytes() {
+    return bytes;
+  }
+
+  /** Queue a buffer. The bytes from its position to its limit are written */
+  void add(final ByteBuffer bb) {
+    if (head + count == buffers.length) {
+      if (count > buffers.length / 2) {
+        final ByteBuffer tmp[] = new ByteBuffer[buffers.length * 2];
+        System.arraycopy(buffers, head, tmp, 0, count);
+        buffers = tmp;
+      } else {
+        //only the references are moved
+        System.arraycopy(buffers, head, buffers, 0, count);
+        java.util.Arrays.fill(buffers, count, head + count, null);
+      }
+      head = 0;
+    }
+    buffers[head + count] = bb;
+    count++;
+    bytes += bb.remaining();
+  }
+
+  /**
+   * Write as much as the channel accepts.
+   *
+   * @return The number of bytes written
+   */
+  long writeTo(final GatheringByteChannel channel) throws java.io.IOException {
+    long total = 0;
+    while (count != 0) {
+      final int gathered = Math.min(count, max_gather);
+      final long written = channel.write(buffers, head, gathered);
+      if (written <= 0) {
+        break;
+      }
+      total += written;
+      bytes -= written;
+      int drained = 0;
+      while (count != 0 && !buffers[head].hasRemaining()) {
+        pool.release(buffers[head]);
+        buffers[head] = null;
+        head++;
+        count--;
+        drained++;
+      }
+      if (drained < gathered) {
+        //partial write; the socket buffer is full
+        break;
+      }
+    }
+    if (count == 0) {
+      head = 0;
+    }
+    return total;
+  }
+
+  /** Discard all queued buffers */
+  void clear() {
+    for (int i = head; i < head + count; i++) {
+      pool.release(buffers[i]);
+      buffers[i] = null;
+    }
+    head = 0;
+    count = 0;
+    bytes = 0;
+  }
+}
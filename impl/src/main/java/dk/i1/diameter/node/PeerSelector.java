@@ -0,0 +1,43 @@
+package dk.i1.diameter.node;
+
+/**
+ * A load-balancing policy.
+ * The PeerSelector interface is used by the {@link NodeManager} class to
+ * pick which of the candidate peers a request is sent to first. If that peer
+ * has no usable connection, or cannot handle the request, the other peers are
+ * tried in array order. See {@link PeerSelectors} for the built-in policies.
+ *
+ * @see NodeManager#setPeerSelector
+ * @since 0.9.6.14
+ */
+public interface PeerSelector {
+  /**
+   * The current load of the peers, as seen by the node manager.
+   */
+  interface Load {
+    /**
+     * Returns the number of requests sent to the peer and not yet answered,
+     * or -1 if there is no ready connection to the peer.
+     */
+    int outstandingRequests(Peer peer);
+
+    /**
+     * Returns the moving average of the answer time of the peer in
+     * microseconds (timed-out requests count with the time they waited),
+     * or -1 if there is no ready connection to the peer or no answer has
+     * been received on it yet.
+     */
+    long latency(Peer peer);
+  }
+
+  /**
+   * Pick the peer to try first.
+   * This is called by the thread sending the request, possibly by many
+   * threads at the same time.
+   *
+   * @param peers The candidate peers passed to sendRequest(). There are at least two.
+   * @param load The load of the peers.
+   * @return The index of the peer in peers.
+   */
+  int select(Peer peers[], Load load);
+}
@@ -0,0 +1,164 @@
+package dk.i1.diameter.node;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The built-in load-balancing policies.
+ * Policies that compare peers break ties starting from a random peer, so
+ * equally loaded peers share the traffic.
+ *
+ * @see NodeManager#setPeerSelector
+ * @since 0.9.6.14
+ */
+public final class PeerSelectors {
+  private PeerSelectors() {
+  }
+
+  /**
+   * Returns a policy that takes the peers in turn.
+   */
+  public static PeerSelector roundRobin() {
+    return new RoundRobin();
+  }
+
+  /**
+   * Returns a policy that picks peers at random, in proportion to their weight.
+   * Peers without a weight have weight 1, and peers with weight 0 are only
+   * used as fallback.
+   *
+   * @param weights The weight of each peer.
+   */
+  public static PeerSelector weighted(final Map<Peer, Integer> weights) {
+    return new Weighted(weights);
+  }
+
+  /**
+   * Returns a policy that picks the connected peer with the fewest
+   * outstanding requests.
+   */
+  public static PeerSelector leastOutstandingRequests() {
+    return new LeastOutstandingRequests();
+  }
+
+  /**
+   * Returns a policy that picks the connected peer with the lowest average
+   * answer time, weighted by its outstanding requests (latency * (outstanding + 1)),
+   * so a fast peer does not get all the traffic until it slows down.
+   * Peers that have not answered yet are taken to have the median latency
+   * of the other peers, so a new or reconnected peer is not flooded.
+   */
+  public static PeerSelector ewmaLatency() {
+    return new EwmaLatency();
+  }
+
+  private static final class RoundRobin implements PeerSelector {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public int select(final Peer peers[], final Load load) {
+      final int i = next.getAndIncrement() % peers.length;
+      return i < 0 ? i + peers.length : i;
+    }
+  }
+
+  private static final class Weighted implements PeerSelector {
+    private final Map<Peer, Integer> weights;
+
+    Weighted(final Map<Peer, Integer> weights) {
+      this.weights = new HashMap<Peer, Integer>(weights);
+    }
+
+    private int weight(final Peer peer) {
+      final Integer w = weights.get(peer);
+      return w != null ? Math.max(w.intValue(), 0) : 1;
+    }
+
+    @Override
+    public int select(final Peer peers[], final Load load) {
+      long total = 0;
+      for (final Peer p : peers) {
+        total += weight(p);
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long r = ThreadLocalRandom.current().nextLong(total);
+      for (int i = 0; i < peers.length; i++) {
+        r -= weight(peers[i]);
+        if (r < 0) {
+          return i;
+        }
+      }
+      return 0;
+    }
+  }
+
+  /* Picks the peer with the lowest score. Peers with a negative score (not connected) are skipped */
+  private abstract static class LowestScore implements PeerSelector {
+    abstract long score(Peer peer, Load load, long unsampled_latency);
+
+    /* The latency to assume for peers without one, computed once per select() */
+    long unsampledLatency(final Peer peers[], final Load load) {
+      return 0;
+    }
+
+    @Override
+    public int select(final Peer peers[], final Load load) {
+      final long unsampled_latency = unsampledLatency(peers, load);
+      final int start = ThreadLocalRandom.current().nextInt(peers.length);
+      int best = start;
+      long best_score = -1;
+      for (int n = 0; n < peers.length; n++) {
+        final int i = (start + n) % peers.length;
+        final long s = score(peers[i], load, unsampled_latency);
+        if (s >= 0 && (best_score < 0 || s < best_score)) {
+          best = i;
+          best_score = s;
+        }
+      }
+      return best;
+    }
+  }
+
+  private static final class LeastOutstandingRequests extends LowestScore {
+    @Override
+    long score(final Peer peer, final Load load, final long unsampled_latency) {
+      return load.outstandingRequests(peer);
+    }
+  }
+
+  private static final class EwmaLatency extends LowestScore {
+    /* The median latency of the peers that have one, or 1 if none has, so
+     * that peers without samples are still ranked by outstanding requests */
+    @Override
+    long unsampledLatency(final Peer peers[], final Load load) {
+      final long latencies[] = new long[peers.length];
+      int n = 0;
+      for (final Peer p : peers) {
+        final long latency = load.latency(p);
+        if (latency >= 0) {
+          latencies[n++] = latency;
+        }
+      }
+      if (n == 0) {
+        return 1;
+      }
+      Arrays.sort(latencies, 0, n);
+      return Math.max(latencies[n / 2], 1);
+    }
+
+    @Override
+    long score(final Peer peer, final Load load, final long unsampled_latency) {
+      final int outstanding = load.outstandingRequests(peer);
+      if (outstanding < 0) {
+        return -1;
+      }
+      final long latency = load.latency(peer);
+      return (latency < 0 ? unsampled_latency : latency) * (outstanding + 1);
+    }
+  }
+}
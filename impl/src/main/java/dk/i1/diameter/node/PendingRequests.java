@@ -0,0 +1,197 @@
+package dk.i1.diameter.node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outstanding requests on one connection, keyed by hop-by-hop identifier.
+ * An open-addressing hash table with linear probing over parallel arrays, so
+ * registering a request and matching its answer neither allocates nor boxes.
+ * Each table has its own lock, so requests on different connections do not
+ * contend. Once the table is closed no more requests can be registered.
+ * The timeouts themselves are scheduled in a {@link RequestTimeoutWheel}.
+ * The table also keeps a moving average of the answer time of the connection
+ * for {@link PeerSelector}s.
+ */
+final class PendingRequests {
+  /** Returned by remove() if there is no such request */
+  static final Object not_found = new Object();
+  private static final int initial_capacity = 64;
+
+  final ConnectionKey connkey;
+  private int keys[];
+  private Object states[];
+  private long timeout_times[]; //-1 means no timeout
+  private long sent_times[]; //System.nanoTime()
+  private boolean used[];
+  private int size;
+  private boolean closed;
+  //Exponentially weighted moving average (1/8 per sample) of the answer time in nanoseconds, -1 if none yet
+  private volatile long latency = -1;
+
+  PendingRequests(final ConnectionKey connkey) {
+    this.connkey = connkey;
+    allocate(initial_capacity);
+  }
+
+  /**
+   * Register a request.
+   *
+   * @return False if the table has been closed because the connection is gone
+   */
+  synchronized boolean put(final int hop_by_hop_identifier, final Object state, final long timeout_time) {
+    if (closed) {
+      return false;
+    }
+    if ((size + 1) * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+    final int i = find(hop_by_hop_identifier);
+    if (!used[i]) {
+      used[i] = true;
+      keys[i] = hop_by_hop_identifier;
+      size++;
+    }
+    states[i] = state;
+    timeout_times[i] = timeout_time;
+    sent_times[i] = System.nanoTime();
+    return true;
+  }
+
+  /** Returns the number of outstanding requests */
+  synchronized int size() {
+    return size;
+  }
+
+  /** Returns the average answer time in microseconds, or -1 if nothing has been answered yet */
+  long latency() {
+    final long l = latency;
+    return l < 0 ? -1 : l / 1000;
+  }
+
+  /** Remove an answered request and return its state, or not_found */
+  synchronized Object answered(final int hop_by_hop_identifier) {
+    final int i = find(hop_by_hop_identifier);
+    if (!used[i]) {
+      return not_found;
+    }
+    sample(System.nanoTime() - sent_times[i]);
+    return remove(hop_by_hop_identifier);
+  }
+
+  /** Remove a request and return its state, or not_found */
+  synchronized Object remove(final int hop_by_hop_identifier) {
+    final int i = find(hop_by_hop_identifier);
+    if (!used[i]) {
+      return not_found;
+    }
+    final Object state = states[i];
+    delete(i);
+    if (size * 8 < keys.length && keys.length > initial_capacity) {
+      rehash(keys.length / 2);
+    }
+    return state;
+  }
+
+  /**
+   * Remove a request that has timed out and return its state, or not_found
+   * if it has been answered in the meantime (or the identifier has been
+   * reused for a request with another timeout).
+   */
+  synchronized Object removeTimedOut(final int hop_by_hop_identifier, final long timeout_time) {
+    final int i = find(hop_by_hop_identifier);
+    if (!used[i] || timeout_times[i] != timeout_time) {
+      return not_found;
+    }
+    sample(System.nanoTime() - sent_times[i]);
+    final Object state = states[i];
+    delete(i);
+    return state;
+  }
+
+  private void sample(final long elapsed) {
+    final long l = latency;
+    latency = l < 0 ? elapsed : l + (elapsed - l) / 8;
+  }
+
+  /** Close the table and return the states of all outstanding requests */
+  synchronized List<Object> close() {
+    closed = true;
+    final List<Object> states_ = new ArrayList<Object>(size);
+    for (int i = 0; i < keys.length; i++) {
+      if (used[i]) {
+        states_.add(states[i]);
+      }
+    }
+    allocate(initial_capacity);
+    return states_;
+  }
+
+  private void allocate(final int capacity) {
+    keys = new int[capacity];
+    states = new Object[capacity];
+    timeout_times = new long[capacity];
+    sent_times = new long[capacity];
+    used = new boolean[capacity];
+    size = 0;
+  }
+
+  private int home(final int key) {
+    final int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (keys.length - 1);
+  }
+
+  //The slot holding key, or the empty slot where it belongs
+  private int find(final int key) {
+    final int mask = keys.length - 1;
+    int i = home(key);
+    while (used[i] && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  //Empty slot i and move later entries of the probe sequence back, so no tombstones are needed
+  private void delete(int i) {
+    final int mask = keys.length - 1;
+    int j = i;
+    for (;;) {
+      j = (j + 1) & mask;
+      if (!used[j]) {
+        break;
+      }
+      final int h = home(keys[j]);
+      //the entry at j can move to i if its home is not cyclically in (i, j]
+      if (i <= j ? (h <= i || h > j) : (h <= i && h > j)) {
+        keys[i] = keys[j];
+        states[i] = states[j];
+        timeout_times[i] = timeout_times[j];
+        sent_times[i] = sent_times[j];
+        i = j;
+      }
+    }
+    used[i] = false;
+    states[i] = null;
+    size--;
+  }
+
+  private void rehash(final int capacity) {
+    final int old_keys[] = keys;
+    final Object old_states[] = states;
+    final long old_timeout_times[] = timeout_times;
+    final long old_sent_times[] = sent_times;
+    final boolean old_used[] = used;
+    allocate(capacity);
+    for (int i = 0; i < old_keys.length; i++) {
+      if (old_used[i]) {
+        final int j = find(old_keys[i]);
+        used[j] = true;
+        keys[j] = old_keys[i];
+        states[j] = old_states[i];
+        timeout_times[j] = old_timeout_times[i];
+        sent_times[j] = old_sent_times[i];
+        size++;
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package dk.i1.diameter.node;
+
+/**
+ * A hashed timing wheel for the timeouts of outstanding requests.
+ * A timeout is stored as the pending-request table and hop-by-hop identifier
+ * of the request, in the slot of its deadline. Entries are kept in arrays, so
+ * scheduling a timeout does not allocate, and each slot has its own lock, so
+ * senders rarely contend. Answered requests are not removed from the wheel;
+ * their entries are dropped when their deadline comes and the request is no
+ * longer in its table. Expiring visits only the slots whose tick has passed.
+ * Deadlines more than a revolution away stay in their slot until their round
+ * comes. Only the timeout thread expires entries.
+ */
+final class RequestTimeoutWheel {
+  private static final long tick = 10; //milliseconds
+  private static final int slot_count = 512; //a revolution is 5.12 seconds
+  private static final int mask = slot_count - 1;
+
+  /** Receives the expired entries */
+  interface Handler {
+    void expired(PendingRequests pending, int hop_by_hop_identifier, long timeout_time);
+  }
+
+  private static final class Slot {
+    PendingRequests tables[] = new PendingRequests[16];
+    int ids[] = new int[16];
+    long deadlines[] = new long[16];
+    int count;
+
+    void add(final PendingRequests table, final int id, final long deadline) {
+      if (count == ids.length) {
+        tables = java.util.Arrays.copyOf(tables, count * 2);
+        ids = java.util.Arrays.copyOf(ids, count * 2);
+        deadlines = java.util.Arrays.copyOf(deadlines, count * 2);
+      }
+      tables[count] = table;
+      ids[count] = id;
+      deadlines[count] = deadline;
+      count++;
+    }
+  }
+
+  private final Slot slots[] = new Slot[slot_count];
+  //All ticks up to and including this one have been expired. Only changed by the timeout thread, holding the slot lock
+  private volatile long processed;
+  //The expired entries of one slot, handed to the handler outside the slot lock. Only used by the timeout thread
+  private final Slot due = new Slot();
+
+  RequestTimeoutWheel(final long now) {
+    for (int i = 0; i < slot_count; i++) {
+      slots[i] = new Slot();
+    }
+    processed = now / tick - 1;
+  }
+
+  /** Schedule the timeout of a request. May be called by any thread */
+  void add(final PendingRequests table, final int hop_by_hop_identifier, final long deadline) {
+    long t = deadline / tick;
+    for (;;) {
+      final long p = processed;
+      if (t <= p) {
+        t = p + 1;
+      }
+      final Slot slot = slots[(int) (t & mask)];
+      synchronized (slot) {
+        //the slot may have been expired for this round in the meantime
+        if (t > processed) {
+          slot.add(table, hop_by_hop_identifier, deadline);
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Hand the entries whose deadline has passed to the handler.
+   * Only the ticks that have completely passed are expired, so an entry
+   * expires up to one tick after its deadline.
+   */
+  void expire(final long now, final Handler handler) {
+    final long last = now / tick - 1;
+    //after a long pause each slot is visited only once
+    for (long t = Math.max(processed + 1, last - mask); t <= last; t++) {
+      final Slot slot = slots[(int) (t & mask)];
+      synchronized (slot) {
+        int kept = 0;
+        for (int i = 0; i < slot.count; i++) {
+          if (slot.deadlines[i] / tick <= last) {
+            due.add(slot.tables[i], slot.ids[i], slot.deadlines[i]);
+          } else {
+            slot.tables[kept] = slot.tables[i];
+            slot.ids[kept] = slot.ids[i];
+            slot.deadlines[kept] = slot.deadlines[i];
+            kept++;
+          }
+        }
+        java.util.Arrays.fill(slot.tables, kept, slot.count, null);
+        slot.count = kept;
+        processed = t;
+      }
+      for (int i = 0; i < due.count; i++) {
+        handler.expired(due.tables[i], due.ids[i], due.deadlines[i]);
+        due.tables[i] = null;
+      }
+      due.count = 0;
+    }
+  }
+
+  /** Returns the time at which expire() should be called next, or -1 if the wheel is empty */
+  long nextExpiry() {
+    final long p = processed;
+    long earliest = -1;
+    for (long t = p + 1; t <= p + slot_count; t++) {
+      final Slot slot = slots[(int) (t & mask)];
+      synchronized (slot) {
+        for (int i = 0; i < slot.count; i++) {
+          final long t_ = slot.deadlines[i] / tick;
+          if (earliest == -1 || t_ < earliest) {
+            earliest = t_;
+          }
+        }
+      }
+      if (earliest != -1 && earliest <= t) {
+        break; //nothing in the following slots can be earlier
+      }
+    }
+    return earliest == -1 ? -1 : (Math.max(earliest, p + 1) + 1) * tick;
+  }
+
+  /** Remove all entries */
+  void clear() {
+    for (final Slot slot : slots) {
+      synchronized (slot) {
+        java.util.Arrays.fill(slot.tables, 0, slot.count, null);
+        slot.count = 0;
+      }
+    }
+  }
+}
@@ -4,6 +4,8 @@ import java.net.InetAddress;
 import java.util.Collection;
 import java.util.LinkedList;
 import dk.i1.sctp.AssociationId;
+import dk.i1.diameter.Message;
+import dk.i1.diameter.MessageTemplate;
 
 final class SCTPConnection extends Connection {
   //Queue of pending messages
@@ -46,6 +48,17 @@ final class SCTPConnection extends Connection {
     node_impl.sendMessage(this, raw);
   }
 
+  @Override
+  void sendMessage(final Message msg) {
+    //SCTP sends each message as a separate chunk so there is no buffer to encode into
+    node_impl.sendMessage(this, msg.encode());
+  }
+
+  @Override
+  void sendMessage(final MessageTemplate template) {
+    node_impl.sendMessage(this, template.toByteArray());
+  }
+
   @Override
   Object getRelevantNodeAuthInfo() {
     return new RelevantSCTPAuthInfo(node_impl.sctp_socket, assoc_id);
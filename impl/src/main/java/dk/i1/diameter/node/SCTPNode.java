@@ -301,7 +301,7 @@ final class SCTPNode extends NodeImplementation {
       return;
     }
     final Message msg = new Message();
-    final Message.decode_status status = msg.decode(raw, 0, msg_size);
+    final Message.decode_status status = msg.decodeShared(raw, 0, msg_size);
     switch (status) {
       case decoded: {
         logRawDecodedPacket(raw, 0, msg_size);
@@ -550,6 +550,13 @@ final class SCTPNode extends NodeImplementation {
 
   void sendMessage(final SCTPConnection conn, final byte[] raw) {
     log.trace("sendMessage():");
+    //the message queues and stream numbers are protected by the node lock
+    synchronized (getLockObject()) {
+      sendMessage_(conn, raw);
+    }
+  }
+
+  private void sendMessage_(final SCTPConnection conn, final byte[] raw) {
     try {
       final SCTPData data = new SCTPData(raw);
       data.sndrcvinfo.sinfo_assoc_id = conn.assoc_id;
@@ -1,11 +1,22 @@
 package dk.i1.diameter.node;
 
 import dk.i1.diameter.Message;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * A simple Diameter client that support synchronous request-answer calls.
  * It does not support receiving requests.
+ * Any number of threads can call sendRequest() concurrently. Each call waits
+ * on the future of its own request (see {@link NodeManager#sendRequestAsync}),
+ * which is matched to the answer by hop-by-hop identifier, so an answer wakes
+ * up only the thread waiting for it. Waiting parks the thread without holding
+ * a monitor, so virtual threads do not pin their carrier thread.
  */
+@Slf4j
 public final class SimpleSyncClient extends NodeManager {
   private final Peer peers[];
 
@@ -36,24 +47,6 @@ public final class SimpleSyncClient extends NodeManager {
     }
   }
 
-  private static class SyncCall {
-    boolean answer_ready;
-    Message answer;
-  }
-
-  /**
-   * Dispatches an answer to threads waiting for it.
-   */
-  @Override
-  protected void handleAnswer(final Message answer, final ConnectionKey answer_connkey, final Object state) {
-    final SyncCall sc = (SyncCall) state;
-    synchronized (sc) {
-      sc.answer = answer;
-      sc.answer_ready = true;
-      sc.notify();
-    }
-  }
-
   /**
    * Send a request and wait for an answer.
    * 
@@ -73,36 +66,22 @@ public final class SimpleSyncClient extends NodeManager {
    * @since 0.9.6.8 timeout parameter introduced
    */
   public Message sendRequest(final Message request, final long timeout) {
-    final SyncCall sc = new SyncCall();
-    sc.answer_ready = false;
-    sc.answer = null;
-
-    final long timeout_time = System.currentTimeMillis() + timeout;
-
+    final CompletableFuture<Message> answer = sendRequestAsync(request, peers, timeout).toCompletableFuture();
     try {
-      sendRequest(request, peers, sc, timeout);
-      //ok, sent
-      synchronized (sc) {
-        if (timeout >= 0) {
-          final long now = System.currentTimeMillis();
-          final long relative_timeout = timeout_time - now;
-          if (relative_timeout > 0) {
-            while (System.currentTimeMillis() < timeout_time && !sc.answer_ready) {
-              sc.wait(relative_timeout);
-            }
-          }
-        } else {
-          while (!sc.answer_ready) {
-            sc.wait();
-          }
-        }
+      if (timeout >= 0) {
+        return answer.get(timeout, TimeUnit.MILLISECONDS);
+      } else {
+        return answer.get();
+      }
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof NotRoutableException) {
+        log.warn("sendRequest(): not routable");
       }
-    } catch (final NotRoutableException e) {
-      System.out.println("SimpleSyncClient.sendRequest(): not routable");
+    } catch (final TimeoutException e) {
+      //the timeout thread forgets the request shortly
     } catch (final InterruptedException e) {
-    } catch (final NotARequestException e) {
-      //just return null
+      Thread.currentThread().interrupt();
     }
-    return sc.answer;
+    return null;
   }
 }
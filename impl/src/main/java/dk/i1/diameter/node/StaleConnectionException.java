@@ -3,8 +3,13 @@ package dk.i1.diameter.node;
 /**
  * A reference to a closed connection was detected.
  * This exception is thrown when Node detects a reference to a closed connection.
+ * <p>
+ * The class is not final because {@link ConnectionNotWritableException}
+ * extends it: code written before that exception was added catches
+ * StaleConnectionException around sendRequest() and sendMessage(), and it
+ * still compiles and still handles a request that could not be sent.
  */
-public final class StaleConnectionException extends Exception {
+public class StaleConnectionException extends Exception {
 
   private static final long serialVersionUID = 1L;
 
@@ -1,50 +1,79 @@
 package dk.i1.diameter.node;
 
+import dk.i1.diameter.Message;
+import dk.i1.diameter.MessageTemplate;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 
 final class TCPConnection extends Connection {
   TCPNode node_impl;
+  TCPNode.EventLoop loop;
   SocketChannel channel;
   ConnectionBuffers connection_buffers;
+  //Output waiting to be written. Only used by the event loop
+  final OutputQueue out_queue;
+  //Output from any thread, moved to out_queue by the event loop
+  final java.util.Queue<ByteBuffer> outbox = new java.util.concurrent.ConcurrentLinkedQueue<ByteBuffer>();
+  //Set while the connection is queued for a flush by its event loop
+  final java.util.concurrent.atomic.AtomicBoolean flush_scheduled = new java.util.concurrent.atomic.AtomicBoolean();
+  //Bytes and messages in outbox and out_queue, for the output watermarks
+  final java.util.concurrent.atomic.AtomicLong queued_bytes = new java.util.concurrent.atomic.AtomicLong();
+  final java.util.concurrent.atomic.AtomicInteger queued_messages = new java.util.concurrent.atomic.AtomicInteger();
+  //Set while the connection is queued for a writability change by its event loop
+  final java.util.concurrent.atomic.AtomicBoolean writability_queued = new java.util.concurrent.atomic.AtomicBoolean();
+  //The writability last reported to the listener. Only used by the event loop
+  boolean reported_writable = true;
+  //Start of the data in the app in buffer that has not been decoded yet
+  int in_offset;
 
   public TCPConnection(final TCPNode node_impl, final long watchdog_interval, final long idle_timeout) {
     super(node_impl, watchdog_interval, idle_timeout);
     this.node_impl = node_impl;
-    connection_buffers = new NormalConnectionBuffers();
+    connection_buffers = new NormalConnectionBuffers(node_impl.pool);
+    out_queue = new OutputQueue(node_impl.pool);
   }
 
   void makeSpaceInNetInBuffer() {
     connection_buffers.makeSpaceInNetInBuffer();
   }
 
-  void makeSpaceInAppOutBuffer(final int how_much) {
-    connection_buffers.makeSpaceInAppOutBuffer(how_much);
+  /**
+   * Make room for at least how_much bytes after the data in the app in buffer.
+   * The already decoded bytes are only discarded (compacted away) when there
+   * is not enough room at the end, and only if that is not enough the buffer
+   * is grown.
+   */
+  void makeSpaceInAppInBuffer(final int how_much) {
+    final ByteBuffer app_in_buffer = connection_buffers.appInBuffer();
+    if (app_in_buffer.capacity() - app_in_buffer.position() >= how_much) {
+      return;
+    }
+    if (in_offset != 0) {
+      connection_buffers.consumeAppInBuffer(in_offset);
+      in_offset = 0;
+    }
+    connection_buffers.makeSpaceInAppInBuffer(how_much);
   }
 
-  void consumeAppInBuffer(final int bytes) {
-    connection_buffers.consumeAppInBuffer(bytes);
-  }
-
-  void consumeNetOutBuffer(final int bytes) {
-    connection_buffers.consumeNetOutBuffer(bytes);
+  /** Discard all of the data in the app in buffer. Nothing is copied */
+  void clearAppInBuffer() {
+    connection_buffers.appInBuffer().clear();
+    in_offset = 0;
+    connection_buffers.shrinkIfIdle();
   }
 
   boolean hasNetOutput() {
-    return connection_buffers.netOutBuffer().position() != 0;
+    return !out_queue.isEmpty();
   }
 
   void processNetInBuffer() {
     connection_buffers.processNetInBuffer();
   }
 
-  void processAppOutBuffer() {
-    connection_buffers.processAppOutBuffer();
-  }
-
   @Override
   InetAddress toInetAddress() {
     return ((InetSocketAddress) (channel.socket().getRemoteSocketAddress())).getAddress();
@@ -55,6 +84,16 @@ final class TCPConnection extends Connection {
     node_impl.sendMessage(this, raw);
   }
 
+  @Override
+  void sendMessage(final Message msg) {
+    node_impl.sendMessage(this, msg);
+  }
+
+  @Override
+  void sendMessage(final MessageTemplate template) {
+    node_impl.sendMessage(this, template);
+  }
+
   @Override
   Object getRelevantNodeAuthInfo() {
     return channel;
@@ -10,16 +10,26 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import dk.i1.diameter.Message;
+import dk.i1.diameter.MessageTemplate;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 final class TCPNode extends NodeImplementation {
 
-  private Thread node_thread;
-  private Selector selector;
+  BufferPool pool;
+  private EventLoop loops[];
+  private int next_loop;
   private ServerSocketChannel serverChannel;
   private boolean please_stop;
   private long shutdown_deadline;
+  private int max_message_size;
+  //-1 if corking is off, otherwise how long output from other threads may wait
+  private long cork_nanos;
+  //output watermarks; a high watermark of 0 means no limit
+  private long high_bytes;
+  private long low_bytes;
+  private int high_messages;
+  private int low_messages;
 
   public TCPNode(final Node node, final NodeSettings settings) {
     super(node, settings);
@@ -27,8 +37,18 @@ final class TCPNode extends NodeImplementation {
 
   @Override
   void openIO() throws java.io.IOException {
-    // create a new Selector for use below
-    selector = Selector.open();
+    pool = new BufferPool(settings.bufferPoolSize());
+    max_message_size = settings.maxMessageSize();
+    cork_nanos = settings.corkWindow() < 0 ? -1 : settings.corkWindow() * 1000;
+    high_bytes = settings.outputHighWatermark();
+    low_bytes = settings.outputLowWatermark();
+    high_messages = settings.outputHighWatermarkMessages();
+    low_messages = settings.outputLowWatermarkMessages();
+    // create the event loops, each with its own Selector
+    loops = new EventLoop[settings.selectorThreads()];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop(loops.length == 1 ? "DiameterNode thread (TCP)" : "DiameterNode thread (TCP) #" + i);
+    }
     if (settings.port() != 0) {
       // allocate an unbound server socket channel
       serverChannel = ServerSocketChannel.open();
@@ -43,16 +63,19 @@ final class TCPNode extends NodeImplementation {
   void start() {
     log.trace("Starting TCP node");
     please_stop = false;
-    node_thread = new SelectThread();
-    node_thread.setDaemon(true);
-    node_thread.start();
+    for (final EventLoop loop : loops) {
+      loop.setDaemon(true);
+      loop.start();
+    }
     log.trace("Started TCP node");
   }
 
   @Override
   void wakeup() {
-    log.trace("Waking up selector thread");
-    selector.wakeup();
+    log.trace("Waking up selector threads");
+    for (final EventLoop loop : loops) {
+      loop.selector.wakeup();
+    }
   }
 
   @Override
@@ -65,13 +88,14 @@ final class TCPNode extends NodeImplementation {
 
   @Override
   void join() {
-    log.trace("Joining selector thread");
-    try {
-      node_thread.join();
-    } catch (final InterruptedException ex) {
+    log.trace("Joining selector threads");
+    for (final EventLoop loop : loops) {
+      try {
+        loop.join();
+      } catch (final InterruptedException ex) {
+      }
     }
-    node_thread = null;
-    log.trace("Selector thread joined");
+    log.trace("Selector threads joined");
   }
 
   @Override
@@ -84,25 +108,163 @@ final class TCPNode extends NodeImplementation {
       }
     }
     serverChannel = null;
-    try {
-      selector.close();
-    } catch (final java.io.IOException ex) {
+    for (final EventLoop loop : loops) {
+      try {
+        loop.selector.close();
+      } catch (final java.io.IOException ex) {
+      }
     }
-    selector = null;
-    log.trace("Closed selector, etc.");
+    log.trace("Closed selectors, etc.");
   }
 
-  private class SelectThread extends Thread {
+  //Assign a connection to an event loop, round-robin
+  private synchronized void assignEventLoop(final TCPConnection conn) {
+    conn.loop = loops[next_loop];
+    conn.owner = conn.loop;
+    next_loop = (next_loop + 1) % loops.length;
+  }
+
+  //The operations to wait for: reads, and writes if there is output
+  private static int interestOps(final TCPConnection conn) {
+    return conn.hasNetOutput() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+  }
+
+  //Change the operations the selector of the connection waits for. Does nothing if the channel is not registered yet.
+  private static void setInterest(final TCPConnection conn, final int ops) {
+    final SelectionKey key = conn.channel.keyFor(conn.loop.selector);
+    if (key != null) {
+      try {
+        key.interestOps(ops);
+      } catch (final java.nio.channels.CancelledKeyException ex) {
+      }
+    }
+  }
+
+  /**
+   * A selector thread.
+   * Each event loop owns a selector and the connections assigned to it,
+   * and does all reading and timer handling for those. The first event
+   * loop also accepts incoming connections and hands them out to the
+   * event loops. Channels are only registered with a selector by the
+   * thread of its own event loop; other threads queue them.
+   * Only the event loop writes to its connections. Other threads put their
+   * encoded messages in the outbox of the connection and queue the connection
+   * for a flush, waking up the selector once per batch. When corking is on
+   * the event loop also defers its own output to the end of the iteration.
+   * Writability changes are queued the same way and delivered to the
+   * listener by the event loop, without any locks held.
+   */
+  final class EventLoop extends Thread {
+    final Selector selector;
+    private final java.util.Queue<TCPConnection> pending_registrations
+            = new java.util.concurrent.ConcurrentLinkedQueue<TCPConnection>();
+    private final java.util.Queue<TCPConnection> pending_flushes
+            = new java.util.concurrent.ConcurrentLinkedQueue<TCPConnection>();
+    //set when another thread has queued a flush and woken the selector
+    private final java.util.concurrent.atomic.AtomicBoolean flush_wakeup
+            = new java.util.concurrent.atomic.AtomicBoolean();
+    //when the flush requested by another thread is due (System.nanoTime())
+    private volatile long flush_due;
+    private final java.util.Queue<TCPConnection> pending_writability
+            = new java.util.concurrent.ConcurrentLinkedQueue<TCPConnection>();
+
+    EventLoop(final String name) throws java.io.IOException {
+      super(name);
+      selector = Selector.open();
+    }
+
+    /** Have the channel of the connection registered with the selector */
+    void register(final TCPConnection conn) {
+      pending_registrations.add(conn);
+      selector.wakeup();
+    }
+
+    /* Have the output of the connection written at the end of the loop iteration */
+    void scheduleFlush(final TCPConnection conn) {
+      if (!conn.flush_scheduled.compareAndSet(false, true)) {
+        return; //already queued
+      }
+      pending_flushes.add(conn);
+      if (Thread.currentThread() != this && flush_wakeup.compareAndSet(false, true)) {
+        flush_due = System.nanoTime() + Math.max(cork_nanos, 0);
+        selector.wakeup();
+      }
+    }
+
+    /* Have a change in the writability of the connection handled by the event loop */
+    void queueWritabilityChange(final TCPConnection conn) {
+      if (!conn.writability_queued.compareAndSet(false, true)) {
+        return; //already queued
+      }
+      pending_writability.add(conn);
+      if (Thread.currentThread() != this) {
+        selector.wakeup();
+      }
+    }
+
+    /*
+     * Tell the listener about the connections whose writability changed.
+     * Changes that were undone in the meantime are not reported.
+     */
+    private void handleWritabilityChanges() {
+      TCPConnection conn;
+      while ((conn = pending_writability.poll()) != null) {
+        conn.writability_queued.set(false);
+        final boolean writable = conn.writable;
+        if (conn.reported_writable == writable || conn.state == Connection.State.closed) {
+          continue;
+        }
+        conn.reported_writable = writable;
+        TCPNode.this.writabilityChanged(conn, writable);
+      }
+    }
 
-    public SelectThread() {
-      super("DiameterNode thread (TCP)");
+    /* Returns how many nanoseconds are left before the pending flushes must be done */
+    private long flushDelay() {
+      if (!flush_wakeup.get()) {
+        return pending_flushes.isEmpty() ? Long.MAX_VALUE : 0;
+      }
+      return Math.max(flush_due - System.nanoTime(), 0);
+    }
+
+    private void flushPending(final boolean force) {
+      if (pending_flushes.isEmpty() || (!force && flushDelay() > 0)) {
+        return;
+      }
+      flush_wakeup.set(false);
+      TCPConnection conn;
+      while ((conn = pending_flushes.poll()) != null) {
+        flush(conn);
+        if (!conn.channel.isOpen()) {
+          //close() closes the channel and then queues a flush, so this also gives back the
+          //input buffers of connections closed by other threads, now that no read is in progress
+          conn.connection_buffers.release();
+        }
+      }
+    }
+
+    private void registerPending() {
+      TCPConnection conn;
+      while ((conn = pending_registrations.poll()) != null) {
+        final int ops;
+        if (conn.state == Connection.State.connecting) {
+          ops = SelectionKey.OP_CONNECT;
+        } else {
+          ops = interestOps(conn);
+        }
+        try {
+          conn.channel.register(selector, ops, conn);
+        } catch (final java.nio.channels.ClosedChannelException ex) {
+          //closed in the meantime
+        }
+      }
     }
 
     @Override
     public void run() {
       try {
         run_();
-        if (serverChannel != null) {
+        if (serverChannel != null && this == loops[0]) {
           serverChannel.close();
         }
       } catch (final java.io.IOException ex) {
@@ -110,7 +272,7 @@ final class TCPNode extends NodeImplementation {
     }
 
     private void run_() throws java.io.IOException {
-      if (serverChannel != null) {
+      if (serverChannel != null && this == loops[0]) {
         // set non-blocking mode for the listening socket
         serverChannel.configureBlocking(false);
 
@@ -119,15 +281,31 @@ final class TCPNode extends NodeImplementation {
       }
 
       for (;;) {
+        registerPending();
         if (please_stop) {
           if (System.currentTimeMillis() >= shutdown_deadline) {
             break;
           }
-          if (!anyOpenConnections()) {
+          if (!anyOpenConnections(this)) {
             break;
           }
         }
-        final long timeout = calcNextTimeout();
+        handleWritabilityChanges();
+        long timeout = calcNextTimeout(this);
+        if (!pending_writability.isEmpty()) {
+          timeout = 0; //the listener caused more changes
+        }
+        final long flush_delay = flushDelay();
+        if (flush_delay < 1000000) {
+          //less than the select() resolution left: poll, so reads, accepts
+          //and timers are still handled, until the flush is due
+          timeout = 0;
+        } else if (flush_delay != Long.MAX_VALUE) {
+          final long flush_time = System.currentTimeMillis() + flush_delay / 1000000;
+          if (timeout == -1 || flush_time < timeout) {
+            timeout = flush_time;
+          }
+        }
         int n;
         //System.out.println("selecting...");
         if (timeout != -1) {
@@ -163,9 +341,10 @@ final class TCPNode extends NodeImplementation {
               conn.state = Connection.State.connected_in;
               conn.channel = channel;
               channel.configureBlocking(false);
-              channel.register(selector, SelectionKey.OP_READ, conn);
+              assignEventLoop(conn);
 
               registerInboundConnection(conn);
+              conn.loop.register(conn);
             } else {
               //We don't want to add the connection if were are shutting down.
               channel.close();
@@ -178,38 +357,35 @@ final class TCPNode extends NodeImplementation {
               if (channel.finishConnect()) {
                 log.trace("Connected!");
                 conn.state = Connection.State.connected_out;
-                channel.register(selector, SelectionKey.OP_READ, conn);
+                setInterest(conn, interestOps(conn));
                 initiateCER(conn);
               }
             } catch (final java.io.IOException ex) {
               log.warn("Connection to '" + conn.host_id + "' failed", ex);
               try {
-                channel.register(selector, 0);
+                setInterest(conn, 0);
                 channel.close();
               } catch (final java.io.IOException ex2) {
               }
+              conn.connection_buffers.release();
               unregisterConnection(conn);
             }
           } else if (key.isReadable()) {
             log.trace("Key is readable");
             //System.out.println("key is readable");
-            final SocketChannel channel = (SocketChannel) key.channel();
             final TCPConnection conn = (TCPConnection) key.attachment();
             handleReadable(conn);
             if (conn.state != Connection.State.closed
                     && conn.hasNetOutput()) {
-              channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, conn);
+              setInterest(conn, interestOps(conn));
             }
           } else if (key.isWritable()) {
             log.trace("Key is writable");
-            final SocketChannel channel = (SocketChannel) key.channel();
             final TCPConnection conn = (TCPConnection) key.attachment();
-            synchronized (getLockObject()) {
-              handleWritable(conn);
-              if (conn.state != Connection.State.closed
-                      && conn.hasNetOutput()) {
-                channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, conn);
-              }
+            handleWritable(conn);
+            if (conn.state != Connection.State.closed
+                    && conn.hasNetOutput()) {
+              setInterest(conn, interestOps(conn));
             }
           }
 
@@ -217,8 +393,10 @@ final class TCPNode extends NodeImplementation {
           it.remove();
         }
 
-        runTimers();
+        runTimers(this);
+        flushPending(false);
       }
+      flushPending(true);
 
       //Remaining connections are close by Node instance
       //selector is closed in stop()
@@ -235,15 +413,26 @@ final class TCPNode extends NodeImplementation {
     int count;
     try {
       int loop_count = 0;
-      while ((count = conn.channel.read(connection_buffers.netInBuffer())) > 0 && loop_count++ < 3) {
+      //If a read fills the buffer there may be more to read. The complete
+      //messages are processed first so the buffer only grows when a single
+      //message needs it, not because the peer keeps sending.
+      while ((count = conn.channel.read(connection_buffers.netInBuffer())) > 0
+              && !connection_buffers.netInBuffer().hasRemaining() && loop_count++ < 3) {
         if (log.isTraceEnabled()) {
           log.trace("readloop: connection_buffers.netInBuffer().position=" + connection_buffers.netInBuffer().position());
         }
+        conn.processNetInBuffer();
+        processInBuffer(conn);
+        if (conn.state == Connection.State.closed) {
+          conn.connection_buffers.release();
+          return;
+        }
         conn.makeSpaceInNetInBuffer();
       }
     } catch (final java.io.IOException ex) {
       log.trace("got IOException", ex);
       closeConnection(conn);
+      conn.connection_buffers.release();
       return;
     }
     conn.processNetInBuffer();
@@ -251,83 +440,104 @@ final class TCPNode extends NodeImplementation {
     if (count < 0 && conn.state != Connection.State.closed) {
       log.trace("count<0");
       closeConnection(conn);
-      return;
+    }
+    if (conn.state == Connection.State.closed) {
+      //only this thread uses the input buffers, so they can be given back now
+      conn.connection_buffers.release();
     }
   }
 
+  //Room we want after the buffered data for the next read
+  private static final int min_read_space = 4096;
+
+  /*
+   * Frame and decode the messages in the app in buffer.
+   * Complete messages are copied out of the buffer exactly once (into the
+   * array the decoded message refers to). Data belonging to an incomplete
+   * message stays where it is. Room for the rest of it is reserved as it
+   * arrives, at most doubling the buffer at a time, so a large message arriving
+   * over many reads is only copied a few times. Messages larger than the maximum message size close the connection.
+   */
   private void processInBuffer(final TCPConnection conn) {
     final ByteBuffer app_in_buffer = conn.connection_buffers.appInBuffer();
     if (log.isTraceEnabled()) {
-      log.trace("pre: app_in_buffer.position=" + app_in_buffer.position());
-    }
-    final int raw_bytes = app_in_buffer.position();
-    final byte[] raw = new byte[raw_bytes];
-    app_in_buffer.position(0);
-    app_in_buffer.get(raw);
-    app_in_buffer.position(raw_bytes);
-    int offset = 0;
-    //System.out.println("processInBuffer():looping");
-    while (offset < raw.length) {
-      //System.out.println("processInBuffer(): inside loop offset=" + offset);
-      final int bytes_left = raw.length - offset;
-      if (bytes_left < 4) {
-        break;
+      log.trace("pre: app_in_buffer.position=" + app_in_buffer.position() + " in_offset=" + conn.in_offset);
+    }
+    final int end = app_in_buffer.position();
+    int offset = conn.in_offset;
+    int msg_size = 20; //what we need at least for the next message
+    while (end - offset >= 4) {
+      msg_size = Message.decodeSize(app_in_buffer, offset);
+      if (msg_size < 20) {
+        logGarbagePacket(conn, copyOut(app_in_buffer, offset, end - offset), 0, end - offset);
+        closeConnection(conn, true);
+        return;
       }
-      final int msg_size = Message.decodeSize(raw, offset);
-      if (bytes_left < msg_size) {
+      if (msg_size > max_message_size) {
+        if (log.isWarnEnabled()) {
+          log.warn("Message of " + msg_size + " bytes from " + conn.host_id + " exceeds the maximum message size");
+        }
+        closeConnection(conn, true);
+        return;
+      }
+      if (end - offset < msg_size) {
         break;
       }
+      final byte[] raw = copyOut(app_in_buffer, offset, msg_size);
+      offset += msg_size;
       final Message msg = new Message();
-      final Message.decode_status status = msg.decode(raw, offset, msg_size);
-      //System.out.println("processInBuffer():decoded, status=" + status);
-      switch (status) {
-        case decoded: {
-          logRawDecodedPacket(raw, offset, msg_size);
-          offset += msg_size;
-          final boolean b = handleMessage(msg, conn);
-          if (!b) {
-            log.trace("handle error");
-            closeConnection(conn);
-            return;
-          }
-          break;
-        }
-        case not_enough:
-          break;
-        case garbage:
-          logGarbagePacket(conn, raw, offset, msg_size);
-          closeConnection(conn, true);
-          return;
+      final Message.decode_status status = msg.decodeShared(raw, 0, msg_size);
+      if (status != Message.decode_status.decoded) {
+        logGarbagePacket(conn, raw, 0, msg_size);
+        closeConnection(conn, true);
+        return;
       }
-      if (status == Message.decode_status.not_enough) {
-        break;
+      logRawDecodedPacket(raw, 0, msg_size);
+      final boolean b = handleMessage(msg, conn);
+      if (!b) {
+        log.trace("handle error");
+        closeConnection(conn);
+        return;
       }
+      msg_size = 20;
+    }
+    if (offset == end) {
+      conn.clearAppInBuffer();
+    } else {
+      conn.in_offset = offset;
+      //grow at most by the size of the buffer at a time, so the room reserved
+      //follows the bytes that actually arrive rather than the announced length
+      final int missing = Math.max(msg_size - (end - offset), 0);
+      conn.makeSpaceInAppInBuffer(Math.min(missing, app_in_buffer.capacity()) + min_read_space);
     }
-    conn.consumeAppInBuffer(offset);
-    //System.out.println("processInBuffer(): the end");
   }
 
+  private static byte[] copyOut(final ByteBuffer bb, final int offset, final int bytes) {
+    final byte[] raw = new byte[bytes];
+    final int position = bb.position();
+    bb.position(offset);
+    bb.get(raw);
+    bb.position(position);
+    return raw;
+  }
+
+  //Only called by the event loop of the connection
   private void handleWritable(final Connection conn_) {
     final TCPConnection conn = (TCPConnection) conn_;
     log.trace("handleWritable():");
-    final ByteBuffer net_out_buffer = conn.connection_buffers.netOutBuffer();
-    //int bytes = net_out_buffer.position();
-    //net_out_buffer.rewind();
-    //net_out_buffer.limit(bytes);
-    net_out_buffer.flip();
-    //log.trace("                :bytes= " + bytes);
-    int count;
     try {
-      count = conn.channel.write(net_out_buffer);
-      if (count < 0) {
-        closeConnection(conn);
-        return;
+      final int messages = conn.out_queue.size();
+      final long count = conn.out_queue.writeTo(conn.channel);
+      if (log.isTraceEnabled()) {
+        log.trace("                :wrote " + count + " bytes, " + conn.out_queue.bytes() + " bytes left");
+      }
+      conn.queued_bytes.addAndGet(-count);
+      conn.queued_messages.addAndGet(conn.out_queue.size() - messages);
+      if (!conn.writable && belowLowWatermark(conn)) {
+        setWritable(conn, true);
       }
-      //conn.consumeNetOutBuffer(count);
-      net_out_buffer.compact();
-      conn.processAppOutBuffer();
       if (!conn.hasNetOutput()) {
-        conn.channel.register(selector, SelectionKey.OP_READ, conn);
+        setInterest(conn, interestOps(conn));
       }
     } catch (final java.io.IOException ex) {
       closeConnection(conn);
@@ -335,33 +545,111 @@ final class TCPNode extends NodeImplementation {
     }
   }
 
+  /*
+   * With direct buffers the array is copied into one (NIO would otherwise
+   * do that on every write attempt). Otherwise it is queued as-is, so the
+   * caller must not modify it afterwards.
+   */
   void sendMessage(final TCPConnection conn, final byte[] raw) {
-    final boolean was_empty = !conn.hasNetOutput();
-    conn.makeSpaceInAppOutBuffer(raw.length);
-    //System.out.println("sendMessage: A: position=" + out_buffer.position() + " limit=" + conn.out_buffer.limit());
-    conn.connection_buffers.appOutBuffer().put(raw);
-    conn.connection_buffers.processAppOutBuffer();
-    //System.out.println("sendMessage: B: position=" + out_buffer.position() + " limit=" + conn.out_buffer.limit());
-
-    if (was_empty) {
+    if (pool.isDirect()) {
+      final ByteBuffer bb = pool.lease(raw.length);
+      bb.put(raw);
+      bb.flip();
+      queueOutput(conn, bb);
+    } else {
+      queueOutput(conn, ByteBuffer.wrap(raw));
+    }
+  }
+
+  /*
+   * The message is encoded by the calling thread, without holding any lock,
+   * straight into the buffer that is queued (direct or heap, depending on the pool).
+   */
+  void sendMessage(final TCPConnection conn, final Message msg) {
+    final ByteBuffer bb = pool.lease(msg.encodeSize());
+    msg.encode(bb);
+    bb.flip();
+    queueOutput(conn, bb);
+  }
+
+  /* The template is copied by the calling thread, so it can be patched again right away */
+  void sendMessage(final TCPConnection conn, final MessageTemplate template) {
+    final ByteBuffer bb = pool.lease(template.size());
+    template.writeTo(bb);
+    bb.flip();
+    queueOutput(conn, bb);
+  }
+
+  private void queueOutput(final TCPConnection conn, final ByteBuffer bb) {
+    final long bytes = conn.queued_bytes.addAndGet(bb.remaining());
+    final int messages = conn.queued_messages.incrementAndGet();
+    conn.outbox.add(bb);
+    if (conn.writable
+            && ((high_bytes != 0 && bytes >= high_bytes) || (high_messages != 0 && messages >= high_messages))) {
+      setWritable(conn, false);
+    }
+    if (cork_nanos < 0 && Thread.currentThread() == conn.loop) {
+      flush(conn);
+    } else {
+      conn.loop.scheduleFlush(conn);
+    }
+  }
+
+  //Move the outbox of the connection to its output queue and write as much as possible. Only called by the event loop
+  private void flush(final TCPConnection conn) {
+    conn.flush_scheduled.set(false);
+    ByteBuffer bb;
+    while ((bb = conn.outbox.poll()) != null) {
+      conn.out_queue.add(bb);
+    }
+    if (conn.state == Connection.State.closed || !conn.channel.isOpen()) {
+      conn.queued_bytes.addAndGet(-conn.out_queue.bytes());
+      conn.queued_messages.addAndGet(-conn.out_queue.size());
+      conn.out_queue.clear();
+      return;
+    }
+    if (conn.hasNetOutput()) {
       outputBecameAvailable(conn);
     }
   }
 
+  private boolean belowLowWatermark(final TCPConnection conn) {
+    return (high_bytes == 0 || conn.queued_bytes.get() <= low_bytes)
+            && (high_messages == 0 || conn.queued_messages.get() <= low_messages);
+  }
+
+  /*
+   * The senders set a connection not writable and the event loop sets it
+   * writable again. The monitor of the connection orders the changes. The
+   * event loop handles them after the monitor has been released.
+   */
+  private void setWritable(final TCPConnection conn, final boolean writable) {
+    synchronized (conn) {
+      if (conn.writable == writable) {
+        return;
+      }
+      if (writable ? !belowLowWatermark(conn)
+              : (high_bytes == 0 || conn.queued_bytes.get() < high_bytes)
+              && (high_messages == 0 || conn.queued_messages.get() < high_messages)) {
+        return; //changed back in the meantime
+      }
+      conn.writable = writable;
+    }
+    conn.loop.queueWritabilityChange(conn);
+  }
+
   private void outputBecameAvailable(final Connection conn_) {
     final TCPConnection conn = (TCPConnection) conn_;
     handleWritable(conn);
     if (conn.hasNetOutput()) {
-      try {
-        conn.channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, conn);
-      } catch (final java.nio.channels.ClosedChannelException ex) {
-      }
+      setInterest(conn, interestOps(conn));
     }
   }
 
   @Override
   boolean initiateConnection(final Connection conn_, final Peer peer) {
     final TCPConnection conn = (TCPConnection) conn_;
+    assignEventLoop(conn);
     try {
       final SocketChannel channel = SocketChannel.open();
       channel.configureBlocking(false);
@@ -379,8 +667,7 @@ final class TCPNode extends NodeImplementation {
           log.trace("Connected!");
           conn.state = Connection.State.connected_out;
           conn.channel = channel;
-          selector.wakeup();
-          channel.register(selector, SelectionKey.OP_READ, conn);
+          conn.loop.register(conn);
           initiateCER(conn);
           return true;
         }
@@ -390,8 +677,7 @@ final class TCPNode extends NodeImplementation {
       }
       conn.state = Connection.State.connecting;
       conn.channel = channel;
-      selector.wakeup();
-      channel.register(selector, SelectionKey.OP_CONNECT, conn);
+      conn.loop.register(conn);
     } catch (final java.io.IOException ex) {
       log.warn("java.io.IOException caught while initiating connection to '" + peer.host() + "'.",
               ex);
@@ -403,7 +689,7 @@ final class TCPNode extends NodeImplementation {
   void close(final Connection conn_, final boolean reset) {
     final TCPConnection conn = (TCPConnection) conn_;
     try {
-      conn.channel.register(selector, 0);
+      setInterest(conn, 0);
       if (reset) {
         //Set lingertime to zero to force a RST when closing the socket
         //rfc3588, section 2.1
@@ -412,6 +698,8 @@ final class TCPNode extends NodeImplementation {
       conn.channel.close();
     } catch (final java.io.IOException ex) {
     }
+    //the event loop drops any queued output (see flush())
+    conn.loop.scheduleFlush(conn);
   }
 
   @Override
@@ -0,0 +1,167 @@
+package dk.i1.diameter.node;
+
+/**
+ * A hashed timing wheel for the connection timers of one network thread
+ * (watchdog, idle and CER/CEA deadlines).
+ * A connection is linked into the slot of its deadline, rounded up to whole
+ * ticks. Running the timers only visits the slots whose tick has passed, so
+ * the cost follows the number of expiring connections rather than the total
+ * number of connections. A revolution (51.2 seconds) is longer than the
+ * default watchdog interval, so the normal timers are always in a slot.
+ * Deadlines more than a revolution away are kept in an overflow list, which
+ * is looked at once per revolution to move the deadlines that have come
+ * within reach to their slots.
+ * Deadlines are only moved when they get earlier; activity that postpones
+ * a deadline is picked up when the old deadline expires and the connection
+ * is rescheduled.
+ * Not thread-safe; the node lock protects it, except for dueAt() which can
+ * be called without it.
+ */
+final class TimerWheel {
+  private static final long tick = 50; //milliseconds
+  private static final int slot_count = 1024; //a revolution is 51.2 seconds
+  private static final int mask = slot_count - 1;
+  //The extra slot holding expired connections until they have been handled
+  private static final int due_slot = slot_count;
+  //The extra slot holding the connections more than a revolution away
+  private static final int overflow_slot = slot_count + 1;
+
+  private final Connection slots[] = new Connection[slot_count + 2];
+  //All ticks up to and including this one have been expired
+  private long processed;
+  //When the overflow list is looked at next. All deadlines in it are later than this
+  private long next_cascade;
+  //nextDeadline() as of the last time the expired connections were taken, or earlier. Read without the lock
+  private volatile long due_at = -1;
+
+  TimerWheel(final long now) {
+    processed = now / tick;
+    next_cascade = processed + slot_count;
+  }
+
+  /** Returns true if the connection has a deadline in this wheel */
+  boolean contains(final Connection conn) {
+    return conn.timer_wheel == this;
+  }
+
+  /** Schedule the connection at the deadline, replacing any earlier schedule */
+  void schedule(final Connection conn, final long deadline) {
+    remove(conn);
+    long t = (deadline + tick - 1) / tick;
+    if (t <= processed) {
+      t = processed + 1;
+    }
+    conn.timer_tick = t;
+    if (due_at == -1 || t * tick < due_at) {
+      due_at = t * tick;
+    }
+    link(conn, t - processed <= slot_count ? (int) (t & mask) : overflow_slot);
+  }
+
+  /** Remove the connection from the wheel, if it is in it */
+  void remove(final Connection conn) {
+    if (conn.timer_wheel != this) {
+      return;
+    }
+    if (conn.timer_prev != null) {
+      conn.timer_prev.timer_next = conn.timer_next;
+    } else {
+      slots[conn.timer_slot] = conn.timer_next;
+    }
+    if (conn.timer_next != null) {
+      conn.timer_next.timer_prev = conn.timer_prev;
+    }
+    conn.timer_prev = null;
+    conn.timer_next = null;
+    conn.timer_wheel = null;
+  }
+
+  /** Move the connections whose deadline has passed to the list returned by nextExpired() */
+  void expire(final long now) {
+    final long now_tick = now / tick;
+    if (now_tick >= next_cascade) {
+      cascade(now_tick);
+      next_cascade = now_tick + slot_count;
+    }
+    //after a long pause each slot is visited only once
+    for (long t = Math.max(processed + 1, now_tick - mask); t <= now_tick; t++) {
+      Connection conn = slots[(int) (t & mask)];
+      while (conn != null) {
+        final Connection next = conn.timer_next;
+        if (conn.timer_tick <= now_tick) {
+          remove(conn);
+          link(conn, due_slot);
+        }
+        conn = next;
+      }
+    }
+    if (now_tick > processed) {
+      processed = now_tick;
+    }
+  }
+
+  //Move the overflow connections that are now less than a revolution away to their slots
+  private void cascade(final long now_tick) {
+    Connection conn = slots[overflow_slot];
+    while (conn != null) {
+      final Connection next = conn.timer_next;
+      if (conn.timer_tick <= now_tick + slot_count) {
+        remove(conn);
+        link(conn, conn.timer_tick <= now_tick ? due_slot : (int) (conn.timer_tick & mask));
+      }
+      conn = next;
+    }
+  }
+
+  /** Take the next expired connection off the wheel, or return null if there are no more */
+  Connection nextExpired() {
+    final Connection conn = slots[due_slot];
+    if (conn != null) {
+      remove(conn);
+    } else {
+      due_at = nextDeadline();
+    }
+    return conn;
+  }
+
+  /**
+   * Returns the time of the next deadline, or -1 if the wheel is empty, without
+   * the node lock. It can be earlier than nextDeadline() if connections have
+   * been removed or rescheduled since the expired connections were last taken,
+   * but never later.
+   */
+  long dueAt() {
+    return due_at;
+  }
+
+  /**
+   * Returns the time of the next deadline, or -1 if the wheel is empty.
+   * If there are deadlines in the overflow list this is no later than when
+   * it is looked at next, which may be before its earliest deadline.
+   */
+  long nextDeadline() {
+    if (slots[due_slot] != null) {
+      return processed * tick;
+    }
+    //the slots only hold deadlines less than a revolution away, so each holds a single tick
+    final long last = slots[overflow_slot] != null ? Math.min(next_cascade, processed + slot_count)
+            : processed + slot_count;
+    for (long t = processed + 1; t <= last; t++) {
+      if (slots[(int) (t & mask)] != null) {
+        return t * tick;
+      }
+    }
+    return slots[overflow_slot] != null ? next_cascade * tick : -1;
+  }
+
+  private void link(final Connection conn, final int slot) {
+    conn.timer_wheel = this;
+    conn.timer_slot = slot;
+    conn.timer_prev = null;
+    conn.timer_next = slots[slot];
+    if (conn.timer_next != null) {
+      conn.timer_next.timer_prev = conn;
+    }
+    slots[slot] = conn;
+  }
+}
@@ -0,0 +1,29 @@
+package dk.i1.diameter.node;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Access to virtual threads (JDK 21+).
+ * This is the Java 8 version which reports that virtual threads are not
+ * available. When the jar is built with JDK 21 it is a multi-release jar,
+ * and on JDK 21 and later the version in META-INF/versions/21 is used
+ * instead. A jar built with an older JDK has only this version.
+ */
+final class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /** Returns if virtual threads are available */
+  static boolean supported() {
+    return false;
+  }
+
+  /**
+   * Returns an executor that runs each task in a new virtual thread.
+   *
+   * @throws UnsupportedOperationException If virtual threads are not available
+   */
+  static Executor newThreadPerTaskExecutor(final String name) {
+    throw new UnsupportedOperationException("virtual threads require Java 21 or later");
+  }
+}
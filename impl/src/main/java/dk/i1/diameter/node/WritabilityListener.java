@@ -0,0 +1,24 @@
+package dk.i1.diameter.node;
+
+/**
+ * An outbound backpressure observer.
+ * The WritabilityListener interface is used by the {@link Node} class to
+ * signal that a connection has queued so much output that requests are
+ * refused (the high watermark was reached), or that it has drained enough to
+ * accept requests again (the low watermark was reached).
+ *
+ * @see NodeSettings#setOutputWatermarks
+ * @since 0.9.6.14
+ */
+public interface WritabilityListener {
+  /**
+   * The writability of a connection has changed.
+   * This is called by the network thread of the connection, without internal
+   * locks held. It should not block, because the network thread serves
+   * other connections too.
+   *
+   * @param connkey The connection key.
+   * @param writable False if requests are now refused. True if they are accepted again.
+   */
+  void handleWritability(ConnectionKey connkey, boolean writable);
+}
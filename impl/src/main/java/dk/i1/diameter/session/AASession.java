@@ -192,21 +192,21 @@ public class AASession extends BaseSession {
       long auth_lifetime = 0;
       avp = answer.find(ProtocolConstants.DI_AUTHORIZATION_LIFETIME);
       if (avp != null) {
-        auth_lifetime = new AVP_Unsigned32(avp).queryValue() * 1000;
+        auth_lifetime = avp.getUnsigned32() * 1000;
       }
       long auth_grace_period = 0;
       avp = answer.find(ProtocolConstants.DI_AUTH_GRACE_PERIOD);
       if (avp != null) {
-        auth_grace_period = new AVP_Unsigned32(avp).queryValue() * 1000;
+        auth_grace_period = avp.getUnsigned32() * 1000;
       }
       avp = answer.find(ProtocolConstants.DI_SESSION_TIMEOUT);
       if (avp != null) {
-        final int session_timeout = new AVP_Unsigned32(avp).queryValue();
+        final int session_timeout = avp.getUnsigned32();
         updateSessionTimeout(session_timeout);
       }
       avp = answer.find(ProtocolConstants.DI_AUTH_SESSION_STATE);
       if (avp != null) {
-        final int state_maintained = new AVP_Unsigned32(avp).queryValue();
+        final int state_maintained = avp.getUnsigned32();
         stateMaintained(state_maintained == 0);
       }
 
@@ -304,7 +304,7 @@ public final class ACHandler {
         return;
       }
       //locate (sub-)session from record number
-      final int record_number = new AVP_Unsigned32(it.next()).queryValue();
+      final int record_number = it.next().getUnsigned32();
       for (final Map.Entry<Long, SubSession> e : subsessions.entrySet()) {
         if (e.getValue().most_recent_record_number == record_number) {
           //clear record number
@@ -561,7 +561,7 @@ public abstract class BaseSession implements Session {
     final AVP avp = msg.find(ProtocolConstants.DI_RESULT_CODE);
     if (avp != null) {
       try {
-        return new AVP_Unsigned32(avp).queryValue();
+        return avp.getUnsigned32();
       } catch (final dk.i1.diameter.InvalidAVPLengthException e) {
         return -1;
       }
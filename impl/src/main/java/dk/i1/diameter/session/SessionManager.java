@@ -125,7 +125,7 @@ public final class SessionManager extends NodeManager {
     if (session_id == null) {
       log.trace("Cannot handle request - no Session-Id AVP in request");
       answer.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_MISSING_AVP));
-      node().addOurHostAndRealm(answer);
+      node().addSharedHostAndRealm(answer);
       answer.add(new AVP_Grouped(ProtocolConstants.DI_FAILED_AVP,
               new AVP[]{new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, "")}));
       Utils.copyProxyInfo(request, answer);
@@ -143,7 +143,7 @@ public final class SessionManager extends NodeManager {
       }
       answer.add(
               new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_UNKNOWN_SESSION_ID));
-      node().addOurHostAndRealm(answer);
+      node().addSharedHostAndRealm(answer);
       Utils.copyProxyInfo(request, answer);
       Utils.setMandatory_RFC3588(answer);
       try {
@@ -154,7 +154,7 @@ public final class SessionManager extends NodeManager {
     }
     final int result_code = s.handleRequest(request);
     answer.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, result_code));
-    node().addOurHostAndRealm(answer);
+    node().addSharedHostAndRealm(answer);
     Utils.copyProxyInfo(request, answer);
     Utils.setMandatory_RFC3588(answer);
     try {
@@ -327,7 +327,7 @@ public final class SessionManager extends NodeManager {
     if (!it.hasNext()) {
       return null;
     }
-    return new AVP_UTF8String(it.next()).queryValue();
+    return it.next().getUTF8();
   }
 
   private class TimerThread extends Thread {
@@ -0,0 +1,23 @@
+package dk.i1.diameter.node;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (JDK 21+).
+ * This version is used on JDK 21 and later (see the Java 8 version).
+ */
+final class VirtualThreads {
+  private VirtualThreads() {
+  }
+
+  /** Returns if virtual threads are available */
+  static boolean supported() {
+    return true;
+  }
+
+  /** Returns an executor that runs each task in a new virtual thread */
+  static Executor newThreadPerTaskExecutor(final String name) {
+    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name, 0).factory());
+  }
+}
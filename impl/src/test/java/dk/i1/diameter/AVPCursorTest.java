@@ -0,0 +1,168 @@
+package dk.i1.diameter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of traversing grouped AVPs with AVPCursor.
+ */
+public final class AVPCursorTest {
+  private static final int vendor = 10415;
+
+  //Multiple-Services-Credit-Control with a nested Used-Service-Unit
+  private static AVP_Grouped mscc() {
+    return new AVP_Grouped(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL,
+            new AVP_Unsigned32(ProtocolConstants.DI_RATING_GROUP, 7).setM(),
+            new AVP_Grouped(ProtocolConstants.DI_USED_SERVICE_UNIT,
+                    new AVP_Unsigned64(ProtocolConstants.DI_CC_INPUT_OCTETS, 100),
+                    new AVP_Unsigned64(ProtocolConstants.DI_CC_TOTAL_OCTETS, 300)),
+            new AVP_UTF8String(1000, vendor, "vendor specific"),
+            new AVP_Integer32(ProtocolConstants.DI_SERVICE_IDENTIFIER, -5));
+  }
+
+  @Test
+  public void walk() throws Exception {
+    final AVPCursor c = new AVPCursor(mscc());
+    assertTrue(c.next());
+    assertEquals(ProtocolConstants.DI_RATING_GROUP, c.code());
+    assertEquals(0, c.vendorId());
+    assertTrue(c.isMandatory());
+    assertFalse(c.isPrivate());
+    assertEquals(4, c.payloadSize());
+    assertEquals(7, c.getUnsigned32());
+    assertTrue(c.next());
+    assertEquals(ProtocolConstants.DI_USED_SERVICE_UNIT, c.code());
+    assertFalse(c.isMandatory());
+    final AVPCursor usu = c.enter();
+    assertTrue(c.next());
+    assertEquals(1000, c.code());
+    assertEquals(vendor, c.vendorId());
+    assertEquals("vendor specific", c.getUTF8());
+    assertEquals(15, c.payloadSize());
+    assertTrue(c.next());
+    assertEquals(-5, c.getInteger32());
+    assertFalse(c.next());
+    assertFalse(c.next());
+    //the nested cursor is independent of the outer one
+    assertTrue(usu.next());
+    assertEquals(100, usu.getUnsigned64());
+    assertTrue(usu.next());
+    assertEquals(300, usu.getUnsigned64());
+    assertFalse(usu.next());
+  }
+
+  @Test
+  public void nextWithCode() throws Exception {
+    final AVPCursor c = new AVPCursor(mscc());
+    assertTrue(c.next(ProtocolConstants.DI_SERVICE_IDENTIFIER));
+    assertEquals(-5, c.getInteger32());
+    assertFalse(c.next(ProtocolConstants.DI_RATING_GROUP));
+    c.rewind();
+    assertTrue(c.next(ProtocolConstants.DI_RATING_GROUP));
+    //vendor 0 matches any vendor
+    assertTrue(c.next(1000));
+    c.rewind();
+    assertFalse(c.next(1000, vendor + 1));
+    c.rewind();
+    assertTrue(c.next(1000, vendor));
+  }
+
+  @Test
+  public void notPositioned() throws Exception {
+    final AVPCursor c = new AVPCursor(mscc());
+    try {
+      c.code();
+      fail("no exception before next()");
+    } catch (final IllegalStateException ex) {
+    }
+    while (c.next()) {
+    }
+    try {
+      c.avp();
+      fail("no exception after the last AVP");
+    } catch (final IllegalStateException ex) {
+    }
+  }
+
+  @Test
+  public void currentAVP() throws Exception {
+    final AVPCursor c = new AVPCursor(mscc());
+    c.next(ProtocolConstants.DI_USED_SERVICE_UNIT);
+    final AVP usu = c.avp();
+    assertEquals(ProtocolConstants.DI_USED_SERVICE_UNIT, usu.code);
+    final AVP embedded[] = new AVP_Grouped(usu).queryAVPs();
+    assertEquals(2, embedded.length);
+    assertEquals(300, new AVP_Unsigned64(embedded[1]).queryValue());
+    c.next();
+    final AVP vs = c.avp();
+    assertEquals(vendor, vs.vendor_id);
+    assertArrayEquals(new AVP_UTF8String(1000, vendor, "vendor specific").encode(), vs.encode());
+  }
+
+  @Test
+  public void cursorOverSharedMessage() throws Exception {
+    final Message msg = new Message();
+    msg.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, "s"));
+    msg.add(mscc());
+    final byte raw[] = msg.encode();
+    final byte b[] = new byte[raw.length + 9];
+    System.arraycopy(raw, 0, b, 9, raw.length);
+    final Message shared = new Message();
+    assertEquals(Message.decode_status.decoded, shared.decodeShared(b, 9, raw.length));
+    final AVPCursor c = new AVPCursor(shared.find(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL));
+    assertTrue(c.next(ProtocolConstants.DI_USED_SERVICE_UNIT));
+    final AVPCursor usu = c.enter();
+    assertTrue(usu.next(ProtocolConstants.DI_CC_TOTAL_OCTETS));
+    assertEquals(300, usu.getUnsigned64());
+  }
+
+  @Test
+  public void malformed() throws Exception {
+    //an embedded AVP claiming more bytes than there are
+    final byte payload[] = new AVP_Unsigned32(ProtocolConstants.DI_RATING_GROUP, 7).encode();
+    final byte bad[] = new byte[payload.length + 8];
+    System.arraycopy(payload, 0, bad, 0, payload.length);
+    packunpack.pack32(bad, payload.length, ProtocolConstants.DI_SERVICE_IDENTIFIER);
+    packunpack.pack32(bad, payload.length + 4, 64);
+    final AVP grouped = new AVP(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL, bad);
+    final AVPCursor c = new AVPCursor(grouped);
+    assertTrue(c.next());
+    assertEquals(7, c.getUnsigned32());
+    try {
+      c.next();
+      fail("malformed AVP not detected");
+    } catch (final InvalidAVPLengthException ex) {
+      assertEquals(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL, ex.avp.code);
+    }
+    assertFalse(c.next());
+    //the same in a nested grouped AVP, which reports the nested AVP
+    final AVPCursor outer = new AVPCursor(new AVP_Grouped(ProtocolConstants.DI_SUBSCRIPTION_ID, grouped));
+    assertTrue(outer.next());
+    final AVPCursor inner = outer.enter();
+    inner.next();
+    try {
+      inner.next();
+      fail("malformed nested AVP not detected");
+    } catch (final InvalidAVPLengthException ex) {
+      assertEquals(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL, ex.avp.code);
+    }
+  }
+
+  @Test
+  public void setValueInvalidatesGroupedCount() throws Exception {
+    //8 zero bytes are not a valid AVP
+    final AVP_Unsigned64 a = new AVP_Unsigned64(ProtocolConstants.DI_USED_SERVICE_UNIT, 0);
+    try {
+      new AVP_Grouped(a);
+      fail("accepted as grouped");
+    } catch (final InvalidAVPLengthException ex) {
+    }
+    //but an empty AVP with code 1 is
+    a.setValue((1L << 32) | 8);
+    assertEquals(1, new AVP_Grouped(a).queryAVPs().length);
+  }
+}
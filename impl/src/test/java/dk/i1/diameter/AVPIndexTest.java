@@ -0,0 +1,168 @@
+package dk.i1.diameter;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of the lookups by AVP code in Message, which use an index once a
+ * message has enough AVPs. The results are compared with a linear scan.
+ */
+public final class AVPIndexTest {
+  private static final int vendor = 10415;
+
+  private static Message message(final Random random, final int avps) {
+    final Message msg = new Message();
+    for (int i = 0; i < avps; i++) {
+      //few codes, so there are many AVPs with the same code
+      final int code = 1 + random.nextInt(6);
+      msg.add(new AVP_Unsigned32(code, random.nextInt(3) == 0 ? vendor : 0, i));
+    }
+    return msg;
+  }
+
+  //The AVPs with the code, as Message.iterator(code,vendor_id) should return them
+  private static List<AVP> linear(final Message msg, final int code, final int vendor_id) {
+    final List<AVP> avps = new ArrayList<AVP>();
+    for (final AVP a : msg.avps()) {
+      if (a.code == code && (vendor_id == 0 || a.vendor_id == vendor_id)) {
+        avps.add(a);
+      }
+    }
+    return avps;
+  }
+
+  private static List<AVP> indexed(final Message msg, final int code, final int vendor_id) {
+    final List<AVP> avps = new ArrayList<AVP>();
+    for (final AVP a : msg.subset(code, vendor_id)) {
+      avps.add(a);
+    }
+    return avps;
+  }
+
+  private static AVP first(final Message msg, final int code, final int vendor_id) {
+    for (final AVP a : msg.avps()) {
+      if (a.code == code && a.vendor_id == vendor_id) {
+        return a;
+      }
+    }
+    return null;
+  }
+
+  private static void check(final Message msg) {
+    for (int code = 0; code <= 7; code++) {
+      for (final int vendor_id : new int[] {0, vendor}) {
+        final List<AVP> expected = linear(msg, code, vendor_id);
+        final List<AVP> actual = indexed(msg, code, vendor_id);
+        assertEquals("code " + code, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertSame(expected.get(i), actual.get(i));
+        }
+        assertSame(first(msg, code, vendor_id), msg.find(code, vendor_id));
+        assertEquals(first(msg, code, vendor_id) != null, msg.contains(code, vendor_id));
+      }
+      final List<AVP> any_vendor = linear(msg, code, 0);
+      assertEquals(any_vendor.size(), msg.count(code));
+      int first = -1;
+      for (int i = 0; i < msg.size() && first < 0; i++) {
+        if (msg.get(i).code == code) {
+          first = i;
+        }
+      }
+      assertEquals(first, msg.find_first(code));
+    }
+  }
+
+  @Test
+  public void lookupsMatchLinearScan() {
+    final Random random = new Random(4);
+    for (int n = 0; n < 2000; n++) {
+      //below and above the size at which the index is used
+      check(message(random, random.nextInt(40)));
+    }
+  }
+
+  @Test
+  public void indexFollowsModifications() throws Exception {
+    final Random random = new Random(5);
+    final Message msg = message(random, 20);
+    check(msg);
+    msg.add(new AVP_Unsigned32(7, 0, 100));
+    check(msg);
+    assertEquals(100, msg.getUnsigned32(7));
+    msg.remove(msg.find_first(7));
+    check(msg);
+    assertNull(msg.find(7));
+    //insert in the middle, so the positions of the later AVPs change
+    msg.add(3, new AVP_Unsigned32(7, 0, 101));
+    msg.add(3, new AVP_Unsigned32(1, 0, 102));
+    check(msg);
+    assertEquals(4, msg.find_first(7));
+    while (msg.size() > 2) {
+      msg.remove(random.nextInt(msg.size()));
+      check(msg);
+    }
+    msg.clear();
+    check(msg);
+  }
+
+  @Test
+  public void removeThroughIterator() {
+    final Random random = new Random(6);
+    for (int n = 0; n < 200; n++) {
+      final Message msg = message(random, 8 + random.nextInt(30));
+      final int code = 1 + random.nextInt(6);
+      final List<AVP> others = new ArrayList<AVP>();
+      for (final AVP a : msg.avps()) {
+        if (a.code != code) {
+          others.add(a);
+        }
+      }
+      //remove every other match, then the rest
+      int i = 0;
+      for (final Iterator<AVP> it = msg.iterator(code); it.hasNext(); i++) {
+        assertEquals(code, it.next().code);
+        if (i % 2 == 0) {
+          it.remove();
+        }
+      }
+      for (final Iterator<AVP> it = msg.iterator(code); it.hasNext();) {
+        it.next();
+        it.remove();
+      }
+      assertFalse(msg.contains(code));
+      final List<AVP> remaining = new ArrayList<AVP>();
+      for (final AVP a : msg.avps()) {
+        remaining.add(a);
+      }
+      assertEquals(others, remaining);
+      check(msg);
+    }
+  }
+
+  @Test
+  public void modificationOutsideTheIterator() {
+    final Message msg = new Message();
+    for (int i = 0; i < 20; i++) {
+      msg.add(new AVP_Unsigned32(1, 0, i));
+    }
+    final Iterator<AVP> it = msg.iterator(1);
+    assertTrue(it.hasNext());
+    it.next();
+    msg.add(new AVP_Unsigned32(2, 0, 0));
+    try {
+      it.hasNext();
+      fail("modification not detected");
+    } catch (final ConcurrentModificationException ex) {
+    }
+  }
+}
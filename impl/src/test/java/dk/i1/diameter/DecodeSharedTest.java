@@ -0,0 +1,129 @@
+package dk.i1.diameter;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Tests of decoding messages with AVPs that are views over the message buffer.
+ */
+public final class DecodeSharedTest {
+  private static final int vendor = 10415;
+
+  private static Message sample() {
+    final Message msg = new Message();
+    msg.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_CC;
+    msg.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL;
+    msg.hdr.setRequest(true);
+    msg.hdr.hop_by_hop_identifier = 17;
+    msg.hdr.end_to_end_identifier = 42;
+    msg.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, "example.com;1;2;abc").setM());
+    msg.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, "a.example.com"));
+    msg.add(new AVP_Unsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER, 7));
+    msg.add(new AVP_Unsigned64(ProtocolConstants.DI_CC_INPUT_OCTETS, 1L << 40));
+    msg.add(new AVP_Unsigned32(1000, vendor, 123456));
+    msg.add(new AVP_Grouped(ProtocolConstants.DI_USED_SERVICE_UNIT,
+            new AVP_Unsigned64(ProtocolConstants.DI_CC_TOTAL_OCTETS, 99),
+            new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM, "x")));
+    return msg;
+  }
+
+  //The encoded message with some unrelated bytes around it
+  private static byte[] embedded(final byte raw[], final int offset) {
+    final byte b[] = new byte[offset + raw.length + 5];
+    Arrays.fill(b, (byte) 0x55);
+    System.arraycopy(raw, 0, b, offset, raw.length);
+    return b;
+  }
+
+  @Test
+  public void decodeSharedMatchesDecode() throws Exception {
+    final byte raw[] = sample().encode();
+    final byte b[] = embedded(raw, 13);
+    final Message copied = new Message();
+    assertSame(Message.decode_status.decoded, copied.decode(b, 13, raw.length));
+    final Message shared = new Message();
+    assertSame(Message.decode_status.decoded, shared.decodeShared(b, 13, raw.length));
+    assertEquals(copied.size(), shared.size());
+    for (int i = 0; i < copied.size(); i++) {
+      final AVP c = copied.get(i);
+      final AVP s = shared.get(i);
+      assertEquals(c.code, s.code);
+      assertEquals(c.vendor_id, s.vendor_id);
+      assertEquals(c.isMandatory(), s.isMandatory());
+      assertArrayEquals(c.queryPayload(), s.queryPayload());
+    }
+    assertArrayEquals(raw, shared.encode());
+    assertEquals(17, shared.hdr.hop_by_hop_identifier);
+    assertEquals(7, shared.getUnsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER));
+    assertEquals(1L << 40, shared.getUnsigned64(ProtocolConstants.DI_CC_INPUT_OCTETS));
+    assertEquals(123456, shared.getUnsigned32(1000, vendor));
+    assertEquals("example.com;1;2;abc", shared.getUTF8(ProtocolConstants.DI_SESSION_ID));
+  }
+
+  @Test
+  public void viewsReferToTheBuffer() throws Exception {
+    final byte raw[] = sample().encode();
+    final Message copied = new Message();
+    copied.decode(raw);
+    final Message shared = new Message();
+    shared.decodeShared(raw, 0, raw.length);
+    //a typed AVP constructed from a view has its own payload
+    final AVP_Unsigned32 typed = new AVP_Unsigned32(shared.find(ProtocolConstants.DI_CC_REQUEST_NUMBER));
+    final AVP deep = shared.get(2);
+    //overwrite the CC-Request-Number payload in the buffer
+    final int offset = indexOf(raw, new AVP_Unsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER, 7).encode()) + 8;
+    packunpack.pack32(raw, offset, 8);
+    assertEquals(8, shared.getUnsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER));
+    assertEquals(7, copied.getUnsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER));
+    assertEquals(7, typed.queryValue());
+    assertEquals(7, deep.getUnsigned32());
+    //and changing it does not write to the buffer
+    typed.setValue(9);
+    assertEquals(8, packunpack.unpack32(raw, offset));
+  }
+
+  @Test
+  public void groupedView() throws Exception {
+    final byte raw[] = sample().encode();
+    final Message shared = new Message();
+    shared.decodeShared(raw, 0, raw.length);
+    final AVP usu = shared.find(ProtocolConstants.DI_USED_SERVICE_UNIT);
+    assertNotNull(usu);
+    final AVP embedded[] = new AVP_Grouped(usu).queryAVPs();
+    assertEquals(2, embedded.length);
+    assertEquals(99, embedded[0].getUnsigned64());
+    assertEquals("x", embedded[1].getUTF8());
+  }
+
+  @Test
+  public void decodeStatus() {
+    final byte raw[] = sample().encode();
+    final Message msg = new Message();
+    assertSame(Message.decode_status.not_enough, msg.decodeShared(raw, 0, raw.length - 4));
+    assertSame(Message.decode_status.not_enough, msg.decodeShared(raw, 0, 10));
+    final byte bad_version[] = raw.clone();
+    bad_version[0] = 2;
+    assertSame(Message.decode_status.garbage, msg.decodeShared(bad_version, 0, raw.length));
+    //an AVP length running past the end of the message
+    final byte bad_avp[] = raw.clone();
+    bad_avp[20 + 5] = 0x7f;
+    assertSame(Message.decode_status.garbage, msg.decodeShared(bad_avp, 0, raw.length));
+  }
+
+  private static int indexOf(final byte b[], final byte pattern[]) {
+    for (int i = 0; i + pattern.length <= b.length; i++) {
+      int j = 0;
+      while (j < pattern.length && b[i + j] == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    throw new AssertionError("pattern not found");
+  }
+}
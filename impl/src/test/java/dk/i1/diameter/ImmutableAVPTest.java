@@ -0,0 +1,117 @@
+package dk.i1.diameter;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of ImmutableAVP: it encodes like the AVP it was copied from, and
+ * nothing done to it changes what it encodes to.
+ */
+public final class ImmutableAVPTest {
+  private static final int vendor = 10415;
+
+  private static AVP grouped() {
+    return new AVP_Grouped(ProtocolConstants.DI_VENDOR_SPECIFIC_APPLICATION_ID,
+            new AVP_Unsigned32(ProtocolConstants.DI_VENDOR_ID, vendor).setM(),
+            new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID, 4).setM()).setM();
+  }
+
+  @Test
+  public void encodesLikeTheOriginal() throws Exception {
+    final AVP originals[] = {
+            new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, "a.example.com").setM(),
+            new AVP_Unsigned32(1000, vendor, 7),
+            grouped()};
+    final Message expected = new Message();
+    final Message shared = new Message();
+    for (final AVP a : originals) {
+      final ImmutableAVP i = new ImmutableAVP(a);
+      assertArrayEquals(a.encode(), i.encode());
+      assertEquals(a.encodeSize(), i.encodeSize());
+      final ByteBuffer bb = ByteBuffer.allocate(i.encodeSize());
+      assertEquals(i.encodeSize(), i.encode(bb));
+      assertArrayEquals(a.encode(), bb.array());
+      expected.add(a);
+      shared.add(i);
+    }
+    assertArrayEquals(expected.encode(), shared.encode());
+    assertEquals("a.example.com", shared.getUTF8(ProtocolConstants.DI_ORIGIN_HOST));
+    assertEquals(7, shared.getUnsigned32(1000, vendor));
+  }
+
+  @Test
+  public void mutatorsAreRefused() throws Exception {
+    final AVP original = new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, "a.example.com").setM();
+    final ImmutableAVP a = new ImmutableAVP(original);
+    //setting a flag to the value it has is allowed
+    a.setMandatory(true);
+    a.setPrivate(false);
+    assertTrue(a.setM() == a);
+    try {
+      a.setMandatory(false);
+      fail("M flag cleared");
+    } catch (final UnsupportedOperationException ex) {
+    }
+    try {
+      a.setPrivate(true);
+      fail("P flag set");
+    } catch (final UnsupportedOperationException ex) {
+    }
+    try {
+      a.setPayload(new byte[] {1, 2, 3, 4});
+      fail("payload replaced");
+    } catch (final UnsupportedOperationException ex) {
+    }
+    try {
+      a.setPayload32(1);
+      fail("payload overwritten");
+    } catch (final UnsupportedOperationException ex) {
+    }
+    try {
+      a.inline_shallow_replace(new AVP_Unsigned32(1, 1));
+      fail("AVP replaced");
+    } catch (final UnsupportedOperationException ex) {
+    }
+    try {
+      a.decodeView(original.encode(), 0, original.encodeSize());
+      fail("AVP decoded into");
+    } catch (final UnsupportedOperationException ex) {
+    }
+    //the public fields cannot be protected, but do not change the encoding
+    a.code = ProtocolConstants.DI_ORIGIN_REALM;
+    a.vendor_id = vendor;
+    assertArrayEquals(original.encode(), a.encode());
+  }
+
+  @Test
+  public void copiesAreIndependent() throws Exception {
+    final AVP_Unsigned32 original = new AVP_Unsigned32(ProtocolConstants.DI_VENDOR_ID, 1);
+    final ImmutableAVP a = new ImmutableAVP(original);
+    original.setValue(2);
+    assertEquals(1, a.getUnsigned32());
+    //typed AVPs and views built from it are detached from it
+    final AVP_Unsigned32 typed = new AVP_Unsigned32(a);
+    typed.setValue(3);
+    assertEquals(1, a.getUnsigned32());
+    final Message msg = new Message();
+    msg.add(a);
+    msg.view(0).setMandatory(true);
+    assertArrayEquals(new AVP_Unsigned32(ProtocolConstants.DI_VENDOR_ID, 1).encode(), a.encode());
+  }
+
+  @Test
+  public void setMandatoryRFC3588() throws Exception {
+    //already flagged as setMandatory_RFC3588() would, so it is left alone
+    final Message msg = new Message();
+    msg.add(new ImmutableAVP(grouped()));
+    msg.add(new ImmutableAVP(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, "a.example.com").setM()));
+    final byte before[] = msg.encode();
+    Utils.setMandatory_RFC3588(msg);
+    assertArrayEquals(before, msg.encode());
+    assertEquals(2, new AVP_Grouped(msg.find(ProtocolConstants.DI_VENDOR_SPECIFIC_APPLICATION_ID)).queryAVPs().length);
+  }
+}
@@ -0,0 +1,169 @@
+package dk.i1.diameter;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of MessageTemplate. Patched templates are compared with encoding a
+ * message built with the same values.
+ */
+public final class MessageTemplateTest {
+  private static final int vendor = 10415;
+
+  private static Message ccr(final String session_id, final int request_number, final long octets,
+                             final String user_name) {
+    final Message msg = new Message();
+    msg.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_CC;
+    msg.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL;
+    msg.hdr.setRequest(true);
+    msg.hdr.setProxiable(true);
+    msg.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, session_id).setM());
+    msg.add(new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_HOST, "client.example.com").setM());
+    msg.add(new AVP_Unsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER, request_number).setM());
+    msg.add(new AVP_UTF8String(ProtocolConstants.DI_USER_NAME, vendor, user_name));
+    msg.add(new AVP_Unsigned64(ProtocolConstants.DI_CC_INPUT_OCTETS, octets));
+    msg.add(new AVP_Grouped(ProtocolConstants.DI_USED_SERVICE_UNIT,
+            new AVP_Unsigned64(ProtocolConstants.DI_CC_TOTAL_OCTETS, 5)));
+    return msg;
+  }
+
+  private static MessageTemplate template() {
+    return new MessageTemplate(ccr("dummy", 0, 0, "u"),
+            ProtocolConstants.DI_SESSION_ID, ProtocolConstants.DI_CC_REQUEST_NUMBER,
+            ProtocolConstants.DI_CC_INPUT_OCTETS, ProtocolConstants.DI_USER_NAME);
+  }
+
+  @Test
+  public void unpatched() {
+    final MessageTemplate t = template();
+    final byte expected[] = ccr("dummy", 0, 0, "u").encode();
+    assertEquals(expected.length, t.size());
+    assertArrayEquals(expected, t.toByteArray());
+    assertTrue(t.isRequest());
+  }
+
+  @Test
+  public void patchFixedSize() {
+    final MessageTemplate t = template();
+    t.setUnsigned32(1, 17);
+    t.setUnsigned64(2, 1L << 33);
+    assertArrayEquals(ccr("dummy", 17, 1L << 33, "u").encode(), t.toByteArray());
+    t.setInteger32(1, -1);
+    t.setInteger64(2, -1);
+    assertArrayEquals(ccr("dummy", -1, -1, "u").encode(), t.toByteArray());
+    try {
+      t.setUnsigned32(2, 1);
+      fail("4 bytes written to an 8-byte slot");
+    } catch (final IllegalArgumentException ex) {
+    }
+    try {
+      t.setUnsigned64(0, 1);
+      fail("8 bytes written to a string slot");
+    } catch (final IllegalArgumentException ex) {
+    }
+  }
+
+  @Test
+  public void patchVariableSize() {
+    final MessageTemplate t = template();
+    //grow and shrink the string slots, with and without changing the padded size; User-Name is vendor-specific
+    final String values[] = {"dummy", "dummy2", "d", "example.com;1234567890;1", "", "abc", "abcd", "abcde"};
+    for (final String session_id : values) {
+      for (final String user_name : values) {
+        t.setUTF8(0, session_id);
+        t.setUTF8(3, user_name);
+        t.setUnsigned32(1, session_id.length());
+        assertArrayEquals(session_id + "/" + user_name,
+                ccr(session_id, session_id.length(), 0, user_name).encode(), t.toByteArray());
+      }
+    }
+  }
+
+  @Test
+  public void patchBeyondTheInitialBuffer() {
+    final MessageTemplate t = template();
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append("0123456789");
+    }
+    t.setUTF8(0, sb.toString());
+    t.setUnsigned64(2, 9);
+    assertArrayEquals(ccr(sb.toString(), 0, 9, "u").encode(), t.toByteArray());
+    t.setUTF8(0, "s");
+    assertArrayEquals(ccr("s", 0, 9, "u").encode(), t.toByteArray());
+  }
+
+  @Test
+  public void patchNonAscii() {
+    final MessageTemplate t = template();
+    final String s = "\u00e6\u00f8\u00e5;\u20ac";
+    t.setUTF8(3, s);
+    assertArrayEquals(ccr("dummy", 0, 0, s).encode(), t.toByteArray());
+    t.setOctetString(0, new byte[] {'a', 'b'});
+    assertArrayEquals(ccr("ab", 0, 0, s).encode(), t.toByteArray());
+  }
+
+  @Test
+  public void header() {
+    final MessageTemplate t = template();
+    t.setHopByHopIdentifier(0x11223344);
+    t.setEndToEndIdentifier(0x55667788);
+    t.setRetransmit(true);
+    final Message msg = new Message();
+    assertEquals(Message.decode_status.decoded, msg.decode(t.toByteArray()));
+    assertEquals(0x11223344, msg.hdr.hop_by_hop_identifier);
+    assertEquals(0x55667788, msg.hdr.end_to_end_identifier);
+    assertTrue(msg.hdr.isRetransmit());
+    assertTrue(msg.hdr.isRequest());
+    assertTrue(msg.hdr.isProxiable());
+    t.setRetransmit(false);
+    msg.decode(t.toByteArray());
+    assertFalse(msg.hdr.isRetransmit());
+    assertTrue(msg.hdr.isRequest());
+  }
+
+  @Test
+  public void writeTo() {
+    final MessageTemplate t = template();
+    t.setUTF8(0, "a longer session id");
+    final ByteBuffer bb = ByteBuffer.allocate(t.size() + 3);
+    bb.put((byte) 1);
+    assertEquals(t.size(), t.writeTo(bb));
+    assertEquals(1 + t.size(), bb.position());
+    final byte raw[] = new byte[t.size()];
+    bb.flip();
+    bb.get();
+    bb.get(raw);
+    assertArrayEquals(t.toByteArray(), raw);
+  }
+
+  @Test
+  public void prototypeIsACopy() {
+    final Message msg = ccr("dummy", 0, 0, "u");
+    final MessageTemplate t = new MessageTemplate(msg, ProtocolConstants.DI_SESSION_ID);
+    msg.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, 2001));
+    t.setUTF8(0, "patched");
+    assertEquals(6, t.prototype().size());
+    assertEquals("dummy", t.prototype().find(ProtocolConstants.DI_SESSION_ID).getUTF8());
+  }
+
+  @Test
+  public void missingSlot() {
+    try {
+      new MessageTemplate(ccr("dummy", 0, 0, "u"), ProtocolConstants.DI_RESULT_CODE);
+      fail("template with a missing slot");
+    } catch (final IllegalArgumentException ex) {
+    }
+    //only top-level AVPs can be slots
+    try {
+      new MessageTemplate(ccr("dummy", 0, 0, "u"), ProtocolConstants.DI_CC_TOTAL_OCTETS);
+      fail("template with an embedded slot");
+    } catch (final IllegalArgumentException ex) {
+    }
+  }
+}
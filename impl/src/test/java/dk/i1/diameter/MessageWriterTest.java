@@ -0,0 +1,147 @@
+package dk.i1.diameter;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of MessageWriter. The output is compared with encoding the same
+ * message built from AVP objects.
+ */
+public final class MessageWriterTest {
+  private static final int vendor = 10415;
+
+  private static MessageHeader header() {
+    final MessageHeader hdr = new MessageHeader();
+    hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_CC;
+    hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL;
+    hdr.setRequest(true);
+    hdr.setProxiable(true);
+    hdr.hop_by_hop_identifier = 0x01020304;
+    hdr.end_to_end_identifier = 0x05060708;
+    return hdr;
+  }
+
+  private static Message expected(final String session_id) throws Exception {
+    final Message msg = new Message(header());
+    msg.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, session_id).setM());
+    msg.add(new AVP_Unsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER, 3).setM());
+    msg.add(new AVP_Integer32(ProtocolConstants.DI_SERVICE_IDENTIFIER, vendor, -1));
+    msg.add(new AVP_Unsigned64(ProtocolConstants.DI_CC_INPUT_OCTETS, Long.MAX_VALUE));
+    msg.add(new AVP_Integer64(ProtocolConstants.DI_CC_OUTPUT_OCTETS, -2));
+    msg.add(new AVP_OctetString(ProtocolConstants.DI_CLASS, new byte[] {1, 2, 3, 4, 5}));
+    msg.add(new AVP_Address(ProtocolConstants.DI_HOST_IP_ADDRESS, InetAddress.getByName("192.0.2.1")));
+    msg.add(new AVP_Address(ProtocolConstants.DI_HOST_IP_ADDRESS, InetAddress.getByName("2001:db8::1")));
+    final AVP p = new AVP_UTF8String(ProtocolConstants.DI_ORIGIN_REALM, "p");
+    p.setPrivate(true);
+    msg.add(p);
+    msg.add(new AVP_Grouped(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL,
+            new AVP_Unsigned32(ProtocolConstants.DI_RATING_GROUP, 1),
+            new AVP_Grouped(ProtocolConstants.DI_USED_SERVICE_UNIT, vendor,
+                    new AVP_Unsigned64(ProtocolConstants.DI_CC_TOTAL_OCTETS, 42).setM())).setM());
+    msg.add(new AVP_Grouped(ProtocolConstants.DI_PROXY_INFO));
+    return msg;
+  }
+
+  private static MessageWriter write(final MessageWriter w, final String session_id) throws Exception {
+    return w.begin(header())
+            .addUTF8(ProtocolConstants.DI_SESSION_ID, session_id).setM()
+            .addUnsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER, 3).setM()
+            .addInteger32(ProtocolConstants.DI_SERVICE_IDENTIFIER, vendor, -1)
+            .addUnsigned64(ProtocolConstants.DI_CC_INPUT_OCTETS, Long.MAX_VALUE)
+            .addInteger64(ProtocolConstants.DI_CC_OUTPUT_OCTETS, -2)
+            .addOctetString(ProtocolConstants.DI_CLASS, new byte[] {1, 2, 3, 4, 5})
+            .addAddress(ProtocolConstants.DI_HOST_IP_ADDRESS, InetAddress.getByName("192.0.2.1"))
+            .addAddress(ProtocolConstants.DI_HOST_IP_ADDRESS, InetAddress.getByName("2001:db8::1"))
+            .addUTF8(ProtocolConstants.DI_ORIGIN_REALM, "p").setP()
+            .openGrouped(ProtocolConstants.DI_MULTIPLE_SERVICES_CREDIT_CONTROL)
+              .addUnsigned32(ProtocolConstants.DI_RATING_GROUP, 1)
+              .openGrouped(ProtocolConstants.DI_USED_SERVICE_UNIT, vendor)
+                .addUnsigned64(ProtocolConstants.DI_CC_TOTAL_OCTETS, 42).setM()
+              .closeGrouped()
+            .closeGrouped().setM()
+            .openGrouped(ProtocolConstants.DI_PROXY_INFO)
+            .closeGrouped();
+  }
+
+  @Test
+  public void sameAsMessageEncode() throws Exception {
+    final byte raw[] = write(new MessageWriter(), "example.com;1;2").toByteArray();
+    assertArrayEquals(expected("example.com;1;2").encode(), raw);
+    final Message decoded = new Message();
+    assertEquals(Message.decode_status.decoded, decoded.decode(raw));
+  }
+
+  @Test
+  public void nonAsciiString() throws Exception {
+    final String s = "s\u00e6t\u00f8\u00e5\u20ac";
+    assertArrayEquals(expected(s).encode(), write(new MessageWriter(), s).toByteArray());
+  }
+
+  @Test
+  public void growsFromSmallBuffer() throws Exception {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      sb.append("session");
+    }
+    final MessageWriter w = new MessageWriter(1);
+    assertArrayEquals(expected(sb.toString()).encode(), write(w, sb.toString()).toByteArray());
+  }
+
+  @Test
+  public void reuse() throws Exception {
+    final MessageWriter w = new MessageWriter();
+    //a longer message first, so the buffer holds old bytes where the padding goes
+    write(w, "a much longer session id than the next one;1;2").toByteArray();
+    assertArrayEquals(expected("x").encode(), write(w, "x").toByteArray());
+    final AVP copied = new AVP_UTF8String(ProtocolConstants.DI_DESTINATION_HOST, "abcde");
+    w.begin(header()).addUTF8(ProtocolConstants.DI_SESSION_ID, "zzzzzzzzzzzzzzzzzzzzz").toByteArray();
+    final Message msg = new Message(header());
+    msg.add(copied);
+    assertArrayEquals(msg.encode(), w.begin(header()).add(copied).toByteArray());
+  }
+
+  @Test
+  public void encodeIntoByteBuffer() throws Exception {
+    final MessageWriter w = write(new MessageWriter(), "s");
+    final ByteBuffer bb = ByteBuffer.allocate(w.size() + 10);
+    bb.put((byte) 9);
+    assertEquals(w.size(), w.encode(bb));
+    assertEquals(1 + w.size(), bb.position());
+    final byte raw[] = new byte[w.size()];
+    bb.flip();
+    bb.get();
+    bb.get(raw);
+    assertArrayEquals(w.toByteArray(), raw);
+  }
+
+  @Test
+  public void misuse() throws Exception {
+    final MessageWriter w = new MessageWriter();
+    try {
+      w.addUnsigned32(1, 1);
+      fail("AVP added before begin()");
+    } catch (final IllegalStateException ex) {
+    }
+    w.begin(header());
+    try {
+      w.setM();
+      fail("setM() without an AVP");
+    } catch (final IllegalStateException ex) {
+    }
+    try {
+      w.closeGrouped();
+      fail("closeGrouped() without openGrouped()");
+    } catch (final IllegalStateException ex) {
+    }
+    w.openGrouped(ProtocolConstants.DI_PROXY_INFO);
+    try {
+      w.toByteArray();
+      fail("message with an open grouped AVP");
+    } catch (final IllegalStateException ex) {
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package dk.i1.diameter.node;
+
+import dk.i1.diameter.AVP_OctetString;
+import dk.i1.diameter.AVP_UTF8String;
+import dk.i1.diameter.AVP_Unsigned32;
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import java.net.InetAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * End-to-end test of the output watermarks over TCP: two nodes sending large
+ * requests to each other at the same time, on one connection, with many
+ * requests outstanding so both sides go above the high watermark.
+ *
+ * NB: Host must have a fully qualified domain name with at minumum two '.' (dots) and be fully resolvable.
+ */
+public final class BackpressureTest {
+  private static final int port = 3871;
+  private static final int requests = 2000;
+  private static final int in_flight = 256;
+  private static final byte payload[] = new byte[8192];
+
+  /* Answers every request with its payload, and counts the answers to its own requests */
+  private static final class Side extends NodeManager {
+    final Semaphore window = new Semaphore(in_flight);
+    final AtomicInteger answered = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger refused = new AtomicInteger();
+    volatile ConnectionKey requester;
+
+    Side(final NodeSettings settings) {
+      super(settings);
+    }
+
+    @Override
+    protected void handleRequest(final Message request, final ConnectionKey connkey, final Peer peer) {
+      requester = connkey;
+      final Message answer = new Message();
+      answer.prepareResponse(request);
+      answer.add(request.find(ProtocolConstants.DI_SESSION_ID));
+      answer.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_SUCCESS));
+      node().addSharedHostAndRealm(answer);
+      answer.add(request.find(ProtocolConstants.DI_CLASS));
+      try {
+        answer(answer, connkey);
+      } catch (final NotAnAnswerException ex) {
+        throw new AssertionError(ex);
+      }
+    }
+
+    @Override
+    protected void handleAnswer(final Message answer, final ConnectionKey answer_connkey, final Object state) {
+      if (answer != null && answer.find(ProtocolConstants.DI_CLASS) != null) {
+        answered.incrementAndGet();
+      } else {
+        failed.incrementAndGet();
+      }
+      window.release();
+    }
+
+    Message request(final String session_id) {
+      final Message request = new Message();
+      request.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_CC;
+      request.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL;
+      request.hdr.setRequest(true);
+      request.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, session_id));
+      node().addOurHostAndRealm(request);
+      request.add(new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID,
+              ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL));
+      request.add(new AVP_OctetString(ProtocolConstants.DI_CLASS, payload));
+      return request;
+    }
+  }
+
+  /* Sends the requests, waiting while the window is full or the connection is not writable */
+  private static final class Sender extends Thread {
+    private final Side side;
+    private final ConnectionKey connkey;
+    volatile Throwable failure;
+
+    Sender(final Side side, final ConnectionKey connkey) {
+      this.side = side;
+      this.connkey = connkey;
+    }
+
+    @Override
+    public void run() {
+      try {
+        final String session_id = side.node().makeNewSessionId();
+        for (int i = 0; i < requests; i++) {
+          if (!side.window.tryAcquire(20, TimeUnit.SECONDS)) {
+            throw new AssertionError("no answers after " + i + " requests");
+          }
+          for (;;) {
+            try {
+              side.sendRequest(side.request(session_id), connkey, null, 30000);
+              break;
+            } catch (final ConnectionNotWritableException ex) {
+              side.refused.incrementAndGet();
+              Thread.sleep(1);
+            }
+          }
+        }
+      } catch (final Throwable t) {
+        failure = t;
+      }
+    }
+  }
+
+  private static NodeSettings settings(final String host_id, final int port) throws Exception {
+    final Capability capability = new Capability();
+    capability.addAuthApp(ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL);
+    final NodeSettings settings = new NodeSettings(host_id, "example.com", 99999, capability, port, "backpressure_test", 1);
+    settings.setUseTCP(true);
+    settings.setUseSCTP(false);
+    settings.setOutputWatermarks(16384, 65536);
+    return settings;
+  }
+
+  @Test
+  public void bothSidesSending() throws Exception {
+    final String localFQDN = InetAddress.getLocalHost().getCanonicalHostName();
+    final Side server = new Side(settings(localFQDN, port));
+    final Side client = new Side(settings("client.backpressure.example.com", 0));
+    server.start();
+    try {
+      client.start();
+      try {
+        final Peer peer = new Peer(localFQDN, port, Peer.TransportProtocol.tcp);
+        client.node().initiateConnection(peer, true);
+        client.waitForConnectionTimeout(10000);
+        final ConnectionKey client_connkey = client.node().findConnection(peer);
+        assertNotNull(client_connkey);
+        //the server learns the connection from the first request
+        client.window.acquire();
+        client.sendRequest(client.request(client.node().makeNewSessionId()), client_connkey, null, 10000);
+        for (int n = 0; n < 1000 && client.answered.get() == 0; n++) {
+          Thread.sleep(10);
+        }
+        assertEquals(1, client.answered.getAndSet(0));
+        assertNotNull(server.requester);
+
+        final Sender senders[] = {new Sender(client, client_connkey), new Sender(server, server.requester)};
+        for (final Sender sender : senders) {
+          sender.start();
+        }
+        for (final Sender sender : senders) {
+          sender.join();
+          assertNull(sender.failure);
+        }
+        for (final Side side : new Side[] {client, server}) {
+          assertTrue(side.window.tryAcquire(in_flight, 30, TimeUnit.SECONDS));
+          assertEquals(0, side.failed.get());
+          assertEquals(requests, side.answered.get());
+        }
+        //the watermarks were reached
+        assertTrue(client.refused.get() + server.refused.get() > 0);
+      } finally {
+        client.stop(50);
+      }
+    } finally {
+      server.stop(50);
+    }
+  }
+}
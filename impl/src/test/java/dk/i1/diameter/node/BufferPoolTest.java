@@ -0,0 +1,66 @@
+package dk.i1.diameter.node;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of BufferPool in direct (pooling) and heap mode.
+ */
+public final class BufferPoolTest {
+  @Test
+  public void heapBuffersHaveTheRequestedSize() {
+    final BufferPool pool = new BufferPool(0);
+    assertFalse(pool.isDirect());
+    for (final int size : new int[] {1, 512, 513, 8192, (512 << 10) + 1, (1 << 20) + 1}) {
+      final ByteBuffer bb = pool.lease(size);
+      assertFalse(bb.isDirect());
+      assertEquals(size, bb.capacity());
+      pool.release(bb);
+    }
+    //nothing is kept
+    final ByteBuffer bb = pool.lease(1000);
+    pool.release(bb);
+    assertNotSame(bb, pool.lease(1000));
+  }
+
+  @Test
+  public void directBuffersAreRoundedAndReused() {
+    final BufferPool pool = new BufferPool(1 << 20);
+    assertTrue(pool.isDirect());
+    final ByteBuffer bb = pool.lease(513);
+    assertTrue(bb.isDirect());
+    assertEquals(1024, bb.capacity());
+    bb.put((byte) 1);
+    pool.release(bb);
+    final ByteBuffer again = pool.lease(1000);
+    assertSame(bb, again);
+    assertEquals(0, again.position());
+    //larger than the largest size class: exact size, not pooled
+    final ByteBuffer large = pool.lease((1 << 20) + 1);
+    assertEquals((1 << 20) + 1, large.capacity());
+    pool.release(large);
+    assertNotSame(large, pool.lease((1 << 20) + 1));
+  }
+
+  @Test
+  public void poolSizeIsRespected() {
+    final BufferPool pool = new BufferPool(2048);
+    final ByteBuffer a = pool.lease(1024);
+    final ByteBuffer b = pool.lease(1024);
+    final ByteBuffer c = pool.lease(1024);
+    pool.release(a);
+    pool.release(b);
+    pool.release(c); //beyond the pool size
+    final ByteBuffer x = pool.lease(1024);
+    final ByteBuffer y = pool.lease(1024);
+    final ByteBuffer z = pool.lease(1024);
+    assertTrue(x == b || x == a);
+    assertTrue(y == a || y == b);
+    assertNotSame(c, z);
+  }
+}
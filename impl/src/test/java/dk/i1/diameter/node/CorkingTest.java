@@ -0,0 +1,128 @@
+package dk.i1.diameter.node;
+
+import dk.i1.diameter.AVP_UTF8String;
+import dk.i1.diameter.AVP_Unsigned32;
+import dk.i1.diameter.Message;
+import dk.i1.diameter.ProtocolConstants;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * End-to-end tests of write corking over TCP: a server and a client in the
+ * same process, both corking, exchanging requests sent from several threads.
+ *
+ * NB: Host must have a fully qualified domain name with at minumum two '.' (dots) and be fully resolvable.
+ */
+public final class CorkingTest {
+  private static final int port = 3870;
+  private static final int threads = 4;
+  private static final int requests_per_thread = 500;
+
+  @Test
+  public void corkWindowZero() throws Exception {
+    exchange(0);
+  }
+
+  @Test
+  public void subMillisecondCorkWindow() throws Exception {
+    exchange(200);
+  }
+
+  @Test
+  public void corkWindow() throws Exception {
+    exchange(2000);
+  }
+
+  private static NodeSettings settings(final String host_id, final int port, final long cork_window) throws Exception {
+    final Capability capability = new Capability();
+    capability.addAuthApp(ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL);
+    final NodeSettings settings = new NodeSettings(host_id, "example.com", 99999, capability, port, "corking_test", 1);
+    settings.setUseTCP(true);
+    settings.setUseSCTP(false);
+    settings.setCorkWindow(cork_window);
+    return settings;
+  }
+
+  private void exchange(final long cork_window) throws Exception {
+    final String localFQDN = InetAddress.getLocalHost().getCanonicalHostName();
+    final NodeManager server = new NodeManager(settings(localFQDN, port, cork_window)) {
+      @Override
+      protected void handleRequest(final Message request, final ConnectionKey connkey, final Peer peer) {
+        final Message answer = new Message();
+        answer.prepareResponse(request);
+        answer.add(request.find(ProtocolConstants.DI_SESSION_ID));
+        answer.add(new AVP_Unsigned32(ProtocolConstants.DI_RESULT_CODE, ProtocolConstants.DIAMETER_RESULT_SUCCESS));
+        node().addOurHostAndRealm(answer);
+        answer.add(request.find(ProtocolConstants.DI_CC_REQUEST_NUMBER));
+        try {
+          answer(answer, connkey);
+        } catch (final NotAnAnswerException ex) {
+          throw new AssertionError(ex);
+        }
+      }
+    };
+    final NodeManager client = new NodeManager(settings("client.corking.example.com", 0, cork_window)) {
+    };
+    server.start();
+    try {
+      client.start();
+      try {
+        final Peer peers[] = {new Peer(localFQDN, port, Peer.TransportProtocol.tcp)};
+        client.node().initiateConnection(peers[0], true);
+        client.waitForConnectionTimeout(10000);
+        final String session_id = client.node().makeNewSessionId();
+        final List<CompletableFuture<Message>> answers = new ArrayList<CompletableFuture<Message>>();
+        final Thread senders[] = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+          final int first = t * requests_per_thread;
+          final List<CompletableFuture<Message>> mine = new ArrayList<CompletableFuture<Message>>();
+          senders[t] = new Thread() {
+            @Override
+            public void run() {
+              for (int i = first; i < first + requests_per_thread; i++) {
+                final Message request = new Message();
+                request.hdr.command_code = ProtocolConstants.DIAMETER_COMMAND_CC;
+                request.hdr.application_id = ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL;
+                request.hdr.setRequest(true);
+                request.hdr.setProxiable(true);
+                request.add(new AVP_UTF8String(ProtocolConstants.DI_SESSION_ID, session_id));
+                client.node().addOurHostAndRealm(request);
+                request.add(new AVP_Unsigned32(ProtocolConstants.DI_AUTH_APPLICATION_ID,
+                        ProtocolConstants.DIAMETER_APPLICATION_CREDIT_CONTROL));
+                request.add(new AVP_Unsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER, i));
+                mine.add(client.sendRequestAsync(request, peers, 10000).toCompletableFuture());
+              }
+              synchronized (answers) {
+                answers.addAll(mine);
+              }
+            }
+          };
+          senders[t].start();
+        }
+        for (final Thread sender : senders) {
+          sender.join();
+        }
+        assertEquals(threads * requests_per_thread, answers.size());
+        final boolean seen[] = new boolean[threads * requests_per_thread];
+        for (final CompletableFuture<Message> f : answers) {
+          final Message answer = f.get(10, TimeUnit.SECONDS);
+          assertEquals(ProtocolConstants.DIAMETER_RESULT_SUCCESS, answer.getUnsigned32(ProtocolConstants.DI_RESULT_CODE));
+          seen[answer.getUnsigned32(ProtocolConstants.DI_CC_REQUEST_NUMBER)] = true;
+        }
+        for (int i = 0; i < seen.length; i++) {
+          assertTrue("answer to request " + i, seen[i]);
+        }
+      } finally {
+        client.stop(50);
+      }
+    } finally {
+      server.stop(50);
+    }
+  }
+}
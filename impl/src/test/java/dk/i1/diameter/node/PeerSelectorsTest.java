@@ -0,0 +1,100 @@
+package dk.i1.diameter.node;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the built-in load-balancing policies.
+ */
+public final class PeerSelectorsTest {
+  private static final class TestLoad implements PeerSelector.Load {
+    private final Map<Peer, Integer> outstanding = new HashMap<Peer, Integer>();
+    private final Map<Peer, Long> latency = new HashMap<Peer, Long>();
+
+    TestLoad set(final Peer peer, final int outstanding_requests, final long latency_us) {
+      outstanding.put(peer, outstanding_requests);
+      latency.put(peer, latency_us);
+      return this;
+    }
+
+    @Override
+    public int outstandingRequests(final Peer peer) {
+      final Integer o = outstanding.get(peer);
+      return o != null ? o.intValue() : -1;
+    }
+
+    @Override
+    public long latency(final Peer peer) {
+      final Long l = latency.get(peer);
+      return l != null ? l.longValue() : -1;
+    }
+  }
+
+  private static Peer[] peers(final int n) throws Exception {
+    final Peer peers[] = new Peer[n];
+    for (int i = 0; i < n; i++) {
+      peers[i] = new Peer(InetAddress.getByAddress(new byte[] {127, 0, 0, 1}), 3868 + i);
+    }
+    return peers;
+  }
+
+  //The index picked every time, over enough calls to cover the random start
+  private static int alwaysSelects(final PeerSelector selector, final Peer peers[], final PeerSelector.Load load) {
+    final int first = selector.select(peers, load);
+    for (int n = 0; n < 100; n++) {
+      assertEquals(first, selector.select(peers, load));
+    }
+    return first;
+  }
+
+  @Test
+  public void leastOutstandingRequests() throws Exception {
+    final Peer p[] = peers(3);
+    final TestLoad load = new TestLoad().set(p[0], 5, -1).set(p[1], 2, -1).set(p[2], 7, -1);
+    assertEquals(1, alwaysSelects(PeerSelectors.leastOutstandingRequests(), p, load));
+    //not connected peers are skipped
+    load.outstanding.remove(p[1]);
+    assertEquals(0, alwaysSelects(PeerSelectors.leastOutstandingRequests(), p, load));
+  }
+
+  @Test
+  public void ewmaLatency() throws Exception {
+    final Peer p[] = peers(3);
+    final TestLoad load = new TestLoad().set(p[0], 0, 2000).set(p[1], 0, 300).set(p[2], 0, 500);
+    assertEquals(1, alwaysSelects(PeerSelectors.ewmaLatency(), p, load));
+    //300*4 > 500*2
+    load.set(p[1], 3, 300).set(p[2], 1, 500);
+    assertEquals(2, alwaysSelects(PeerSelectors.ewmaLatency(), p, load));
+  }
+
+  @Test
+  public void ewmaLatencyUnsampledPeer() throws Exception {
+    final Peer p[] = peers(4);
+    //an unsampled peer with many outstanding requests does not get all the traffic
+    final TestLoad load = new TestLoad().set(p[0], 1, 100).set(p[1], 1, 200).set(p[2], 1, 300).set(p[3], 50, -1);
+    assertEquals(0, alwaysSelects(PeerSelectors.ewmaLatency(), p, load));
+    //it counts with the median latency, 400*1 < 300*2
+    load.set(p[0], 1, 1000).set(p[1], 1, 400).set(p[3], 0, -1);
+    assertEquals(3, alwaysSelects(PeerSelectors.ewmaLatency(), p, load));
+  }
+
+  @Test
+  public void ewmaLatencyNoSamples() throws Exception {
+    final Peer p[] = peers(3);
+    //without samples the peers are ranked by outstanding requests
+    final TestLoad load = new TestLoad().set(p[0], 4, -1).set(p[1], 9, -1).set(p[2], 2, -1);
+    assertEquals(2, alwaysSelects(PeerSelectors.ewmaLatency(), p, load));
+    //and equally loaded peers share the traffic
+    load.set(p[2], 4, -1);
+    final int counts[] = new int[3];
+    for (int n = 0; n < 1000; n++) {
+      counts[PeerSelectors.ewmaLatency().select(p, load)]++;
+    }
+    assertEquals(0, counts[1]);
+    assertTrue(counts[0] > 0 && counts[2] > 0);
+  }
+}
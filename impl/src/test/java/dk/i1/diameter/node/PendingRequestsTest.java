@@ -0,0 +1,176 @@
+package dk.i1.diameter.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the per-connection table of outstanding requests.
+ */
+public final class PendingRequestsTest {
+  //The initial capacity of the table; it grows beyond 32 entries
+  private static final int capacity = 64;
+
+  //The home slot of a key in a table of the initial capacity (same hash as PendingRequests)
+  private static int home(final int key) {
+    final int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (capacity - 1);
+  }
+
+  //Keys whose home slot is one of the slots
+  private static List<Integer> keysWithHome(final int count, final int... slots) {
+    final List<Integer> keys = new ArrayList<Integer>();
+    for (int key = 0; keys.size() < count; key++) {
+      for (final int slot : slots) {
+        if (home(key) == slot) {
+          keys.add(key);
+        }
+      }
+    }
+    return keys;
+  }
+
+  @Test
+  public void putAndAnswered() {
+    final PendingRequests pending = new PendingRequests(new ConnectionKey());
+    assertEquals(-1, pending.latency());
+    final Object a = new Object();
+    final Object b = new Object();
+    assertTrue(pending.put(1, a, -1));
+    assertTrue(pending.put(2, b, -1));
+    assertEquals(2, pending.size());
+    assertSame(b, pending.answered(2));
+    assertSame(PendingRequests.not_found, pending.answered(2));
+    assertSame(PendingRequests.not_found, pending.answered(3));
+    assertEquals(1, pending.size());
+    assertTrue(pending.latency() >= 0);
+    assertSame(a, pending.remove(1));
+    assertSame(PendingRequests.not_found, pending.remove(1));
+    assertEquals(0, pending.size());
+  }
+
+  @Test
+  public void putReplacesState() {
+    final PendingRequests pending = new PendingRequests(new ConnectionKey());
+    final Object a = new Object();
+    final Object b = new Object();
+    pending.put(7, a, -1);
+    pending.put(7, b, -1);
+    assertEquals(1, pending.size());
+    assertSame(b, pending.remove(7));
+  }
+
+  @Test
+  public void clusterWrappingAroundTheTable() {
+    //probe clusters that start in the last slots and continue at the start of the table
+    final List<Integer> candidates = keysWithHome(64, capacity - 2, capacity - 1, 0, 1);
+    final Random random = new Random(7);
+    for (int trial = 0; trial < 2000; trial++) {
+      final List<Integer> keys = new ArrayList<Integer>(candidates);
+      Collections.shuffle(keys, random);
+      final List<Integer> cluster = keys.subList(0, 2 + random.nextInt(10));
+      final PendingRequests pending = new PendingRequests(new ConnectionKey());
+      for (final int key : cluster) {
+        assertTrue(pending.put(key, Integer.valueOf(key), -1));
+      }
+      //remove in random order; the rest must stay reachable
+      while (!cluster.isEmpty()) {
+        final int key = cluster.remove(random.nextInt(cluster.size()));
+        assertEquals(Integer.valueOf(key), pending.remove(key));
+        for (final int other : cluster) {
+          //put() of an existing key finds it without adding it again
+          final int size = pending.size();
+          pending.put(other, Integer.valueOf(other), -1);
+          assertEquals("key " + other + " lost after removing " + key, size, pending.size());
+        }
+      }
+      assertEquals(0, pending.size());
+    }
+  }
+
+  @Test
+  public void growAndShrink() {
+    final PendingRequests pending = new PendingRequests(new ConnectionKey());
+    final int n = 5000;
+    for (int i = 0; i < n; i++) {
+      pending.put(i * 7919, Integer.valueOf(i), -1);
+    }
+    assertEquals(n, pending.size());
+    for (int i = 0; i < n; i++) {
+      assertEquals(Integer.valueOf(i), pending.answered(i * 7919));
+    }
+    assertEquals(0, pending.size());
+    pending.put(1, "x", -1);
+    assertEquals("x", pending.remove(1));
+  }
+
+  @Test
+  public void randomOperationsMatchHashMap() {
+    final Random random = new Random(42);
+    final PendingRequests pending = new PendingRequests(new ConnectionKey());
+    final Map<Integer, Object> model = new HashMap<Integer, Object>();
+    for (int op = 0; op < 200000; op++) {
+      //a small key space so there are many clusters, hits and misses
+      final int key = random.nextInt(2000) - 1000;
+      //phases of mostly adding and mostly removing, so the table grows and shrinks
+      final boolean adding = (op / 20000) % 2 == 0 ? random.nextInt(4) != 0 : random.nextInt(4) == 0;
+      if (adding) {
+        final Object state = new Object();
+        model.put(key, state);
+        pending.put(key, state, -1);
+      } else {
+        final Object expected = model.remove(key);
+        final Object actual = random.nextBoolean() ? pending.remove(key) : pending.answered(key);
+        assertSame(expected != null ? expected : PendingRequests.not_found, actual);
+      }
+      assertEquals(model.size(), pending.size());
+    }
+    final List<Object> states = pending.close();
+    assertEquals(new HashSet<Object>(model.values()), new HashSet<Object>(states));
+  }
+
+  @Test
+  public void close() {
+    final PendingRequests pending = new PendingRequests(new ConnectionKey());
+    final Object a = new Object();
+    final Object b = new Object();
+    pending.put(1, a, -1);
+    pending.put(2, b, 12345);
+    final List<Object> states = pending.close();
+    assertEquals(2, states.size());
+    assertTrue(states.contains(a));
+    assertTrue(states.contains(b));
+    assertEquals(0, pending.size());
+    assertFalse(pending.put(3, new Object(), -1));
+    assertSame(PendingRequests.not_found, pending.answered(1));
+    assertSame(PendingRequests.not_found, pending.removeTimedOut(2, 12345));
+    assertTrue(pending.close().isEmpty());
+  }
+
+  @Test
+  public void removeTimedOut() {
+    final PendingRequests pending = new PendingRequests(new ConnectionKey());
+    final Object a = new Object();
+    pending.put(1, a, 1000);
+    //a timeout scheduled for an earlier request with the same identifier
+    assertSame(PendingRequests.not_found, pending.removeTimedOut(1, 999));
+    assertEquals(1, pending.size());
+    assertSame(PendingRequests.not_found, pending.removeTimedOut(2, 1000));
+    assertSame(a, pending.removeTimedOut(1, 1000));
+    assertEquals(0, pending.size());
+    assertTrue(pending.latency() >= 0);
+    //answered before the timeout
+    pending.put(3, a, 2000);
+    assertSame(a, pending.answered(3));
+    assertSame(PendingRequests.not_found, pending.removeTimedOut(3, 2000));
+  }
+}
@@ -0,0 +1,158 @@
+package dk.i1.diameter.node;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the request timeout wheel (10 ms ticks, 5.12 s per revolution).
+ */
+public final class RequestTimeoutWheelTest {
+  private static final long now = 1000000;
+  private static final long revolution = 5120;
+
+  //Records the identifiers of the expired entries
+  private static class Recorder implements RequestTimeoutWheel.Handler {
+    final List<Integer> ids = new ArrayList<Integer>();
+    PendingRequests pending;
+
+    @Override
+    public void expired(final PendingRequests pending, final int hop_by_hop_identifier, final long timeout_time) {
+      this.pending = pending;
+      ids.add(hop_by_hop_identifier);
+    }
+  }
+
+  private static PendingRequests table() {
+    return new PendingRequests(new ConnectionKey());
+  }
+
+  @Test
+  public void expiresWithinATickAfterTheDeadline() {
+    final RequestTimeoutWheel wheel = new RequestTimeoutWheel(now);
+    final PendingRequests table = table();
+    wheel.add(table, 1, now + 100);
+    final Recorder recorder = new Recorder();
+    wheel.expire(now + 100, recorder);
+    assertTrue(recorder.ids.isEmpty());
+    wheel.expire(now + 110, recorder);
+    assertEquals(1, recorder.ids.size());
+    assertEquals(1, recorder.ids.get(0).intValue());
+    assertSame(table, recorder.pending);
+    wheel.expire(now + 200, recorder);
+    assertEquals(1, recorder.ids.size());
+    assertEquals(-1, wheel.nextExpiry());
+  }
+
+  @Test
+  public void deadlineBeyondOneRevolution() {
+    final RequestTimeoutWheel wheel = new RequestTimeoutWheel(now);
+    final long deadline = now + 2 * revolution + 500;
+    wheel.add(table(), 1, deadline);
+    wheel.add(table(), 2, now + 500);
+    assertEquals(now + 510, wheel.nextExpiry());
+    final Recorder recorder = new Recorder();
+    //the slot of the far deadline is passed twice before it is due
+    for (long t = now + 100; t <= deadline; t += 100) {
+      wheel.expire(t, recorder);
+      assertFalse("expired early at " + (t - now), recorder.ids.contains(1));
+    }
+    assertEquals(1, recorder.ids.size());
+    assertEquals(deadline + 10, wheel.nextExpiry());
+    wheel.expire(deadline + 10, recorder);
+    assertEquals(2, recorder.ids.size());
+    assertEquals(1, recorder.ids.get(1).intValue());
+  }
+
+  @Test
+  public void addDuringExpire() {
+    final RequestTimeoutWheel wheel = new RequestTimeoutWheel(now);
+    final PendingRequests table = table();
+    wheel.add(table, 1, now + 100);
+    final Recorder recorder = new Recorder() {
+      @Override
+      public void expired(final PendingRequests pending, final int hop_by_hop_identifier, final long timeout_time) {
+        super.expired(pending, hop_by_hop_identifier, timeout_time);
+        if (hop_by_hop_identifier == 1) {
+          //a deadline that has already passed, and one in the same slot a revolution later
+          wheel.add(pending, 2, timeout_time);
+          wheel.add(pending, 3, timeout_time + revolution);
+        }
+      }
+    };
+    wheel.expire(now + 200, recorder);
+    wheel.expire(now + 210, recorder);
+    assertEquals(2, recorder.ids.size());
+    assertEquals(1, recorder.ids.get(0).intValue());
+    assertEquals(2, recorder.ids.get(1).intValue());
+    wheel.expire(now + 100 + revolution, recorder);
+    assertEquals(2, recorder.ids.size());
+    wheel.expire(now + 110 + revolution, recorder);
+    assertEquals(3, recorder.ids.size());
+    assertEquals(3, recorder.ids.get(2).intValue());
+  }
+
+  @Test
+  public void addBehindTheWheel() {
+    final RequestTimeoutWheel wheel = new RequestTimeoutWheel(now);
+    wheel.expire(now + 1000, new Recorder());
+    //the deadline has passed already, so it expires on the next tick
+    wheel.add(table(), 1, now + 500);
+    assertEquals(now + 1010, wheel.nextExpiry());
+    final Recorder recorder = new Recorder();
+    wheel.expire(now + 1010, recorder);
+    assertEquals(1, recorder.ids.size());
+  }
+
+  @Test
+  public void catchUpAfterLongPause() {
+    final RequestTimeoutWheel wheel = new RequestTimeoutWheel(now);
+    wheel.add(table(), 1, now + 50);
+    wheel.add(table(), 2, now + 3000);
+    wheel.add(table(), 3, now + revolution + 2000);
+    wheel.add(table(), 4, now + 4 * revolution);
+    final Recorder recorder = new Recorder();
+    //several revolutions pass without expire() being called
+    wheel.expire(now + 3 * revolution, recorder);
+    assertEquals(3, recorder.ids.size());
+    assertTrue(recorder.ids.contains(1));
+    assertTrue(recorder.ids.contains(2));
+    assertTrue(recorder.ids.contains(3));
+    assertEquals(now + 4 * revolution + 10, wheel.nextExpiry());
+    wheel.expire(now + 4 * revolution + 10, recorder);
+    assertEquals(4, recorder.ids.size());
+    assertEquals(4, recorder.ids.get(3).intValue());
+  }
+
+  @Test
+  public void nextExpiry() {
+    final RequestTimeoutWheel wheel = new RequestTimeoutWheel(now);
+    assertEquals(-1, wheel.nextExpiry());
+    wheel.add(table(), 1, now + 2000);
+    wheel.add(table(), 2, now + 95);
+    //the end of the tick holding the earliest deadline
+    assertEquals(now + 100, wheel.nextExpiry());
+    final Recorder recorder = new Recorder();
+    wheel.expire(wheel.nextExpiry(), recorder);
+    assertEquals(1, recorder.ids.size());
+    assertEquals(2, recorder.ids.get(0).intValue());
+    assertEquals(now + 2010, wheel.nextExpiry());
+  }
+
+  @Test
+  public void clear() {
+    final RequestTimeoutWheel wheel = new RequestTimeoutWheel(now);
+    for (int i = 0; i < 100; i++) {
+      wheel.add(table(), i, now + i * 10);
+    }
+    wheel.clear();
+    assertEquals(-1, wheel.nextExpiry());
+    final Recorder recorder = new Recorder();
+    wheel.expire(now + revolution, recorder);
+    assertTrue(recorder.ids.isEmpty());
+  }
+}
@@ -0,0 +1,251 @@
+package dk.i1.diameter.node;
+
+import dk.i1.diameter.Message;
+import dk.i1.diameter.MessageTemplate;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the connection timer wheel (50 ms ticks, 51.2 s per revolution).
+ */
+public final class TimerWheelTest {
+  private static final long now = 1000000;
+
+  private static final class TestConnection extends Connection {
+    TestConnection() {
+      super(null, 30000, 0);
+    }
+
+    @Override
+    InetAddress toInetAddress() {
+      return null;
+    }
+
+    @Override
+    void sendMessage(final byte[] raw) {
+    }
+
+    @Override
+    void sendMessage(final Message msg) {
+    }
+
+    @Override
+    void sendMessage(final MessageTemplate template) {
+    }
+
+    @Override
+    Object getRelevantNodeAuthInfo() {
+      return null;
+    }
+
+    @Override
+    Collection<InetAddress> getLocalAddresses() {
+      return null;
+    }
+
+    @Override
+    Peer toPeer() {
+      return null;
+    }
+  }
+
+  private static List<Connection> expired(final TimerWheel wheel) {
+    final List<Connection> conns = new ArrayList<Connection>();
+    Connection conn;
+    while ((conn = wheel.nextExpired()) != null) {
+      conns.add(conn);
+    }
+    return conns;
+  }
+
+  @Test
+  public void expiresOnlyPassedDeadlines() {
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    final Connection b = new TestConnection();
+    wheel.schedule(a, now + 100);
+    wheel.schedule(b, now + 1000);
+    wheel.expire(now + 99);
+    assertTrue(expired(wheel).isEmpty());
+    wheel.expire(now + 100);
+    final List<Connection> conns = expired(wheel);
+    assertEquals(1, conns.size());
+    assertSame(a, conns.get(0));
+    assertFalse(wheel.contains(a));
+    assertTrue(wheel.contains(b));
+  }
+
+  @Test
+  public void deadlinesAreRoundedUpToTicks() {
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    wheel.schedule(a, now + 101);
+    assertEquals(now + 150, wheel.nextDeadline());
+    wheel.expire(now + 149);
+    assertTrue(expired(wheel).isEmpty());
+    wheel.expire(now + 150);
+    assertEquals(1, expired(wheel).size());
+  }
+
+  @Test
+  public void pastDeadlineExpiresOnNextTick() {
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    wheel.schedule(a, now - 5000);
+    wheel.expire(now);
+    assertTrue(expired(wheel).isEmpty());
+    wheel.expire(now + 50);
+    assertEquals(1, expired(wheel).size());
+  }
+
+  @Test
+  public void scheduleReplacesEarlierSchedule() {
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    wheel.schedule(a, now + 1000);
+    wheel.schedule(a, now + 100);
+    wheel.expire(now + 100);
+    assertEquals(1, expired(wheel).size());
+    wheel.expire(now + 2000);
+    assertTrue(expired(wheel).isEmpty());
+    assertEquals(-1, wheel.nextDeadline());
+  }
+
+  @Test
+  public void remove() {
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    final Connection b = new TestConnection();
+    final Connection c = new TestConnection();
+    //all in the same slot, so unlinking the middle one must keep the others
+    wheel.schedule(a, now + 100);
+    wheel.schedule(b, now + 100);
+    wheel.schedule(c, now + 100);
+    wheel.remove(b);
+    wheel.remove(b);
+    assertFalse(wheel.contains(b));
+    wheel.expire(now + 100);
+    final List<Connection> conns = expired(wheel);
+    assertEquals(2, conns.size());
+    assertTrue(conns.contains(a));
+    assertTrue(conns.contains(c));
+  }
+
+  @Test
+  public void watchdogDeadlineIsInReach() {
+    //the default watchdog interval plus jitter fits in a revolution
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    wheel.schedule(a, now + 32000);
+    assertEquals(now + 32000, wheel.nextDeadline());
+    wheel.expire(now + 32000);
+    assertSame(a, wheel.nextExpired());
+  }
+
+  @Test
+  public void deadlineBeyondOneRevolution() {
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    wheel.schedule(a, now + 120000);
+    //the overflow list is looked at once per revolution
+    assertEquals(now + 51200, wheel.nextDeadline());
+    //its slot is passed twice before the deadline
+    for (long t = now + 1000; t < now + 120000; t += 1000) {
+      wheel.expire(t);
+      assertTrue("expired early at " + (t - now), expired(wheel).isEmpty());
+      assertTrue(wheel.nextDeadline() > t && wheel.nextDeadline() <= now + 120000);
+    }
+    //within reach by now
+    assertEquals(now + 120000, wheel.nextDeadline());
+    wheel.expire(now + 119999);
+    assertTrue(expired(wheel).isEmpty());
+    wheel.expire(now + 120000);
+    assertEquals(1, expired(wheel).size());
+    assertEquals(-1, wheel.nextDeadline());
+  }
+
+  @Test
+  public void removeFromOverflow() {
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    final Connection b = new TestConnection();
+    wheel.schedule(a, now + 100000);
+    wheel.schedule(b, now + 100);
+    wheel.remove(a);
+    assertFalse(wheel.contains(a));
+    assertEquals(now + 100, wheel.nextDeadline());
+    wheel.expire(now + 100);
+    assertSame(b, wheel.nextExpired());
+    assertEquals(-1, wheel.nextDeadline());
+    wheel.expire(now + 200000);
+    assertNull(wheel.nextExpired());
+  }
+
+  @Test
+  public void catchUpAfterLongPause() {
+    final TimerWheel wheel = new TimerWheel(now);
+    final Connection a = new TestConnection();
+    final Connection b = new TestConnection();
+    final Connection c = new TestConnection();
+    wheel.schedule(a, now + 100);
+    wheel.schedule(b, now + 30000);
+    wheel.schedule(c, now + 200000);
+    //several revolutions pass without expire() being called
+    wheel.expire(now + 100000);
+    final List<Connection> conns = expired(wheel);
+    assertEquals(2, conns.size());
+    assertTrue(conns.contains(a));
+    assertTrue(conns.contains(b));
+    assertTrue(wheel.contains(c));
+    assertTrue(wheel.nextDeadline() <= now + 200000);
+    wheel.expire(now + 200000);
+    assertSame(c, wheel.nextExpired());
+    assertNull(wheel.nextExpired());
+  }
+
+  @Test
+  public void nextDeadline() {
+    final TimerWheel wheel = new TimerWheel(now);
+    assertEquals(-1, wheel.nextDeadline());
+    final Connection a = new TestConnection();
+    final Connection b = new TestConnection();
+    wheel.schedule(a, now + 5000);
+    wheel.schedule(b, now + 300);
+    assertEquals(now + 300, wheel.nextDeadline());
+    wheel.expire(now + 300);
+    //expired but not yet handled connections are due right away
+    assertEquals(now + 300, wheel.nextDeadline());
+    assertSame(b, wheel.nextExpired());
+    assertEquals(now + 5000, wheel.nextDeadline());
+  }
+
+  @Test
+  public void dueAt() {
+    final TimerWheel wheel = new TimerWheel(now);
+    assertEquals(-1, wheel.dueAt());
+    final Connection a = new TestConnection();
+    final Connection b = new TestConnection();
+    wheel.schedule(a, now + 5000);
+    assertEquals(now + 5000, wheel.dueAt());
+    wheel.schedule(b, now + 300);
+    assertEquals(now + 300, wheel.dueAt());
+    //removing only makes it early until the expired connections are taken next
+    wheel.remove(b);
+    assertEquals(now + 300, wheel.dueAt());
+    wheel.expire(now + 300);
+    assertNull(wheel.nextExpired());
+    assertEquals(now + 5000, wheel.dueAt());
+    wheel.expire(now + 5000);
+    assertSame(a, wheel.nextExpired());
+    assertNull(wheel.nextExpired());
+    assertEquals(-1, wheel.dueAt());
+  }
+}